@@ -0,0 +1,45 @@
+package org.graylog2.benchmarks;
+
+import org.graylog2.GelfMessage;
+
+import java.util.Random;
+
+/**
+ * Builds deterministic benchmark payloads.
+ */
+final class BenchmarkMessages {
+
+    private static final String[] WORDS = {"request", "user", "failed", "order", "id", "timeout", "cache", "db",
+            "connection", "retry", "session", "payload", "graylog", "ms", "status", "ok"};
+
+    private BenchmarkMessages() {
+    }
+
+    /**
+     * @return log-like text of about the given length; it compresses roughly like real log lines
+     */
+    static String text(int length) {
+        Random random = new Random(length);
+        StringBuilder text = new StringBuilder(length + 16);
+        while (text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            if (random.nextInt(8) == 0) {
+                text.append(random.nextInt(100000)).append(' ');
+            }
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+
+    static GelfMessage message(int messageSize, int additionalFields) {
+        String fullMessage = text(messageSize);
+        GelfMessage message = new GelfMessage(fullMessage.substring(0, Math.min(messageSize, 249)), fullMessage,
+                1500000000123L, "6", "42", "org.graylog2.benchmarks.Example");
+        message.setHost("benchmark.example.com");
+        message.setFacility("benchmark");
+        for (int i = 0; i < additionalFields; i++) {
+            message.addField("field" + i, "value " + i);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,66 @@
+package org.graylog2.benchmarks;
+
+import org.graylog2.GelfCompressor;
+import org.graylog2.GelfMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Serialization and compression of a single message. UDP chunking is measured by the udp transport of
+ * {@link GelfSenderBenchmark}, whose 20000 character messages take the chunked path.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GelfMessageBenchmark {
+
+    @Param({"100", "2000", "20000"})
+    public int messageSize;
+
+    @Param({"0", "10", "50"})
+    public int additionalFields;
+
+    private GelfMessage message;
+    private GelfCompressor zlib;
+
+    @Setup
+    public void setUp() {
+        message = BenchmarkMessages.message(messageSize, additionalFields);
+        zlib = new GelfCompressor(GelfCompressor.Codec.ZLIB, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return message.toJson();
+    }
+
+    @Benchmark
+    public int encodeJson() {
+        return message.encodeJson().size();
+    }
+
+    @Benchmark
+    public int gzip() {
+        return GelfCompressor.GZIP.compress(message.encodeJson()).size();
+    }
+
+    @Benchmark
+    public int zlib() {
+        return zlib.compress(message.encodeJson()).size();
+    }
+}
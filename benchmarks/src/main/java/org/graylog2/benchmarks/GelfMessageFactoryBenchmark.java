@@ -0,0 +1,135 @@
+package org.graylog2.benchmarks;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.graylog2.GelfMessage;
+import org.graylog2.GelfMessageProvider;
+import org.graylog2.GelfStackTraceRenderer;
+import org.graylog2.GelfStaticFields;
+import org.graylog2.log4j2.GelfMessageFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a Log4j2 event into a GelfMessage, with and without MDC entries and stack traces.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GelfMessageFactoryBenchmark {
+
+    @Param({"100", "2000"})
+    public int messageSize;
+
+    @Param({"0", "5", "20"})
+    public int mdcSize;
+
+    @Param({"false", "true"})
+    public boolean stackTrace;
+
+    private LogEvent event;
+    private GelfMessageProvider provider;
+
+    @Setup
+    public void setUp() {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        for (int i = 0; i < mdcSize; i++) {
+            contextData.putValue("mdc" + i, "value " + i);
+        }
+        event = Log4jLogEvent.newBuilder()
+                .setLoggerName("org.graylog2.benchmarks.Example")
+                .setLoggerFqcn("org.graylog2.benchmarks.Example")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(BenchmarkMessages.text(messageSize)))
+                .setThrown(stackTrace ? new IllegalStateException("benchmark") : null)
+                .setContextData(contextData)
+                .setThreadName("benchmark")
+                .setTimeMillis(1500000000123L)
+                .setSource(new StackTraceElement("org.graylog2.benchmarks.Example", "run", "Example.java", 42))
+                .build();
+
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put("environment", "DEV");
+        fields.put("application", "benchmark");
+        provider = new BenchmarkProvider(fields);
+    }
+
+    @Benchmark
+    public GelfMessage makeMessage() {
+        return GelfMessageFactory.makeMessage(event, provider);
+    }
+
+    @Benchmark
+    public int makeAndEncode() {
+        return GelfMessageFactory.makeMessage(event, provider).encodeJson().size();
+    }
+
+    static class BenchmarkProvider implements GelfMessageProvider {
+
+        private final Map<String, String> fields;
+        private GelfStaticFields staticFields;
+        private GelfStackTraceRenderer stackTraceRenderer = new GelfStackTraceRenderer();
+
+        BenchmarkProvider(Map<String, String> fields) {
+            this.fields = fields;
+        }
+
+        public boolean isExtractStacktrace() {
+            return true;
+        }
+
+        public String getOriginHost() {
+            return "benchmark.example.com";
+        }
+
+        public String getFacility() {
+            return "benchmark";
+        }
+
+        public Map<String, String> getFields() {
+            return fields;
+        }
+
+        public boolean isAddExtendedInformation() {
+            return true;
+        }
+
+        public boolean isIncludeLocation() {
+            return true;
+        }
+
+        public boolean isMicrosecondTimestamps() {
+            return false;
+        }
+
+        public GelfStackTraceRenderer getStackTraceRenderer() {
+            return stackTraceRenderer;
+        }
+
+        public GelfStaticFields getStaticFields() {
+            if (staticFields == null) {
+                staticFields = GelfMessageFactory.makeStaticFields(this);
+            }
+            return staticFields;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.graylog2.benchmarks;
+
+import org.graylog2.GelfMessage;
+import org.graylog2.GelfSender;
+import org.graylog2.GelfTCPBatchSender;
+import org.graylog2.GelfTCPSender;
+import org.graylog2.GelfUDPSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end send path against loopback sinks that read and discard everything.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GelfSenderBenchmark {
+
+    @Param({"udp", "tcp", "tcp-batch"})
+    public String transport;
+
+    @Param({"100", "20000"})
+    public int messageSize;
+
+    private GelfMessage message;
+    private GelfSender sender;
+    private DatagramSocket udpSink;
+    private ServerSocket tcpSink;
+    private Thread sinkThread;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        message = BenchmarkMessages.message(messageSize, 5);
+        if ("udp".equals(transport)) {
+            udpSink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            udpSink.setReceiveBufferSize(4 * 1024 * 1024);
+            sinkThread = startUdpSink(udpSink);
+            sender = new GelfUDPSender("127.0.0.1", udpSink.getLocalPort());
+        } else {
+            tcpSink = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            sinkThread = startTcpSink(tcpSink);
+            GelfTCPSender tcpSender = "tcp".equals(transport)
+                    ? new GelfTCPSender("127.0.0.1", tcpSink.getLocalPort())
+                    : new GelfTCPBatchSender("127.0.0.1", tcpSink.getLocalPort());
+            if (!tcpSender.awaitConnected(5000)) {
+                throw new IOException("Cannot connect to the TCP sink");
+            }
+            sender = tcpSender;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        sender.close();
+        if (udpSink != null) {
+            udpSink.close();
+        }
+        if (tcpSink != null) {
+            tcpSink.close();
+        }
+        sinkThread.join(1000);
+    }
+
+    @Benchmark
+    public boolean sendMessage() {
+        return sender.sendMessage(message);
+    }
+
+    private static Thread startUdpSink(final DatagramSocket socket) {
+        return start(new Runnable() {
+            public void run() {
+                DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+                try {
+                    while (true) {
+                        socket.receive(packet);
+                    }
+                } catch (IOException e) {
+                    // closed by tearDown
+                }
+            }
+        });
+    }
+
+    private static Thread startTcpSink(final ServerSocket server) {
+        return start(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[65536];
+                try {
+                    while (true) {
+                        Socket client = server.accept();
+                        InputStream in = client.getInputStream();
+                        while (in.read(buffer) != -1) {
+                            // discard
+                        }
+                        client.close();
+                    }
+                } catch (IOException e) {
+                    // closed by tearDown
+                }
+            }
+        });
+    }
+
+    private static Thread start(Runnable sink) {
+        Thread thread = new Thread(sink, "benchmark-sink");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,55 @@
+package org.graylog2.benchmarks;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.graylog2.log4j2.Log4jVersionChecker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the event timestamp through Log4jVersionChecker compared with the former Method.invoke lookup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Log4jVersionCheckerBenchmark {
+
+    private LogEvent event;
+    private Method getTimeMillis;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        event = Log4jLogEvent.newBuilder()
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("timestamp"))
+                .setTimeMillis(1500000000123L)
+                .build();
+        getTimeMillis = LogEvent.class.getMethod("getTimeMillis");
+    }
+
+    @Benchmark
+    public long direct() {
+        return Log4jVersionChecker.getTimeStamp(event);
+    }
+
+    @Benchmark
+    public long reflective() throws Exception {
+        return (Long) getTimeMillis.invoke(event);
+    }
+}
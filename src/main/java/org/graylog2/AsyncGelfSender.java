@@ -0,0 +1,198 @@
+package org.graylog2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands messages to a wrapped {@link GelfSender} on a dedicated background thread so that
+ * slow transports never stall the logging thread.
+ */
+public class AsyncGelfSender implements GelfSender {
+
+    public static final int DEFAULT_QUEUE_SIZE = 8192;
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 100;
+    public static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 5000;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    public enum OverflowPolicy {
+        /** Reject the message being sent. */
+        DROP_NEWEST,
+        /** Evict the oldest queued message to make room. */
+        DROP_OLDEST,
+        /** Wait up to the block timeout for room, then reject. */
+        BLOCK
+    }
+
+    private final GelfSender delegate;
+    private final GelfRingBuffer<GelfMessage> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final long drainTimeoutMillis;
+    private final Thread worker;
+    private volatile GelfSender overflowSender;
+    private GelfMetrics metrics = new GelfMetrics();
+    private volatile boolean shutdown = false;
+    private volatile boolean workerParked = false;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public AsyncGelfSender(GelfSender delegate) {
+        this(delegate, DEFAULT_QUEUE_SIZE, OverflowPolicy.DROP_NEWEST, DEFAULT_BLOCK_TIMEOUT_MILLIS, DEFAULT_DRAIN_TIMEOUT_MILLIS);
+    }
+
+    public AsyncGelfSender(GelfSender delegate, int queueSize, OverflowPolicy overflowPolicy, long blockTimeoutMillis,
+                           long drainTimeoutMillis) {
+        this.delegate = delegate;
+        this.queue = new GelfRingBuffer<GelfMessage>(queueSize);
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.worker = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "GelfAsyncSender-" + delegate.getClass().getSimpleName());
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public boolean sendMessage(GelfMessage message) {
+        if (shutdown || !message.isValid()) {
+            return false;
+        }
+
+        if (!enqueue(message)) {
+            GelfSender overflow = overflowSender;
+            if (overflow != null && overflow.sendMessage(message)) {
+                return true;
+            }
+            dropped.incrementAndGet();
+            metrics.messageDropped();
+            return false;
+        }
+
+        enqueued.incrementAndGet();
+        if (workerParked) {
+            LockSupport.unpark(worker);
+        }
+        return true;
+    }
+
+    private boolean enqueue(GelfMessage message) {
+        if (queue.offer(message)) {
+            return true;
+        }
+
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                do {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                        metrics.messageDropped();
+                    }
+                } while (!queue.offer(message));
+                return true;
+            case BLOCK:
+                long deadline = System.nanoTime() + blockTimeoutNanos;
+                do {
+                    if (workerParked) {
+                        LockSupport.unpark(worker);
+                    }
+                    LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+                    if (queue.offer(message)) {
+                        return true;
+                    }
+                } while (!shutdown && System.nanoTime() - deadline < 0);
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            GelfMessage message = queue.poll();
+            if (message != null) {
+                if (delegate.sendMessage(message)) {
+                    sent.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            } else if (shutdown) {
+                return;
+            } else {
+                workerParked = true;
+                // re-check after publishing the flag so a concurrent producer cannot miss the wake-up
+                if (queue.isEmpty() && !shutdown) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                workerParked = false;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting messages, waits up to the drain timeout for queued messages to be sent
+     * and closes the wrapped sender.
+     */
+    public void close() {
+        shutdown = true;
+        LockSupport.unpark(worker);
+        try {
+            worker.join(drainTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+
+    /**
+     * Receives messages the queue rejects, on the logging thread, instead of dropping them; typically
+     * a {@link GelfSpillQueue}. It is not closed by this sender.
+     */
+    public void setOverflowSender(GelfSender overflowSender) {
+        this.overflowSender = overflowSender;
+    }
+
+    /**
+     * Reports dropped messages and the queue depth to the given metrics.
+     */
+    public void setMetrics(GelfMetrics metrics) {
+        this.metrics = metrics;
+        metrics.setQueue(this);
+    }
+
+    public GelfMetrics getMetrics() {
+        return metrics;
+    }
+
+    public GelfSender getDelegate() {
+        return delegate;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+}
@@ -0,0 +1,97 @@
+package org.graylog2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable byte sink reused across messages to avoid per-message array allocation.
+ */
+public class GelfBuffer {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    private byte[] bytes;
+    private int size;
+    private ByteBuffer view;
+
+    public GelfBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public GelfBuffer(int capacity) {
+        this.bytes = new byte[capacity];
+    }
+
+    /**
+     * Empties the buffer, dropping oversized backing arrays so that a single huge message
+     * does not pin its memory for the lifetime of the owning thread.
+     */
+    public void reset() {
+        size = 0;
+        if (bytes.length > MAX_RETAINED_CAPACITY) {
+            bytes = new byte[DEFAULT_CAPACITY];
+        }
+    }
+
+    public void ensureCapacity(int additional) {
+        int required = size + additional;
+        if (required > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length << 1));
+        }
+    }
+
+    public void write(int b) {
+        ensureCapacity(1);
+        bytes[size++] = (byte) b;
+    }
+
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, bytes, size, len);
+        size += len;
+    }
+
+    /**
+     * Appends a byte without a bounds check; callers must have reserved room with {@link #ensureCapacity(int)}.
+     */
+    void put(int b) {
+        bytes[size++] = (byte) b;
+    }
+
+    /**
+     * Accounts for bytes written directly into {@link #array()} past the current size.
+     */
+    void advance(int length) {
+        size += length;
+    }
+
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    /**
+     * @return a view of the current content; the same instance is returned on every call and is only
+     * valid until the buffer is written to or this method is called again.
+     */
+    public ByteBuffer asByteBuffer() {
+        if (view == null || view.array() != bytes) {
+            view = ByteBuffer.wrap(bytes);
+        }
+        view.limit(size);
+        view.position(0);
+        return view;
+    }
+}
@@ -0,0 +1,124 @@
+package org.graylog2;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compression stage for GELF payloads. Each thread keeps one {@link Deflater} and output buffer per
+ * codec and level and resets them between messages, instead of allocating a new native deflater per message.
+ * They are shared by all compressors of that codec and level, so reconfiguring appenders does not leave
+ * native deflaters behind; a thread holds at most one per codec and level until it ends.
+ */
+public class GelfCompressor {
+
+	public enum Codec {
+		/** gzip (RFC 1952), the GELF default. */
+		GZIP,
+		/** zlib (RFC 1950), also accepted by GELF UDP inputs. */
+		ZLIB,
+		/** Plain JSON. */
+		NONE
+	}
+
+	public static final GelfCompressor GZIP = new GelfCompressor(Codec.GZIP, Deflater.DEFAULT_COMPRESSION);
+
+	private static final byte[] GZIP_HEADER = new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+	private static final int MINIMUM_OUTPUT_ROOM = 512;
+	// DEFAULT_COMPRESSION (-1) to BEST_COMPRESSION (9)
+	private static final int LEVELS = 11;
+	// by codec and level, see state()
+	private static final ThreadLocal<State[]> STATES = new ThreadLocal<State[]>() {
+		@Override
+		protected State[] initialValue() {
+			return new State[2 * LEVELS];
+		}
+	};
+
+	private final Codec codec;
+	private final int level;
+
+	public GelfCompressor(Codec codec, int level) {
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("Compression level must be between 0 and 9: " + level);
+		}
+		this.codec = codec;
+		this.level = level;
+	}
+
+	/**
+	 * @return the compressed input in the calling thread's reusable buffer, valid until this thread's
+	 * next call; for {@link Codec#NONE} the input buffer itself
+	 */
+	public GelfBuffer compress(GelfBuffer input) {
+		if (codec == Codec.NONE) {
+			return input;
+		}
+
+		State current = state();
+		GelfBuffer output = current.output;
+		output.reset();
+		if (codec == Codec.GZIP) {
+			output.write(GZIP_HEADER);
+		}
+
+		Deflater deflater = current.deflater;
+		deflater.reset();
+		deflater.setInput(input.array(), 0, input.size());
+		deflater.finish();
+		output.ensureCapacity(input.size() / 2 + MINIMUM_OUTPUT_ROOM);
+		while (!deflater.finished()) {
+			if (output.array().length - output.size() < MINIMUM_OUTPUT_ROOM) {
+				output.ensureCapacity(output.array().length);
+			}
+			int written = deflater.deflate(output.array(), output.size(), output.array().length - output.size());
+			output.advance(written);
+		}
+		// release the reference to the caller's array
+		deflater.setInput(GZIP_HEADER, 0, 0);
+
+		if (codec == Codec.GZIP) {
+			CRC32 crc = current.crc;
+			crc.reset();
+			crc.update(input.array(), 0, input.size());
+			writeIntLE((int) crc.getValue(), output);
+			writeIntLE(input.size(), output);
+		}
+		return output;
+	}
+
+	private State state() {
+		State[] states = STATES.get();
+		int index = (codec == Codec.GZIP ? 0 : LEVELS) + level + 1;
+		State current = states[index];
+		if (current == null) {
+			current = new State(new Deflater(level, codec == Codec.GZIP));
+			states[index] = current;
+		}
+		return current;
+	}
+
+	public Codec getCodec() {
+		return codec;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	private static void writeIntLE(int value, GelfBuffer output) {
+		output.write(value);
+		output.write(value >>> 8);
+		output.write(value >>> 16);
+		output.write(value >>> 24);
+	}
+
+	private static class State {
+		private final Deflater deflater;
+		private final CRC32 crc = new CRC32();
+		private final GelfBuffer output = new GelfBuffer();
+
+		private State(Deflater deflater) {
+			this.deflater = deflater;
+		}
+	}
+}
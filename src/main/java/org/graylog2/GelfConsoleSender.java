@@ -3,44 +3,214 @@ package org.graylog2;
 import org.graylog2.log4j2.GelfConsoleAppender.Target;
 
 import java.io.*;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Writes GELF messages as JSON lines to stdout or stderr.
+ * <p>
+ * By default each message is written through {@link System#out} or {@link System#err}. When buffered,
+ * loggers encode their lines and hand them to a single writer thread through a lock-free ring; only the
+ * writer copies them into its batch buffer and writes that to the file descriptor's channel, bypassing the
+ * synchronized system streams, once per flush interval or when it is full. Loggers then only wait while
+ * the ring is full. Output of the system streams and of a buffered sender may interleave at line
+ * boundaries only.
+ */
 public class GelfConsoleSender implements GelfSender {
 
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int QUEUE_SIZE = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
     private Target target;
+    private OutputStream console;
+    private WritableByteChannel channel;
+    private int bufferSize;
+    private long flushIntervalNanos;
+    private GelfRingBuffer<GelfBuffer> queue;
+    private GelfRingBuffer<GelfBuffer> free;
+    private GelfBuffer batch;
+    private int batchLines;
+    private Thread writer;
+    private volatile boolean writerParked = false;
+    private volatile boolean shutdown = false;
+    private GelfMetrics metrics = new GelfMetrics();
 
     public GelfConsoleSender(Target t) {
         this.target = t;
+        this.console = t == Target.SYSTEM_ERR ? new SystemErrStream() : new SystemOutStream();
+    }
+
+    /**
+     * A buffered sender writing from a background thread.
+     */
+    public GelfConsoleSender(Target t, long flushIntervalMillis, int bufferSize) {
+        // the stream is not closed, which would close the descriptor itself
+        this(t, new FileOutputStream(t == Target.SYSTEM_ERR ? FileDescriptor.err : FileDescriptor.out).getChannel(),
+                flushIntervalMillis, bufferSize);
+    }
+
+    GelfConsoleSender(Target t, WritableByteChannel channel, long flushIntervalMillis, int bufferSize) {
+        this.target = t;
+        this.channel = channel;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.bufferSize = Math.max(1024, bufferSize);
+        this.queue = new GelfRingBuffer<GelfBuffer>(QUEUE_SIZE);
+        this.free = new GelfRingBuffer<GelfBuffer>(QUEUE_SIZE);
+        this.batch = new GelfBuffer(this.bufferSize);
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "GelfConsoleSender-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
     }
 
     public boolean sendMessage(GelfMessage message) {
         try {
             if (!message.isValid()) return false;
-            appendToConsole(message.toJson() + "\n");
+            long start = System.nanoTime();
+            GelfBuffer buffer = message.encodeJson();
+            buffer.write('\n');
+            metrics.serialized(System.nanoTime() - start, buffer.size());
+            if (channel != null) {
+                return append(buffer);
+            }
+            appendToConsole(buffer);
         } catch (IOException e) {
+            metrics.messageFailed();
             return false;
         }
 
         return true;
     }
 
-    public void close() {
-        //We can never close stdout/stderr.
+    private boolean append(GelfBuffer json) {
+        // the encoded JSON is thread-local, so it is copied into a line the writer hands back
+        GelfBuffer line = free.poll();
+        if (line == null) {
+            line = new GelfBuffer(json.size());
+        }
+        line.write(json.array(), 0, json.size());
+        while (!shutdown && !queue.offer(line)) {
+            // the writer drains the ring into its batch as soon as it runs
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+        }
+        if (shutdown) {
+            metrics.messageDropped();
+            return false;
+        }
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+        return true;
     }
 
-    private void appendToConsole(String message) throws IOException {
-        final String enc = Charset.defaultCharset().name();
+    private void writeLoop() {
+        long batchStarted = 0;
+        while (true) {
+            GelfBuffer line = queue.poll();
+            if (line != null) {
+                if (batch.size() > 0 && batch.size() + line.size() > bufferSize) {
+                    writeBatch();
+                }
+                if (line.size() >= bufferSize) {
+                    // a line larger than the buffer is written on its own
+                    write(line, 1);
+                    continue;
+                }
+                if (batch.size() == 0) {
+                    batchStarted = System.nanoTime();
+                }
+                batch.write(line.array(), 0, line.size());
+                batchLines++;
+                line.reset();
+                free.offer(line);
+                if (batch.size() >= bufferSize) {
+                    writeBatch();
+                }
+            } else if (batch.size() > 0) {
+                long remaining = flushIntervalNanos - (System.nanoTime() - batchStarted);
+                if (remaining <= 0 || shutdown) {
+                    writeBatch();
+                } else {
+                    LockSupport.parkNanos(this, remaining);
+                }
+            } else if (shutdown) {
+                return;
+            } else {
+                writerParked = true;
+                // re-check after publishing the flag so a concurrent logger cannot miss the wake-up
+                if (queue.isEmpty() && !shutdown) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                writerParked = false;
+            }
+        }
+    }
+
+    private void writeBatch() {
+        write(batch, batchLines);
+        batchLines = 0;
+    }
+
+    private void write(GelfBuffer lines, int count) {
+        ByteBuffer bytes = ByteBuffer.wrap(lines.array(), 0, lines.size());
+        long start = System.nanoTime();
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            metrics.written(System.nanoTime() - start);
+            metrics.messagesSent(count);
+        } catch (IOException e) {
+            // the console is gone, nothing left to report to
+            metrics.messagesFailed(count);
+        } finally {
+            lines.reset();
+        }
+    }
+
+    public void setMetrics(GelfMetrics metrics) {
+        this.metrics = metrics;
+    }
 
-        PrintStream printStream = new PrintStream(getOutputStream(target), true, enc);
-        printStream.write(message.getBytes(enc));
+    public GelfMetrics getMetrics() {
+        return metrics;
     }
 
-    private OutputStream getOutputStream(Target t) {
-        if (t.equals(Target.SYSTEM_ERR)) {
-            return new SystemErrStream();
+    /**
+     * Writes what is buffered and stops the writer thread; the console itself stays open.
+     */
+    public void close() {
+        //We can never close stdout/stderr.
+        if (writer != null) {
+            shutdown = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
+    }
 
-        return new SystemOutStream();
+    private void appendToConsole(GelfBuffer message) throws IOException {
+        long start = System.nanoTime();
+        console.write(message.array(), 0, message.size());
+        console.flush();
+        metrics.written(System.nanoTime() - start);
+        metrics.messageSent();
     }
 
     /**
@@ -0,0 +1,45 @@
+package org.graylog2;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads updates over padded cells picked by thread, like Java 8's LongAdder, so that
+ * logging threads incrementing it concurrently do not contend on one cache line. Reads sum all cells.
+ */
+public class GelfCounter {
+
+    private static final int STRIPE_BITS = stripeBits(Runtime.getRuntime().availableProcessors());
+    // 8 longs apart, so neighbouring cells sit on different 64 byte cache lines
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray((1 << STRIPE_BITS) * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long value) {
+        cells.getAndAdd(cell(), value);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the index of the calling thread's cell in an array of {@code 1 << STRIPE_BITS} padded cells.
+     */
+    static int cell() {
+        return (int) (GelfRandomMessageIdGenerator.mix(Thread.currentThread().getId()) >>> (64 - STRIPE_BITS)) * PADDING;
+    }
+
+    private static int stripeBits(int processors) {
+        // twice the processors, so that threads rarely share a cell, capped at 64 cells
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, processors * 2 - 1));
+        return Math.max(1, Math.min(bits, 6));
+    }
+}
@@ -0,0 +1,162 @@
+package org.graylog2;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Insertion-ordered map backed by parallel arrays. Clearing keeps the arrays, so a message that is
+ * reused for every event can collect its additional fields without allocating; messages rarely carry
+ * more than a few dozen fields, so the linear lookup is cheaper than hashing into entry nodes.
+ */
+public class GelfFieldMap extends AbstractMap<String, Object> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private String[] keys;
+    private Object[] values;
+    private int size;
+
+    public GelfFieldMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public GelfFieldMap(int capacity) {
+        keys = new String[Math.max(1, capacity)];
+        values = new Object[keys.length];
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            Object previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+            values = Arrays.copyOf(values, size << 1);
+        }
+        keys[size] = key;
+        values[size++] = value;
+        return null;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int index = indexOf(key);
+        return index >= 0 ? values[index] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        Object previous = values[index];
+        removeAt(index);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Index based access for iterating without an iterator.
+     */
+    public String keyAt(int index) {
+        return keys[index];
+    }
+
+    public Object valueAt(int index) {
+        return values[index];
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    private int next;
+                    private int last = -1;
+
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    public Entry<String, Object> next() {
+                        if (next >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        last = next++;
+                        return new SimpleEntry<String, Object>(keys[last], values[last]);
+                    }
+
+                    public void remove() {
+                        if (last < 0) {
+                            throw new IllegalStateException();
+                        }
+                        removeAt(last);
+                        next = last;
+                        last = -1;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int indexOf(Object key) {
+        if (key == null) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i] == null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int hash = key.hashCode();
+        for (int i = 0; i < size; i++) {
+            String candidate = keys[i];
+            if (candidate == key || (candidate != null && candidate.hashCode() == hash && candidate.equals(key))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void removeAt(int index) {
+        int moved = size - index - 1;
+        if (moved > 0) {
+            System.arraycopy(keys, index + 1, keys, index, moved);
+            System.arraycopy(values, index + 1, values, index, moved);
+        }
+        size--;
+        keys[size] = null;
+        values[size] = null;
+    }
+}
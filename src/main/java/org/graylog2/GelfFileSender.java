@@ -0,0 +1,366 @@
+package org.graylog2;
+
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends GELF messages as JSON lines to pre-allocated, memory-mapped segment files, for log shippers
+ * reading local files. Appending copies the line into the mapping, so no system call is made per message.
+ * <p>
+ * The segment being written is named {@code <name>-<sequence><suffix>.active}. It is rolled once the next
+ * line does not fit or the roll interval has passed since its first line: it is truncated to its content
+ * and renamed to {@code <name>-<sequence><suffix>}, which is the name shippers should watch. Only complete
+ * files ever carry that name, since a reader of the pre-allocated file would see its unused zeros.
+ * Segments left active by a crash are completed on the next start.
+ * <p>
+ * A segment is unmapped before it is truncated and renamed, which Windows refuses for mapped files. The JDK
+ * has no public API for that, so the JVM's internal cleaner is used where it is accessible; elsewhere the
+ * mapping is left to the garbage collector and completing can fail on Windows. Such segments stay active
+ * until the next start, and roll failures are reported through the StatusLogger.
+ */
+public class GelfFileSender implements GelfSender {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+	public static final long DEFAULT_ROLL_INTERVAL_MILLIS = 10000;
+	public static final int DEFAULT_MAX_FILES = 64;
+
+	private static final String ACTIVE_SUFFIX = ".active";
+	private static final byte LINE_DELIMITER = '\n';
+	private static final StatusLogger LOGGER = StatusLogger.getLogger();
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			// Java 9 and later; on Java 8 the buffer's own cleaner() is used
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = method;
+		} catch (Exception e) {
+			// not available
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private final File directory;
+	private final String prefix;
+	private final String suffix;
+	private final int segmentSize;
+	private final long rollIntervalMillis;
+	private final int maxFiles;
+	private final ScheduledExecutorService roller;
+	private long sequence;
+	private File activeFile;
+	private MappedByteBuffer map;
+	private long firstLineMillis;
+	private boolean closed;
+	private GelfMetrics metrics = new GelfMetrics();
+
+	public GelfFileSender(String fileName) throws IOException {
+		this(fileName, DEFAULT_SEGMENT_SIZE, DEFAULT_ROLL_INTERVAL_MILLIS, DEFAULT_MAX_FILES);
+	}
+
+	/**
+	 * @param fileName           e.g. {@code /var/log/app/gelf.log} for segments {@code gelf-000001.log} and so on
+	 * @param rollIntervalMillis 0 rolls by size only
+	 * @param maxFiles           completed segments kept; older ones are deleted, 0 keeps all
+	 */
+	public GelfFileSender(String fileName, int segmentSize, long rollIntervalMillis, int maxFiles) throws IOException {
+		File file = new File(fileName).getAbsoluteFile();
+		this.directory = file.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create log directory " + directory);
+		}
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		this.prefix = (dot > 0 ? name.substring(0, dot) : name) + "-";
+		this.suffix = dot > 0 ? name.substring(dot) : "";
+		this.segmentSize = Math.max(segmentSize, 4096);
+		this.rollIntervalMillis = rollIntervalMillis;
+		this.maxFiles = maxFiles;
+
+		recover();
+		openSegment();
+		if (rollIntervalMillis > 0) {
+			roller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "GelfFileSender-roll-" + prefix + "*" + suffix);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			long period = Math.max(1, rollIntervalMillis / 4);
+			roller.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					rollIfDue();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		} else {
+			roller = null;
+		}
+	}
+
+	/**
+	 * Completes segments left active by a previous run and continues after the highest sequence.
+	 */
+	private void recover() throws IOException {
+		String[] names = directory.list();
+		for (String name : names != null ? names : new String[0]) {
+			boolean active = name.endsWith(suffix + ACTIVE_SUFFIX);
+			long number = sequenceOf(active ? name.substring(0, name.length() - ACTIVE_SUFFIX.length()) : name);
+			if (number < 0) {
+				continue;
+			}
+			sequence = Math.max(sequence, number);
+			if (active) {
+				complete(new File(directory, name), contentLength(new File(directory, name)));
+			}
+		}
+	}
+
+	public boolean sendMessage(GelfMessage message) {
+		if (!message.isValid()) {
+			return false;
+		}
+
+		long start = System.nanoTime();
+		GelfBuffer json = message.encodeJson();
+		metrics.serialized(System.nanoTime() - start, json.size());
+		int length = json.size() + 1;
+		synchronized (this) {
+			if (closed || length > segmentSize) {
+				metrics.messageDropped();
+				return false;
+			}
+			boolean opening = map == null;
+			try {
+				if (opening) {
+					// opening the next segment failed before
+					openSegment();
+				} else if (map.remaining() < length) {
+					roll();
+				}
+			} catch (IOException e) {
+				if (!opening) {
+					// reported once, the following messages retry quietly
+					LOGGER.error("Cannot roll " + activeFile, e);
+				}
+				metrics.messageFailed();
+				return false;
+			}
+			if (map.position() == 0) {
+				firstLineMillis = System.currentTimeMillis();
+			}
+			long writing = System.nanoTime();
+			map.put(json.array(), 0, json.size());
+			map.put(LINE_DELIMITER);
+			metrics.written(System.nanoTime() - writing);
+		}
+		metrics.messageSent();
+		return true;
+	}
+
+	private synchronized void rollIfDue() {
+		if (!closed && map != null && map.position() > 0
+				&& System.currentTimeMillis() - firstLineMillis >= rollIntervalMillis) {
+			try {
+				roll();
+			} catch (IOException e) {
+				LOGGER.error("Cannot roll " + activeFile, e);
+			}
+		}
+	}
+
+	/**
+	 * Completes the active segment and starts the next one; must be called holding the lock.
+	 */
+	private void roll() throws IOException {
+		if (map.position() > 0) {
+			int length = map.position();
+			unmap();
+			// if this fails, the segment stays active until the next start
+			complete(activeFile, length);
+			openSegment();
+			deleteOldSegments();
+		}
+	}
+
+	/**
+	 * Releases the active mapping; must be called holding the lock. The buffer must never be touched again.
+	 */
+	private void unmap() {
+		MappedByteBuffer mapped = map;
+		map = null;
+		mapped.force();
+		try {
+			if (INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, mapped);
+			} else {
+				Method cleaner = mapped.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				Object clean = cleaner.invoke(mapped);
+				if (clean != null) {
+					clean.getClass().getMethod("clean").invoke(clean);
+				}
+			}
+		} catch (Exception e) {
+			// left to the garbage collector
+		}
+	}
+
+	private void openSegment() throws IOException {
+		activeFile = new File(directory, segmentName(++sequence) + ACTIVE_SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(activeFile, "rw");
+		try {
+			raf.setLength(segmentSize);
+			// the mapping stays valid after the channel is closed
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Cuts off the unused part of an active segment and gives it its final name.
+	 */
+	private void complete(File file, long length) throws IOException {
+		String name = file.getName();
+		if (length == 0) {
+			file.delete();
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+		File completed = new File(directory, name.substring(0, name.length() - ACTIVE_SUFFIX.length()));
+		if (!file.renameTo(completed)) {
+			throw new IOException("Cannot rename " + file + " to " + completed);
+		}
+	}
+
+	/**
+	 * @return the length up to the last complete line; a line torn by a crash is cut off.
+	 */
+	private static long contentLength(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			byte[] block = new byte[8192];
+			// skip the unused zeros at the end, then back to the last delimiter
+			while (length > 0) {
+				int size = (int) Math.min(block.length, length);
+				raf.seek(length - size);
+				raf.readFully(block, 0, size);
+				for (int i = size - 1; i >= 0; i--) {
+					if (block[i] == LINE_DELIMITER) {
+						return length - size + i + 1;
+					}
+				}
+				length -= size;
+			}
+			return 0;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void deleteOldSegments() {
+		if (maxFiles <= 0) {
+			return;
+		}
+		String[] names = directory.list();
+		if (names == null) {
+			return;
+		}
+		long[] completed = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			long number = sequenceOf(name);
+			if (number >= 0) {
+				completed[count++] = number;
+			}
+		}
+		Arrays.sort(completed, 0, count);
+		for (int i = 0; i < count - maxFiles; i++) {
+			new File(directory, segmentName(completed[i])).delete();
+		}
+	}
+
+	/**
+	 * @return the sequence of a completed segment name, or -1 for other files.
+	 */
+	private long sequenceOf(String name) {
+		if (!name.startsWith(prefix) || !name.endsWith(suffix) || name.length() <= prefix.length() + suffix.length()) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private String segmentName(long number) {
+		return prefix + String.format("%06d", number) + suffix;
+	}
+
+	public void setMetrics(GelfMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public GelfMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the segment currently written to.
+	 */
+	public synchronized File getActiveFile() {
+		return activeFile;
+	}
+
+	/**
+	 * Completes the active segment, so that everything written is visible to shippers.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (roller != null) {
+			roller.shutdownNow();
+		}
+		if (map != null) {
+			int length = map.position();
+			unmap();
+			try {
+				complete(activeFile, length);
+				deleteOldSegments();
+			} catch (IOException e) {
+				LOGGER.error("Cannot complete " + activeFile + ", it is completed on the next start", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package org.graylog2;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves a Graylog host and, once refreshing is started, re-resolves it periodically on a shared
+ * background thread. Senders read an immutable snapshot, so a refresh never blocks them; listeners are
+ * told when the set of addresses changes.
+ * <p>
+ * Until refreshing is started only the first address is used, as {@link InetAddress#getByName} would
+ * return it. From then on senders spread over all addresses of the first one's family: a server listening
+ * on IPv4 need not listen on IPv6, so a dual-stack name such as {@code localhost} keeps to one family.
+ * <p>
+ * Lookups go through the JVM's DNS cache, so intervals shorter than {@code networkaddress.cache.ttl}
+ * do not see changes any sooner.
+ */
+public class GelfHostResolver {
+
+	public interface Listener {
+		void addressesChanged(GelfHostResolver resolver, InetAddress[] addresses);
+	}
+
+	interface Lookup {
+		InetAddress[] lookup(String host) throws UnknownHostException;
+	}
+
+	private static final Lookup SYSTEM_LOOKUP = new Lookup() {
+		public InetAddress[] lookup(String host) throws UnknownHostException {
+			return InetAddress.getAllByName(host);
+		}
+	};
+
+	private static ScheduledExecutorService refresher;
+
+	private final String host;
+	private final Lookup lookup;
+	private final AtomicInteger next;
+	private volatile InetAddress[] addresses;
+	private volatile boolean spread;
+	private ScheduledFuture<?> refresh;
+
+	public GelfHostResolver(String host) throws UnknownHostException {
+		this(host, SYSTEM_LOOKUP);
+	}
+
+	GelfHostResolver(String host, Lookup lookup) throws UnknownHostException {
+		this.host = host;
+		this.lookup = lookup;
+		this.addresses = select(lookup.lookup(host));
+		// a random start spreads many senders of the same host over its addresses
+		this.next = new AtomicInteger(new Random().nextInt(addresses.length));
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return the current addresses; the array must not be modified.
+	 */
+	public InetAddress[] getAddresses() {
+		return addresses;
+	}
+
+	/**
+	 * @return the current addresses in turn.
+	 */
+	public InetAddress next() {
+		InetAddress[] current = addresses;
+		return current[(next.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+	}
+
+	public boolean contains(InetAddress address) {
+		for (InetAddress candidate : addresses) {
+			if (candidate.equals(address)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Spreads over all addresses of the host and re-resolves it every {@code intervalMillis}; a no-op for
+	 * intervals of 0 or less.
+	 */
+	public synchronized void startRefresh(long intervalMillis, final Listener listener) {
+		if (intervalMillis <= 0 || refresh != null) {
+			return;
+		}
+		spread = true;
+		if (refresh()) {
+			listener.addressesChanged(this, addresses);
+		}
+		refresh = refresher().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				if (refresh()) {
+					listener.addressesChanged(GelfHostResolver.this, addresses);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Resolves the host once. A failed lookup keeps the previous addresses, since a DNS outage
+	 * should not stop logging to a server that is still up.
+	 *
+	 * @return whether the set of addresses changed.
+	 */
+	boolean refresh() {
+		InetAddress[] resolved;
+		try {
+			resolved = select(lookup.lookup(host));
+		} catch (UnknownHostException e) {
+			return false;
+		}
+		if (resolved.length == 0
+				|| new HashSet<InetAddress>(Arrays.asList(resolved)).equals(new HashSet<InetAddress>(Arrays.asList(addresses)))) {
+			return false;
+		}
+		addresses = resolved;
+		return true;
+	}
+
+	/**
+	 * @return the first address, or while spreading all addresses of the first one's family
+	 */
+	private InetAddress[] select(InetAddress[] resolved) {
+		if (resolved.length <= 1) {
+			return resolved;
+		}
+		if (!spread) {
+			return new InetAddress[]{resolved[0]};
+		}
+		List<InetAddress> selected = new ArrayList<InetAddress>(resolved.length);
+		for (InetAddress address : resolved) {
+			if (address.getClass() == resolved[0].getClass()) {
+				selected.add(address);
+			}
+		}
+		return selected.toArray(new InetAddress[selected.size()]);
+	}
+
+	public synchronized void close() {
+		if (refresh != null) {
+			refresh.cancel(false);
+		}
+	}
+
+	/**
+	 * Runs a task on the refresh thread, e.g. to close a replaced connection once writes on it are done.
+	 */
+	static void schedule(Runnable task, long delayMillis) {
+		refresher().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private static synchronized ScheduledExecutorService refresher() {
+		if (refresher == null) {
+			refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "GelfHostResolver");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return refresher;
+	}
+}
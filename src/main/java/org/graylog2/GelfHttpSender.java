@@ -0,0 +1,323 @@
+package org.graylog2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GELF HTTP sender. Messages are collected into newline separated batches, as accepted by GELF HTTP
+ * inputs with bulk receiving enabled, and POSTed compressed by a small pool of threads over keep-alive
+ * connections. Requests failing with a 5xx status, 429 or an I/O error are retried with exponential
+ * backoff; other failures drop the batch.
+ * <p>
+ * A batch is posted once it reaches the batch size, once the linger time has passed since its first
+ * message, or on close. With a batch size of 0 every message is posted on its own, for inputs without
+ * bulk receiving. While all posting threads are busy and a full batch is waiting, messages are rejected.
+ */
+public class GelfHttpSender implements GelfTransportSender {
+
+	public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+	public static final long DEFAULT_LINGER_MILLIS = 50;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final long DEFAULT_RETRY_DELAY_MILLIS = 100;
+	public static final int DEFAULT_TIMEOUT_MILLIS = 5000;
+	public static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 5000;
+
+	private static final byte BATCH_DELIMITER = '\n';
+	private static final long MAX_RETRY_DELAY_MILLIS = 10000;
+
+	private final URL url;
+	private final int batchSize;
+	private final long lingerMillis;
+	private final int maxRetries;
+	private final ThreadPoolExecutor posters;
+	private final Thread flusher;
+	private final Object batchLock = new Object();
+	private final Random jitter = new Random();
+	private final AtomicLong failedCount = new AtomicLong();
+	private GelfBuffer filling;
+	private int fillingCount;
+	private long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+	private int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+	private GelfCompressor compressor = GelfCompressor.GZIP;
+	private GelfMetrics metrics = new GelfMetrics();
+	private volatile boolean shutdown = false;
+	private volatile boolean postFailing;
+
+	public GelfHttpSender(String url) throws IOException {
+		this(url, DEFAULT_BATCH_SIZE, DEFAULT_LINGER_MILLIS, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_RETRIES);
+	}
+
+	/**
+	 * @param url         the input's URL, e.g. {@code http://graylog:12201/gelf}
+	 * @param maxInFlight requests posted concurrently; as many more full batches may wait for a thread
+	 */
+	public GelfHttpSender(String url, int batchSize, long lingerMillis, int maxInFlight, int maxRetries) throws IOException {
+		this.url = new URL(url);
+		if (!this.url.getProtocol().startsWith("http")) {
+			throw new IOException("Not an HTTP URL: " + url);
+		}
+		this.batchSize = Math.max(0, batchSize);
+		this.lingerMillis = lingerMillis;
+		this.maxRetries = Math.max(0, maxRetries);
+		this.filling = newBatch();
+		final AtomicInteger threads = new AtomicInteger();
+		int poolSize = Math.max(1, maxInFlight);
+		this.posters = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(poolSize), new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "GelfHttpSender-post-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.flusher = new Thread(new Runnable() {
+			public void run() {
+				lingerLoop();
+			}
+		}, "GelfHttpSender-flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	public boolean sendMessage(GelfMessage message) {
+		if (shutdown || !message.isValid()) {
+			return false;
+		}
+
+		long start = System.nanoTime();
+		GelfBuffer json = message.encodeJson();
+		metrics.serialized(System.nanoTime() - start, json.size());
+		synchronized (batchLock) {
+			if (filling.size() > 0 && filling.size() >= batchSize && !handOff()) {
+				// every posting thread is busy and a full batch is already waiting
+				metrics.messageDropped();
+				return false;
+			}
+			boolean wasEmpty = filling.size() == 0;
+			if (!wasEmpty) {
+				// delimiters only between messages, so a single message is a plain GELF request
+				filling.write(BATCH_DELIMITER);
+			}
+			filling.write(json.array(), 0, json.size());
+			fillingCount++;
+			if (filling.size() >= batchSize) {
+				handOff();
+			} else if (wasEmpty) {
+				batchLock.notify();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Queues the batch being filled for posting; must be called holding the batch lock.
+	 *
+	 * @return false if the posting threads cannot take another batch yet.
+	 */
+	private boolean handOff() {
+		if (filling.size() == 0) {
+			return true;
+		}
+		final GelfBuffer batch = filling;
+		final int count = fillingCount;
+		try {
+			posters.execute(new Runnable() {
+				public void run() {
+					post(batch, count);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+		filling = newBatch();
+		fillingCount = 0;
+		return true;
+	}
+
+	private GelfBuffer newBatch() {
+		return new GelfBuffer(Math.max(1024, batchSize + batchSize / 4));
+	}
+
+	private void post(GelfBuffer batch, int count) {
+		long start = System.nanoTime();
+		GelfBuffer payload = compressor.compress(batch);
+		metrics.compressed(System.nanoTime() - start, payload.size());
+
+		for (int attempt = 0; ; attempt++) {
+			int status;
+			long writing = System.nanoTime();
+			try {
+				status = postOnce(payload);
+			} catch (IOException e) {
+				status = -1;
+			}
+			metrics.written(System.nanoTime() - writing);
+			if (status >= 200 && status < 300) {
+				postFailing = false;
+				metrics.messagesSent(count);
+				return;
+			}
+			boolean retryable = status == -1 || status == 429 || status >= 500;
+			if (!retryable || attempt >= maxRetries) {
+				// a rejected batch says nothing about the input, an exhausted retry does
+				postFailing = retryable;
+				failedCount.addAndGet(count);
+				metrics.messagesFailed(count);
+				return;
+			}
+			try {
+				Thread.sleep(retryDelay(attempt));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failedCount.addAndGet(count);
+				metrics.messagesFailed(count);
+				return;
+			}
+		}
+	}
+
+	private int postOnce(GelfBuffer payload) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setConnectTimeout(timeoutMillis);
+		connection.setReadTimeout(timeoutMillis);
+		connection.setFixedLengthStreamingMode(payload.size());
+		connection.setRequestProperty("Content-Type", "application/json");
+		if (compressor.getCodec() == GelfCompressor.Codec.GZIP) {
+			connection.setRequestProperty("Content-Encoding", "gzip");
+		} else if (compressor.getCodec() == GelfCompressor.Codec.ZLIB) {
+			connection.setRequestProperty("Content-Encoding", "deflate");
+		}
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(payload.array(), 0, payload.size());
+		} finally {
+			out.close();
+		}
+		int status = connection.getResponseCode();
+		// reading the body to the end returns the connection to the keep-alive cache
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (in != null) {
+			try {
+				byte[] discard = new byte[512];
+				while (in.read(discard) != -1) {
+					// drain
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Exponential backoff with equal jitter, as used for TCP reconnects.
+	 */
+	private long retryDelay(int attempt) {
+		long delay = Math.min(retryDelayMillis << Math.min(attempt, 20), MAX_RETRY_DELAY_MILLIS);
+		long half = delay / 2;
+		return half + (long) (jitter.nextDouble() * (delay - half));
+	}
+
+	private void lingerLoop() {
+		while (!shutdown) {
+			try {
+				synchronized (batchLock) {
+					while (filling.size() == 0 && !shutdown) {
+						batchLock.wait();
+					}
+					if (lingerMillis > 0) {
+						batchLock.wait(lingerMillis);
+					}
+					if (!handOff()) {
+						// posting threads are busy; try again after another linger period
+						batchLock.wait(Math.max(1, lingerMillis));
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Queues the batch being filled for posting, waiting while all posting threads are busy.
+	 */
+	public void flush() {
+		synchronized (batchLock) {
+			while (!handOff()) {
+				try {
+					batchLock.wait(10);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	public void setCompressor(GelfCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	public void setRetryDelay(long retryDelayMillis) {
+		this.retryDelayMillis = Math.max(1, retryDelayMillis);
+	}
+
+	public void setTimeout(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public void setMetrics(GelfMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public GelfMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return false after a batch has failed with an I/O error, 429 or 5xx on every retry, until a request succeeds;
+	 * posting happens in the background, so this lags behind {@link #sendMessage(GelfMessage)}
+	 */
+	public boolean isTransportAvailable() {
+		return !shutdown && !postFailing;
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * Posts what is buffered and waits up to the close timeout for requests in flight and their retries.
+	 */
+	public void close() {
+		flush();
+		shutdown = true;
+		synchronized (batchLock) {
+			batchLock.notifyAll();
+		}
+		posters.shutdown();
+		try {
+			if (!posters.awaitTermination(DEFAULT_CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				// interrupts retry backoffs; those batches count as failed
+				posters.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,416 @@
+package org.graylog2;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Streaming GELF serializer writing UTF-8 JSON straight into a {@link GelfBuffer}.
+ */
+public class GelfJsonWriter {
+
+    private static final byte[] VERSION_KEY = asciiKey("version");
+    static final byte[] HOST_KEY = asciiKey("host");
+    private static final byte[] SHORT_MESSAGE_KEY = asciiKey("short_message");
+    private static final byte[] FULL_MESSAGE_KEY = asciiKey("full_message");
+    private static final byte[] TIMESTAMP_KEY = asciiKey("timestamp");
+    private static final byte[] LEVEL_KEY = asciiKey("level");
+    static final byte[] FACILITY_KEY = asciiKey("facility");
+    private static final byte[] FILE_KEY = asciiKey("file");
+    private static final byte[] LINE_KEY = asciiKey("line");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+    private static final byte[] EMPTY_MESSAGE = ascii("\"<empty>\"");
+    private static final byte[] MIN_LONG = ascii(Long.toString(Long.MIN_VALUE));
+
+    private GelfJsonWriter() {
+    }
+
+    public static void writeMessage(GelfMessage message, GelfBuffer out) {
+        out.write('{');
+        GelfStaticFields staticFields = message.getStaticFields();
+        writeField(VERSION_KEY, message.getVersion(), out);
+        if (staticFields != null && staticFields.getEncodedHost() != null && staticFields.getHost() == message.getHost()) {
+            out.write(staticFields.getEncodedHost());
+        } else {
+            out.write(',');
+            writeField(HOST_KEY, message.getHost(), out);
+        }
+        out.write(',');
+        CharSequence messageChars = message.getMessageChars();
+        if (messageChars != null) {
+            writeMessageChars(messageChars, message.getShortMessageLength(), out);
+        } else {
+            writeField(SHORT_MESSAGE_KEY, message.getShortMessage(), out);
+            out.write(',');
+            writeField(FULL_MESSAGE_KEY, message.getFullMessage(), out);
+        }
+        out.write(',');
+        out.write(TIMESTAMP_KEY);
+        writeTimestamp(message.getTimestampMillis(), message.getNanoOfMillisecond(), out);
+        out.write(',');
+        writeField(LEVEL_KEY, message.getLevel(), out);
+        if (staticFields != null && staticFields.getEncodedFacility() != null
+                && staticFields.getFacility() == message.getFacility()) {
+            out.write(staticFields.getEncodedFacility());
+        } else {
+            out.write(',');
+            writeField(FACILITY_KEY, message.getFacility(), out);
+        }
+        if (null != message.getFile()) {
+            out.write(',');
+            writeField(FILE_KEY, message.getFile(), out);
+        }
+        if (null != message.getLine()) {
+            out.write(',');
+            writeField(LINE_KEY, message.getLine(), out);
+        }
+
+        Map<String, Object> additionalFields = message.getAdditonalFields();
+        if (staticFields != null) {
+            staticFields.writeFields(additionalFields, out);
+        }
+        if (additionalFields instanceof GelfFieldMap) {
+            // index based, so that reused messages are written without an entry iterator
+            GelfFieldMap fields = (GelfFieldMap) additionalFields;
+            for (int i = 0; i < fields.size(); i++) {
+                writeAdditionalField(fields.keyAt(i), fields.valueAt(i), out);
+            }
+        } else {
+            for (Map.Entry<String, Object> additionalField : additionalFields.entrySet()) {
+                writeAdditionalField(additionalField.getKey(), additionalField.getValue(), out);
+            }
+        }
+        out.write('}');
+    }
+
+    private static void writeAdditionalField(String key, Object value, GelfBuffer out) {
+        if (!GelfMessage.ID_NAME.equals(key)) {
+            out.write(',');
+            writeAdditionalKey(key, out);
+            writeValue(value, out);
+        }
+    }
+
+    private static void writeMessageChars(CharSequence chars, int shortLength, GelfBuffer out) {
+        out.write(SHORT_MESSAGE_KEY);
+        if (GelfMessage.isBlank(chars, shortLength)) {
+            out.write(EMPTY_MESSAGE);
+        } else {
+            out.write('"');
+            writeChars(chars, 0, shortLength, out);
+            out.write('"');
+        }
+        out.write(',');
+        out.write(FULL_MESSAGE_KEY);
+        writeString(chars, out);
+    }
+
+    /**
+     * Writes the timestamp as a JSON number of seconds, with up to six decimal places and without
+     * trailing zeros, e.g. 1500000000.12 or 1500000000.123456.
+     *
+     * @param nanoOfMillisecond sub-millisecond part; only whole microseconds are written
+     */
+    static void writeTimestamp(long millis, int nanoOfMillisecond, GelfBuffer out) {
+        long micros = millis * 1000 + nanoOfMillisecond / 1000;
+        long seconds = micros / 1000000;
+        int fraction = (int) (micros % 1000000);
+        if (fraction < 0) {
+            if (seconds == 0) {
+                out.write('-');
+            }
+            fraction = -fraction;
+        }
+        writeLong(seconds, out);
+        if (fraction != 0) {
+            int digits = 6;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            out.write('.');
+            out.ensureCapacity(digits);
+            byte[] bytes = out.array();
+            for (int i = out.size() + digits - 1; i >= out.size(); i--) {
+                bytes[i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            out.advance(digits);
+        }
+    }
+
+    static void writeLong(long value, GelfBuffer out) {
+        if (value == Long.MIN_VALUE) {
+            out.write(MIN_LONG);
+            return;
+        }
+        if (value < 0) {
+            out.write('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        out.ensureCapacity(digits);
+        byte[] bytes = out.array();
+        int end = out.size() + digits;
+        for (int i = end - 1; i >= out.size(); i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        out.advance(digits);
+    }
+
+    /**
+     * Writes {@code "_key":}, prefixing the underscore without building a new String.
+     */
+    public static void writeAdditionalKey(String key, GelfBuffer out) {
+        out.write('"');
+        out.write('_');
+        writeChars(key, out);
+        out.write('"');
+        out.write(':');
+    }
+
+    public static void writeValue(Object value, GelfBuffer out) {
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                out.write(NULL);
+            } else {
+                writeAscii(value.toString(), out);
+            }
+        } else if (value instanceof Number) {
+            writeAscii(value.toString(), out);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof CharSequence) {
+            writeString((CharSequence) value, out);
+        } else {
+            writeString(value.toString(), out);
+        }
+    }
+
+    public static void writeString(CharSequence value, GelfBuffer out) {
+        if (value == null) {
+            out.write(NULL);
+            return;
+        }
+        out.write('"');
+        writeChars(value, out);
+        out.write('"');
+    }
+
+    private static void writeField(byte[] key, String value, GelfBuffer out) {
+        out.write(key);
+        writeString(value, out);
+    }
+
+    /**
+     * Encodes the characters as escaped JSON string content in UTF-8, without surrounding quotes.
+     */
+    static void writeChars(CharSequence value, GelfBuffer out) {
+        writeChars(value, 0, value.length(), out);
+    }
+
+    static void writeChars(CharSequence value, int start, int end, GelfBuffer out) {
+        // Three bytes cover every BMP character; escapes reserve their own room below.
+        out.ensureCapacity((end - start) * 3);
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c < 0x20 || c == '"' || c == '\\') {
+                    // keep three bytes per remaining char reserved after the longer escape sequence
+                    out.ensureCapacity(6 + (end - i - 1) * 3);
+                    writeEscape(c, out);
+                } else {
+                    out.put(c);
+                }
+            } else if (c < 0x800) {
+                out.put(0xc0 | (c >> 6));
+                out.put(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.put(0xf0 | (codePoint >> 18));
+                out.put(0x80 | ((codePoint >> 12) & 0x3f));
+                out.put(0x80 | ((codePoint >> 6) & 0x3f));
+                out.put(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates cannot be represented in UTF-8
+                out.put('?');
+            } else {
+                out.put(0xe0 | (c >> 12));
+                out.put(0x80 | ((c >> 6) & 0x3f));
+                out.put(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private static void writeEscape(char c, GelfBuffer out) {
+        out.put('\\');
+        switch (c) {
+            case '"':
+                out.put('"');
+                break;
+            case '\\':
+                out.put('\\');
+                break;
+            case '\n':
+                out.put('n');
+                break;
+            case '\r':
+                out.put('r');
+                break;
+            case '\t':
+                out.put('t');
+                break;
+            case '\b':
+                out.put('b');
+                break;
+            case '\f':
+                out.put('f');
+                break;
+            default:
+                out.put('u');
+                out.put('0');
+                out.put('0');
+                out.put(HEX[c >> 4]);
+                out.put(HEX[c & 0xf]);
+        }
+    }
+
+    /**
+     * Finds the string values that may be shortened to make an encoded message fit: full_message and the
+     * additional fields. Expects the flat object this writer produces, but works on any encoded message, so
+     * that replayed messages can be shortened as well.
+     *
+     * @return start and end offsets of each value's content, without the quotes
+     */
+    static int[] truncatableValues(GelfBuffer json) {
+        byte[] b = json.array();
+        int length = json.size();
+        int[] spans = new int[16];
+        int count = 0;
+        int i = 1;
+        while (true) {
+            while (i < length && b[i] != '"' && b[i] != '}') {
+                i++;
+            }
+            if (i >= length || b[i] == '}') {
+                return Arrays.copyOf(spans, count);
+            }
+            int keyStart = i + 1;
+            int keyEnd = stringEnd(b, keyStart, length);
+            i = keyEnd + 1;
+            while (i < length && (b[i] == ':' || b[i] >= 0 && b[i] <= ' ')) {
+                i++;
+            }
+            if (i < length && b[i] == '"') {
+                int start = i + 1;
+                int end = stringEnd(b, start, length);
+                if (keyEnd > keyStart && (b[keyStart] == '_' || isKey(b, keyStart, keyEnd, FULL_MESSAGE_KEY))) {
+                    if (count == spans.length) {
+                        spans = Arrays.copyOf(spans, count * 2);
+                    }
+                    spans[count++] = start;
+                    spans[count++] = end;
+                }
+                i = end + 1;
+            } else {
+                while (i < length && b[i] != ',' && b[i] != '}') {
+                    i++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies an encoded message, cutting the given values to at most {@code maxLength} bytes each. Values are
+     * cut between characters and escape sequences, so the result stays valid UTF-8 JSON.
+     *
+     * @param values as returned by {@link #truncatableValues(GelfBuffer)}
+     * @return the number of values that were cut
+     */
+    static int writeTruncated(GelfBuffer json, int[] values, int maxLength, GelfBuffer out) {
+        byte[] b = json.array();
+        int from = 0;
+        int cut = 0;
+        for (int v = 0; v < values.length; v += 2) {
+            int start = values[v];
+            int end = values[v + 1];
+            if (end - start > maxLength) {
+                int p = start;
+                while (p < end) {
+                    int next = p + (b[p] == '\\' ? (b[p + 1] == 'u' ? 6 : 2) : utf8Length(b[p]));
+                    if (next - start > maxLength) {
+                        break;
+                    }
+                    p = next;
+                }
+                out.write(b, from, p - from);
+                from = end;
+                cut++;
+            }
+        }
+        out.write(b, from, json.size() - from);
+        return cut;
+    }
+
+    private static int stringEnd(byte[] b, int start, int length) {
+        int i = start;
+        while (i < length && b[i] != '"') {
+            i += b[i] == '\\' ? 2 : 1;
+        }
+        return Math.min(i, length);
+    }
+
+    /**
+     * @param key as written, i.e. quoted and followed by a colon
+     */
+    private static boolean isKey(byte[] b, int start, int end, byte[] key) {
+        if (end - start != key.length - 3) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (b[i] != key[i - start + 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int utf8Length(byte lead) {
+        if ((lead & 0x80) == 0) {
+            return 1;
+        }
+        if ((lead & 0xe0) == 0xc0) {
+            return 2;
+        }
+        return (lead & 0xf0) == 0xe0 ? 3 : 4;
+    }
+
+    private static void writeAscii(String value, GelfBuffer out) {
+        int length = value.length();
+        out.ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            out.put(value.charAt(i));
+        }
+    }
+
+    private static byte[] asciiKey(String key) {
+        return ascii("\"" + key + "\":");
+    }
+
+    static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+}
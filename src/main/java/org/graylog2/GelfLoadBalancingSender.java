@@ -0,0 +1,219 @@
+package org.graylog2;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads messages over several member senders, e.g. one per Graylog input. A member whose transport
+ * fails is taken out of rotation and the message is retried on the next one; after a backoff a single
+ * message probes the member again, and a successful send puts it back. A message the member rejects
+ * while its transport works, e.g. one too large for UDP, is retried on the next member as well, but the
+ * member stays in rotation. Members that are no {@link GelfTransportSender} are taken out by any failed send.
+ * <p>
+ * Members may be any mix of UDP and TCP senders. TCP members are also checked actively: they are
+ * skipped while not connected, blocking ones while their circuit is not closed, and their background
+ * reconnects, which back off like the probes here, put them back in rotation as soon as they succeed.
+ * Other members, UDP and HTTP among them, are only taken out once sending fails; a UDP member cannot
+ * tell whether anyone receives its datagrams, so it stays in rotation unless writing itself fails.
+ */
+public class GelfLoadBalancingSender implements GelfTransportSender {
+
+	public static final long DEFAULT_INITIAL_RETRY_DELAY_MILLIS = 1000;
+	public static final long DEFAULT_MAX_RETRY_DELAY_MILLIS = 60000;
+
+	public enum Strategy {
+		/** Members take turns. */
+		ROUND_ROBIN,
+		/**
+		 * The member with the fewest bytes queued or being written gets the message. Only non-blocking TCP
+		 * members report queued bytes; for the others only the bytes inside a blocking send count, which is
+		 * about zero for UDP, batching and HTTP members, so this is meant for {@link GelfTCPNioSender} members.
+		 */
+		LEAST_OUTSTANDING_BYTES
+	}
+
+	private final Member[] members;
+	private final Strategy strategy;
+	private final AtomicInteger next = new AtomicInteger();
+	private final Random jitter = new Random();
+	private long initialRetryDelayMillis = DEFAULT_INITIAL_RETRY_DELAY_MILLIS;
+	private long maxRetryDelayMillis = DEFAULT_MAX_RETRY_DELAY_MILLIS;
+	private volatile boolean shutdown = false;
+
+	public GelfLoadBalancingSender(List<? extends GelfSender> senders, Strategy strategy) {
+		if (senders.isEmpty()) {
+			throw new IllegalArgumentException("At least one member sender is required");
+		}
+		this.members = new Member[senders.size()];
+		for (int i = 0; i < members.length; i++) {
+			members[i] = new Member(senders.get(i));
+		}
+		this.strategy = strategy;
+	}
+
+	public boolean sendMessage(GelfMessage message) {
+		if (shutdown || !message.isValid()) {
+			return false;
+		}
+
+		long now = System.currentTimeMillis();
+		int start = next.getAndIncrement() & Integer.MAX_VALUE;
+		int first = strategy == Strategy.LEAST_OUTSTANDING_BYTES ? leastOutstanding(start, now) : start;
+		// failover walks the ring from the chosen member; each member is tried at most once
+		for (int i = 0; i < members.length; i++) {
+			Member member = members[(first + i) % members.length];
+			if (member.acquire(now) && member.send(message)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int leastOutstanding(int start, long now) {
+		int best = start;
+		long bestBytes = Long.MAX_VALUE;
+		// starting at the round-robin position spreads ties instead of always favouring the first member
+		for (int i = 0; i < members.length; i++) {
+			int index = (start + i) % members.length;
+			Member member = members[index];
+			if (member.isAvailable(now)) {
+				long bytes = member.outstandingBytes();
+				if (bytes < bestBytes) {
+					best = index;
+					bestBytes = bytes;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Exponential backoff with equal jitter, as used for TCP reconnects.
+	 */
+	private long retryDelay(int failures) {
+		long delay = initialRetryDelayMillis << Math.min(failures - 1, 20);
+		if (delay <= 0 || delay > maxRetryDelayMillis) {
+			delay = maxRetryDelayMillis;
+		}
+		long half = delay / 2;
+		return half + (long) (jitter.nextDouble() * (delay - half));
+	}
+
+	public void setRetryDelays(long initialMillis, long maxMillis) {
+		this.initialRetryDelayMillis = Math.max(1, initialMillis);
+		this.maxRetryDelayMillis = Math.max(this.initialRetryDelayMillis, maxMillis);
+	}
+
+	public int getMemberCount() {
+		return members.length;
+	}
+
+	/**
+	 * @return the number of members currently in rotation.
+	 */
+	public int getHealthyCount() {
+		int healthy = 0;
+		for (Member member : members) {
+			if (member.failures.get() == 0 && member.isConnected()) {
+				healthy++;
+			}
+		}
+		return healthy;
+	}
+
+	/**
+	 * @return whether any member is in rotation
+	 */
+	public boolean isTransportAvailable() {
+		return !shutdown && getHealthyCount() > 0;
+	}
+
+	public void close() {
+		shutdown = true;
+		for (Member member : members) {
+			member.sender.close();
+		}
+	}
+
+	private final class Member {
+		private final GelfSender sender;
+		private final AtomicLong inFlightBytes = new AtomicLong();
+		private final AtomicInteger failures = new AtomicInteger();
+		/** While failing, the earliest time of the next probe; claimed by CAS so only one thread probes. */
+		private final AtomicLong retryAt = new AtomicLong();
+
+		Member(GelfSender sender) {
+			this.sender = sender;
+			if (sender instanceof GelfTCPSender) {
+				((GelfTCPSender) sender).addStateListener(new GelfTCPSender.StateListener() {
+					public void stateChanged(GelfTCPSender tcp, GelfTCPSender.CircuitState previous,
+											 GelfTCPSender.CircuitState current) {
+						if (current == GelfTCPSender.CircuitState.CLOSED) {
+							// reconnected, no need to wait for the next probe
+							failures.set(0);
+						}
+					}
+				});
+			}
+		}
+
+		boolean isAvailable(long now) {
+			return isConnected() && (failures.get() == 0 || now >= retryAt.get());
+		}
+
+		/**
+		 * @return whether the caller may send to this member; a failing member admits one probe per backoff.
+		 */
+		boolean acquire(long now) {
+			if (!isConnected()) {
+				return false;
+			}
+			if (failures.get() == 0) {
+				return true;
+			}
+			long due = retryAt.get();
+			return now >= due && retryAt.compareAndSet(due, now + retryDelay(failures.get()));
+		}
+
+		boolean isConnected() {
+			if (sender instanceof GelfTCPSender) {
+				// before the first connection is made, sends wait for it
+				GelfTCPSender tcp = (GelfTCPSender) sender;
+				return tcp.getState() == GelfTCPSender.CircuitState.CLOSED || tcp.isStarting();
+			}
+			// the non-blocking sender would queue messages until it connects
+			return !(sender instanceof GelfTCPNioSender) || ((GelfTCPNioSender) sender).isConnected();
+		}
+
+		boolean send(GelfMessage message) {
+			long size = message.estimatedSize();
+			inFlightBytes.addAndGet(size);
+			boolean sent;
+			try {
+				sent = sender.sendMessage(message);
+			} finally {
+				inFlightBytes.addAndGet(-size);
+			}
+			// TCP members are still available while starting, when a batching one buffers instead of sending
+			boolean available = sender instanceof GelfTCPSender ? isConnected()
+					: sender instanceof GelfTransportSender ? ((GelfTransportSender) sender).isTransportAvailable() : sent;
+			if (sent && available) {
+				failures.set(0);
+			} else if (!available) {
+				retryAt.set(System.currentTimeMillis() + retryDelay(failures.incrementAndGet()));
+			}
+			// otherwise only this message was rejected, the member stays in rotation
+			return sent;
+		}
+
+		long outstandingBytes() {
+			long bytes = inFlightBytes.get();
+			if (sender instanceof GelfTCPNioSender) {
+				bytes += ((GelfTCPNioSender) sender).getPendingBytes();
+			}
+			return bytes;
+		}
+	}
+}
@@ -1,36 +1,42 @@
 package org.graylog2;
 
-import org.json.simple.JSONValue;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.math.BigDecimal;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
 
 public class GelfMessage {
 
-    private static final String ID_NAME = "id";
+    static final String ID_NAME = "id";
+    static final Charset UTF8 = Charset.forName("UTF-8");
     private static final String GELF_VERSION = "1.0";
     private static final byte[] GELF_CHUNKED_ID = new byte[]{0x1e, 0x0f};
-    private static final int MAXIMUM_CHUNK_SIZE = 1420;
-    private static final BigDecimal TIME_DIVISOR = new BigDecimal(1000);
+    static final int CHUNK_HEADER_LENGTH = 12;
+    static final int MAXIMUM_CHUNK_SIZE = 1420;
+    private static final ThreadLocal<GelfBuffer> JSON_BUFFER = new ThreadLocal<GelfBuffer>() {
+        @Override
+        protected GelfBuffer initialValue() {
+            return new GelfBuffer();
+        }
+    };
 
     private String version = GELF_VERSION;
     private String host;
-    private byte[] hostBytes = lastFourAsciiBytes("none");
     private String shortMessage;
     private String fullMessage;
+    private CharSequence messageChars;
+    private int shortMessageLength;
     private long javaTimestamp;
+    private int nanoOfMillisecond;
     private String level;
     private String facility = "gelf-java";
     private String line;
     private String file;
     private Map<String, Object> additonalFields = new HashMap<String, Object>();
+    private GelfStaticFields staticFields;
+    private GelfMessageIdGenerator messageIdGenerator = GelfRandomMessageIdGenerator.INSTANCE;
+    private byte[] encodedJson;
+    private int encodedJsonLength;
 
     public GelfMessage() {
     }
@@ -48,41 +54,82 @@ public class GelfMessage {
         this.file = file;
     }
 
-    public String toJson() {
-        Map<String, Object> map = new HashMap<String, Object>();
-
-        map.put("version", getVersion());
-        map.put("host", getHost());
-        map.put("short_message", getShortMessage());
-        map.put("full_message", getFullMessage());
-        map.put("timestamp", getTimestamp());
-
-        map.put("level", getLevel());
-        map.put("facility", getFacility());
-        if (null != getFile()) {
-            map.put("file", getFile());
-        }
-        if (null != getLine()) {
-            map.put("line", getLine());
-        }
+    /**
+     * Resets all properties to their defaults so that the message can be populated again.
+     * The additional field map is cleared rather than replaced.
+     */
+    public void clear() {
+        version = GELF_VERSION;
+        host = null;
+        shortMessage = null;
+        fullMessage = null;
+        messageChars = null;
+        shortMessageLength = 0;
+        javaTimestamp = 0;
+        nanoOfMillisecond = 0;
+        level = null;
+        facility = "gelf-java";
+        line = null;
+        file = null;
+        staticFields = null;
+        encodedJson = null;
+        encodedJsonLength = 0;
+        additonalFields.clear();
+    }
 
-        for (Map.Entry<String, Object> additionalField : additonalFields.entrySet()) {
-            if (!ID_NAME.equals(additionalField.getKey())) {
-                map.put("_" + additionalField.getKey(), additionalField.getValue());
-            }
+    public String toJson() {
+        GelfBuffer buffer = encodeJson();
+        return new String(buffer.array(), 0, buffer.size(), UTF8);
+    }
+
+    /**
+     * Serializes this message into the calling thread's reusable buffer.
+     *
+     * @return the thread's buffer; its content is only valid until the next message is encoded on this thread.
+     */
+    public GelfBuffer encodeJson() {
+        GelfBuffer buffer = JSON_BUFFER.get();
+        buffer.reset();
+        if (encodedJson != null) {
+            buffer.write(encodedJson, 0, encodedJsonLength);
+        } else {
+            GelfJsonWriter.writeMessage(this, buffer);
         }
-
-        return JSONValue.toJSONString(map);
+        return buffer;
     }
 
+    /**
+     * @deprecated copies every chunk with the default chunk size; {@link GelfUDPSender} slices the compressed
+     * message in place with its configured chunk size
+     */
+    @Deprecated
     public ByteBuffer[] toBuffers() {
-        byte[] messageBytes = gzipMessage(toJson());
+        return toBuffers(null);
+    }
+
+    /**
+     * @deprecated copies every chunk with the default chunk size; {@link GelfUDPSender} slices the compressed
+     * message in place with its configured chunk size
+     * @param metrics counts the message as dropped if it needs more than {@link GelfUDPSender#MAXIMUM_CHUNKS}
+     *                chunks, which GELF inputs discard; may be null
+     * @return the datagrams of the gzipped message, none if it is dropped
+     */
+    @Deprecated
+    public ByteBuffer[] toBuffers(GelfMetrics metrics) {
+        byte[] messageBytes = GelfCompressor.GZIP.compress(encodeJson()).toByteArray();
         // calculate the length of the datagrams array
         int diagrams_length = messageBytes.length / MAXIMUM_CHUNK_SIZE;
         // In case of a remainder, due to the integer division, add a extra datagram
         if (messageBytes.length % MAXIMUM_CHUNK_SIZE != 0) {
             diagrams_length++;
         }
+        if (diagrams_length > GelfUDPSender.MAXIMUM_CHUNKS) {
+            // the sequence count is a single byte, and inputs would not reassemble the message anyway
+            if (metrics != null) {
+                metrics.messageDropped();
+            }
+            return new ByteBuffer[0];
+        }
         ByteBuffer[] datagrams = new ByteBuffer[diagrams_length];
         if (messageBytes.length > MAXIMUM_CHUNK_SIZE) {
             sliceDatagrams(messageBytes, datagrams);
@@ -95,69 +142,30 @@ public class GelfMessage {
     }
 
     public ByteBuffer toBuffer() {
-        byte[] messageBytes = gzipMessage(toJson());
-        ByteBuffer buffer = ByteBuffer.allocate(messageBytes.length);
-        buffer.put(messageBytes);
-        buffer.flip();
-        return buffer;
+        return ByteBuffer.wrap(GelfCompressor.GZIP.compress(encodeJson()).toByteArray());
     }
 
     private void sliceDatagrams(byte[] messageBytes, ByteBuffer[] datagrams) {
         int messageLength = messageBytes.length;
-        byte[] messageId = ByteBuffer.allocate(8)
-                .putInt(getCurrentMillis())       // 4 least-significant-bytes of the time in millis
-                .put(hostBytes)                                // 4 least-significant-bytes of the host
-                .array();
+        long messageId = messageIdGenerator.nextId();
 
         // Reuse length of datagrams array since this is supposed to be the correct number of datagrams
         int num = datagrams.length;
         for (int idx = 0; idx < num; idx++) {
-            byte[] header = concatByteArray(GELF_CHUNKED_ID, concatByteArray(messageId, new byte[]{(byte) idx, (byte) num}));
             int from = idx * MAXIMUM_CHUNK_SIZE;
-            int to = from + MAXIMUM_CHUNK_SIZE;
-            if (to >= messageLength) {
-                to = messageLength;
-            }
-            byte[] datagram = concatByteArray(header, Arrays.copyOfRange(messageBytes, from, to));
-            datagrams[idx] = ByteBuffer.allocate(datagram.length);
-            datagrams[idx].put(datagram);
+            int length = Math.min(MAXIMUM_CHUNK_SIZE, messageLength - from);
+            datagrams[idx] = ByteBuffer.allocate(CHUNK_HEADER_LENGTH + length);
+            putChunkHeader(datagrams[idx], messageId, idx, num);
+            datagrams[idx].put(messageBytes, from, length);
             datagrams[idx].flip();
         }
     }
 
-    public int getCurrentMillis() {
-        return (int) System.currentTimeMillis();
-    }
-
-    private byte[] gzipMessage(String message) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
-        try {
-            GZIPOutputStream stream = new GZIPOutputStream(bos);
-            byte[] bytes;
-            try {
-                bytes = message.getBytes("UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException("No UTF-8 support available.", e);
-            }
-            stream.write(bytes);
-            stream.finish();
-            stream.close();
-            byte[] zipped = bos.toByteArray();
-            bos.close();
-            return zipped;
-        } catch (IOException e) {
-            return null;
-        }
-    }
-
-    private byte[] lastFourAsciiBytes(String host) {
-        final String shortHost = host.length() >= 4 ? host.substring(host.length() - 4) : host;
-        try {
-            return shortHost.getBytes("ASCII");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("JVM without ascii support?", e);
-        }
+    /**
+     * Writes the 12 byte GELF chunk header: magic bytes, 8 byte message id, sequence number and count.
+     */
+    static void putChunkHeader(ByteBuffer header, long messageId, int index, int count) {
+        header.put(GELF_CHUNKED_ID).putLong(messageId).put((byte) index).put((byte) count);
     }
 
     public String getVersion() {
@@ -174,35 +182,90 @@ public class GelfMessage {
 
     public void setHost(String host) {
         this.host = host;
-        this.hostBytes = lastFourAsciiBytes(host);
     }
 
     public String getShortMessage() {
+        if (messageChars != null) {
+            return !isBlank(messageChars, shortMessageLength)
+                    ? messageChars.subSequence(0, shortMessageLength).toString() : "<empty>";
+        }
         return !isEmpty(shortMessage) ? shortMessage : "<empty>";
     }
 
     public void setShortMessage(String shortMessage) {
+        detachMessageChars();
         this.shortMessage = shortMessage;
     }
 
     public String getFullMessage() {
-        return fullMessage;
+        return messageChars != null ? messageChars.toString() : fullMessage;
     }
 
     public void setFullMessage(String fullMessage) {
+        detachMessageChars();
         this.fullMessage = fullMessage;
     }
 
+    /**
+     * Uses the characters as full message and their first {@code shortMessageLength} characters as short
+     * message, without copying them. The sequence must not change until the message has been sent.
+     */
+    public void setMessage(CharSequence message, int shortMessageLength) {
+        this.messageChars = message;
+        this.shortMessageLength = Math.min(shortMessageLength, message.length());
+        this.shortMessage = null;
+        this.fullMessage = null;
+    }
+
+    CharSequence getMessageChars() {
+        return messageChars;
+    }
+
+    int getShortMessageLength() {
+        return shortMessageLength;
+    }
+
+    private void detachMessageChars() {
+        if (messageChars != null) {
+            shortMessage = getShortMessage();
+            fullMessage = messageChars.toString();
+            messageChars = null;
+        }
+    }
+
+    /**
+     * @return seconds since the epoch as written to the GELF timestamp, e.g. "1500000000.123"
+     */
     public String getTimestamp() {
-        return new BigDecimal(javaTimestamp).divide(TIME_DIVISOR).toPlainString();
+        GelfBuffer buffer = new GelfBuffer(24);
+        GelfJsonWriter.writeTimestamp(javaTimestamp, nanoOfMillisecond, buffer);
+        return new String(buffer.array(), 0, buffer.size(), UTF8);
     }
 
     public Long getJavaTimestamp() {
         return javaTimestamp;
     }
 
+    // unboxed, for the serializer
+    long getTimestampMillis() {
+        return javaTimestamp;
+    }
+
     public void setJavaTimestamp(long javaTimestamp) {
         this.javaTimestamp = javaTimestamp;
+        this.nanoOfMillisecond = 0;
+    }
+
+    /**
+     * Sets a timestamp with sub-millisecond precision; the GELF timestamp then carries microseconds.
+     */
+    public void setJavaTimestamp(long javaTimestamp, int nanoOfMillisecond) {
+        this.javaTimestamp = javaTimestamp;
+        this.nanoOfMillisecond = nanoOfMillisecond;
+    }
+
+    public int getNanoOfMillisecond() {
+        return nanoOfMillisecond;
     }
 
     public String getLevel() {
@@ -247,6 +310,35 @@ public class GelfMessage {
         return this;
     }
 
+    public GelfStaticFields getStaticFields() {
+        return staticFields;
+    }
+
+    /**
+     * Takes host and facility from the static block, and writes its pre-encoded fields along with
+     * this message's own. Static fields are not copied into {@link #getAdditonalFields()}; a field of
+     * the same name set on the message replaces the static one.
+     */
+    public void setStaticFields(GelfStaticFields staticFields) {
+        this.staticFields = staticFields;
+        if (staticFields != null) {
+            if (staticFields.getHost() != null) {
+                host = staticFields.getHost();
+            }
+            if (staticFields.getFacility() != null) {
+                facility = staticFields.getFacility();
+            }
+        }
+    }
+
+    public GelfMessageIdGenerator getMessageIdGenerator() {
+        return messageIdGenerator;
+    }
+
+    public void setMessageIdGenerator(GelfMessageIdGenerator messageIdGenerator) {
+        this.messageIdGenerator = messageIdGenerator;
+    }
+
     public Map<String, Object> getAdditonalFields() {
         return additonalFields;
     }
@@ -255,21 +347,60 @@ public class GelfMessage {
         this.additonalFields = additonalFields;
     }
 
+    /**
+     * Rough uncompressed size in bytes, for balancing load without serializing the message.
+     */
+    int estimatedSize() {
+        if (encodedJson != null) {
+            return encodedJsonLength;
+        }
+        int size = 128 + 64 * additonalFields.size();
+        if (messageChars != null) {
+            return size + messageChars.length() + shortMessageLength;
+        }
+        if (shortMessage != null) {
+            size += shortMessage.length();
+        }
+        if (fullMessage != null) {
+            size += fullMessage.length();
+        }
+        return size;
+    }
+
+    /**
+     * Makes this message send the given, already serialized JSON instead of its properties,
+     * e.g. to replay spilled messages. The array must not change until the message has been sent.
+     */
+    void setEncodedJson(byte[] json, int length) {
+        this.encodedJson = json;
+        this.encodedJsonLength = length;
+    }
+
     public boolean isValid() {
+        if (encodedJson != null) {
+            return encodedJsonLength > 0;
+        }
         return isShortOrFullMessagesExists() && !isEmpty(version) && !isEmpty(host) && !isEmpty(facility);
     }
 
     private boolean isShortOrFullMessagesExists() {
+        if (messageChars != null) {
+            return !isBlank(messageChars, messageChars.length());
+        }
         return !isEmpty(shortMessage) || !isEmpty(fullMessage);
     }
 
-    public boolean isEmpty(String str) {
-        return str == null || "".equals(str.trim());
+    // same test as isEmpty, without trimming into a new String
+    static boolean isBlank(CharSequence chars, int length) {
+        for (int i = 0; i < length; i++) {
+            if (chars.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private byte[] concatByteArray(byte[] first, byte[] second) {
-        byte[] result = Arrays.copyOf(first, first.length + second.length);
-        System.arraycopy(second, 0, result, first.length, second.length);
-        return result;
+    public boolean isEmpty(String str) {
+        return str == null || "".equals(str.trim());
     }
 }
@@ -0,0 +1,10 @@
+package org.graylog2;
+
+/**
+ * Source of the 8 byte message ids that tie GELF UDP chunks of one message together.
+ * Ids must not repeat across concurrently chunked messages, or Graylog mixes their chunks.
+ */
+public interface GelfMessageIdGenerator {
+
+	public long nextId();
+}
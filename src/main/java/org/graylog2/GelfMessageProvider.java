@@ -9,4 +9,11 @@ public interface GelfMessageProvider {
     public Map<String, String> getFields();
     public boolean isAddExtendedInformation();
     public boolean isIncludeLocation();
+    public boolean isMicrosecondTimestamps();
+    public GelfStackTraceRenderer getStackTraceRenderer();
+
+    /**
+     * @return origin host, facility and additional fields encoded once, for splicing into every message
+     */
+    public GelfStaticFields getStaticFields();
 }
@@ -0,0 +1,237 @@
+package org.graylog2;
+
+/**
+ * Counters and latency histograms of one appender and its senders. Every sender has its own instance
+ * until it is given a shared one with {@code setMetrics}; all updates are striped, so the metrics can
+ * stay on in production. Metrics of a single endpoint are created with the appender's metrics as their
+ * parent, which counts every update as well.
+ */
+public class GelfMetrics implements GelfMetricsMBean {
+
+    private final GelfCounter sent = new GelfCounter();
+    private final GelfCounter dropped = new GelfCounter();
+    private final GelfCounter failed = new GelfCounter();
+    private final GelfCounter spilled = new GelfCounter();
+    private final GelfCounter replayed = new GelfCounter();
+    private final GelfCounter bytesSerialized = new GelfCounter();
+    private final GelfCounter bytesCompressed = new GelfCounter();
+    private final GelfCounter chunkedMessages = new GelfCounter();
+    private final GelfCounter chunks = new GelfCounter();
+    private final GelfCounter reconnects = new GelfCounter();
+    private final GelfHistogram makeMessage = new GelfHistogram();
+    private final GelfHistogram serialization = new GelfHistogram();
+    private final GelfHistogram compression = new GelfHistogram();
+    private final GelfHistogram write = new GelfHistogram();
+    private volatile AsyncGelfSender queue;
+    private final GelfMetrics parent;
+
+    public GelfMetrics() {
+        this(null);
+    }
+
+    /**
+     * @param parent also receives every update, may be null
+     */
+    public GelfMetrics(GelfMetrics parent) {
+        this.parent = parent;
+    }
+
+    public void messageBuilt(long nanos) {
+        makeMessage.record(nanos);
+        if (parent != null) {
+            parent.messageBuilt(nanos);
+        }
+    }
+
+    public void messageSent() {
+        sent.increment();
+        if (parent != null) {
+            parent.messageSent();
+        }
+    }
+
+    public void messagesSent(int count) {
+        sent.add(count);
+        if (parent != null) {
+            parent.messagesSent(count);
+        }
+    }
+
+    public void messageDropped() {
+        dropped.increment();
+        if (parent != null) {
+            parent.messageDropped();
+        }
+    }
+
+    public void messageFailed() {
+        failed.increment();
+        if (parent != null) {
+            parent.messageFailed();
+        }
+    }
+
+    public void messagesFailed(int count) {
+        failed.add(count);
+        if (parent != null) {
+            parent.messagesFailed(count);
+        }
+    }
+
+    public void messageSpilled() {
+        spilled.increment();
+        if (parent != null) {
+            parent.messageSpilled();
+        }
+    }
+
+    public void messageReplayed() {
+        replayed.increment();
+        if (parent != null) {
+            parent.messageReplayed();
+        }
+    }
+
+    public void serialized(long nanos, int bytes) {
+        serialization.record(nanos);
+        bytesSerialized.add(bytes);
+        if (parent != null) {
+            parent.serialized(nanos, bytes);
+        }
+    }
+
+    public void compressed(long nanos, int bytes) {
+        compression.record(nanos);
+        bytesCompressed.add(bytes);
+        if (parent != null) {
+            parent.compressed(nanos, bytes);
+        }
+    }
+
+    public void written(long nanos) {
+        write.record(nanos);
+        if (parent != null) {
+            parent.written(nanos);
+        }
+    }
+
+    public void chunksSent(int count) {
+        chunkedMessages.increment();
+        chunks.add(count);
+        if (parent != null) {
+            parent.chunksSent(count);
+        }
+    }
+
+    public void reconnected() {
+        reconnects.increment();
+        if (parent != null) {
+            parent.reconnected();
+        }
+    }
+
+    /**
+     * Makes {@link #getQueueDepth()} report the size of the sender's queue.
+     */
+    public void setQueue(AsyncGelfSender queue) {
+        this.queue = queue;
+    }
+
+    public long getMessagesBuilt() {
+        return makeMessage.getCount();
+    }
+
+    public long getMessagesSent() {
+        return sent.sum();
+    }
+
+    public long getMessagesDropped() {
+        return dropped.sum();
+    }
+
+    public long getMessagesFailed() {
+        return failed.sum();
+    }
+
+    public long getMessagesSpilled() {
+        return spilled.sum();
+    }
+
+    public long getMessagesReplayed() {
+        return replayed.sum();
+    }
+
+    public long getBytesSerialized() {
+        return bytesSerialized.sum();
+    }
+
+    public long getBytesCompressed() {
+        return bytesCompressed.sum();
+    }
+
+    public long getChunksSent() {
+        return chunks.sum();
+    }
+
+    public double getChunksPerMessage() {
+        long messages = chunkedMessages.sum();
+        return messages == 0 ? 0 : (double) chunks.sum() / messages;
+    }
+
+    public int getQueueDepth() {
+        AsyncGelfSender current = queue;
+        return current == null ? 0 : current.getQueueSize();
+    }
+
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    public long getMakeMessageMeanNanos() {
+        return makeMessage.getMeanNanos();
+    }
+
+    public long getMakeMessageP99Nanos() {
+        return makeMessage.getPercentileNanos(99);
+    }
+
+    public long getSerializationMeanNanos() {
+        return serialization.getMeanNanos();
+    }
+
+    public long getSerializationP99Nanos() {
+        return serialization.getPercentileNanos(99);
+    }
+
+    public long getCompressionMeanNanos() {
+        return compression.getMeanNanos();
+    }
+
+    public long getCompressionP99Nanos() {
+        return compression.getPercentileNanos(99);
+    }
+
+    public long getWriteMeanNanos() {
+        return write.getMeanNanos();
+    }
+
+    public long getWriteP99Nanos() {
+        return write.getPercentileNanos(99);
+    }
+
+    public GelfHistogram getMakeMessageHistogram() {
+        return makeMessage;
+    }
+
+    public GelfHistogram getSerializationHistogram() {
+        return serialization;
+    }
+
+    public GelfHistogram getCompressionHistogram() {
+        return compression;
+    }
+
+    public GelfHistogram getWriteHistogram() {
+        return write;
+    }
+}
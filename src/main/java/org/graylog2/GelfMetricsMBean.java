@@ -0,0 +1,28 @@
+package org.graylog2;
+
+/**
+ * JMX view of {@link GelfMetrics}. Latencies are in nanoseconds.
+ */
+public interface GelfMetricsMBean {
+    long getMessagesBuilt();
+    long getMessagesSent();
+    long getMessagesDropped();
+    long getMessagesFailed();
+    long getMessagesSpilled();
+    long getMessagesReplayed();
+    long getBytesSerialized();
+    long getBytesCompressed();
+    long getChunksSent();
+    double getChunksPerMessage();
+    int getQueueDepth();
+    long getReconnects();
+
+    long getMakeMessageMeanNanos();
+    long getMakeMessageP99Nanos();
+    long getSerializationMeanNanos();
+    long getSerializationP99Nanos();
+    long getCompressionMeanNanos();
+    long getCompressionP99Nanos();
+    long getWriteMeanNanos();
+    long getWriteP99Nanos();
+}
@@ -0,0 +1,40 @@
+package org.graylog2;
+
+import java.security.SecureRandom;
+
+/**
+ * Default {@link GelfMessageIdGenerator}: every thread walks its own SplitMix64 sequence from a
+ * securely random starting point. Ids are unique within a thread, collide across threads and hosts
+ * only with 64-bit random probability, and are produced without locking or allocation.
+ */
+public class GelfRandomMessageIdGenerator implements GelfMessageIdGenerator {
+
+	public static final GelfRandomMessageIdGenerator INSTANCE = new GelfRandomMessageIdGenerator();
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	private static final SecureRandom SEEDS = new SecureRandom();
+
+	private final ThreadLocal<long[]> state = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			synchronized (SEEDS) {
+				return new long[]{SEEDS.nextLong()};
+			}
+		}
+	};
+
+	public long nextId() {
+		long[] seed = state.get();
+		return mix(seed[0] += GOLDEN_GAMMA);
+	}
+
+	/**
+	 * SplitMix64 finalizer; a bijection, so distinct sequence values always give distinct ids.
+	 * Also used to spread other 64 bit hashes over all bits.
+	 */
+	public static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,295 @@
+package org.graylog2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent FIFO of encoded GELF messages in fixed-size, memory-mapped segment files.
+ * <p>
+ * Records are appended sequentially as {@code [length][crc32][json]}; the length is written last,
+ * so a record torn by a crash reads as the end of the segment. The read cursor lives in two
+ * alternating checksummed slots of a small mapped file, so a crash while it is being updated leaves
+ * the previous position intact. Consumed segments are deleted. Once {@code maxSegments} are in use,
+ * further messages are rejected.
+ * <p>
+ * As a {@link GelfSender} the queue just stores the message, e.g. as overflow of an {@link AsyncGelfSender}.
+ */
+public class GelfSpillQueue implements GelfSender {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+	public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+	private static final int RECORD_HEADER = 8;
+	private static final int CURSOR_SLOT = 24;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".spill";
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final CRC32 crc = new CRC32();
+	private final MappedByteBuffer cursor;
+	private long cursorVersion;
+	private long cursorSegment;
+	private int cursorPosition;
+
+	private long writeSegment;
+	private MappedByteBuffer writeMap;
+	private long readSegment;
+	private int readPosition;
+	private ByteBuffer readMap;
+	private int peekedLength = -1;
+	private long spilled;
+	private long dropped;
+	private boolean closed;
+
+	public GelfSpillQueue(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+	public GelfSpillQueue(File directory, int segmentSize, int maxSegments) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create spill directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = Math.max(segmentSize, 4096);
+		this.maxSegments = Math.max(maxSegments, 1);
+		this.cursor = map(new File(directory, "cursor"), 2 * CURSOR_SLOT);
+		recover();
+	}
+
+	/**
+	 * Finds the oldest and newest segments left by a previous run and the append position in the newest.
+	 */
+	private void recover() throws IOException {
+		long oldest = Long.MAX_VALUE;
+		long newest = -1;
+		String[] names = directory.list();
+		for (String name : names != null ? names : new String[0]) {
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				try {
+					long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+					oldest = Math.min(oldest, sequence);
+					newest = Math.max(newest, sequence);
+				} catch (NumberFormatException e) {
+					// not ours
+				}
+			}
+		}
+		if (newest < 0) {
+			oldest = newest = 0;
+		}
+
+		readSegment = oldest;
+		readPosition = 0;
+		if (readCursor() && cursorSegment >= oldest && cursorSegment <= newest) {
+			readSegment = cursorSegment;
+			readPosition = cursorPosition;
+		}
+		for (long sequence = oldest; sequence < readSegment; sequence++) {
+			segmentFile(sequence).delete();
+		}
+
+		writeSegment = newest;
+		writeMap = map(segmentFile(writeSegment), segmentSize);
+		// append after the last intact record; a torn one is overwritten
+		int position = 0;
+		int length;
+		byte[] record = new byte[0];
+		while ((length = lengthAt(writeMap, position)) > 0) {
+			if (record.length < length) {
+				record = new byte[length];
+			}
+			writeMap.position(position + RECORD_HEADER);
+			writeMap.get(record, 0, length);
+			if (checksum(record, length) != writeMap.getInt(position + 4)) {
+				break;
+			}
+			position += RECORD_HEADER + length;
+		}
+		writeMap.position(position);
+		readMap = readSegment == writeSegment ? writeMap.duplicate() : map(segmentFile(readSegment), segmentSize);
+	}
+
+	public boolean sendMessage(GelfMessage message) {
+		if (!message.isValid()) {
+			return false;
+		}
+		GelfBuffer json = message.encodeJson();
+		return offer(json.array(), 0, json.size());
+	}
+
+	/**
+	 * Appends a record; rejected once it is larger than a segment or all segments are in use.
+	 */
+	public synchronized boolean offer(byte[] bytes, int off, int len) {
+		if (closed || len <= 0 || len > segmentSize - RECORD_HEADER) {
+			dropped++;
+			return false;
+		}
+		try {
+			if (writeMap.remaining() < RECORD_HEADER + len) {
+				if (writeSegment - readSegment + 1 >= maxSegments) {
+					dropped++;
+					return false;
+				}
+				writeSegment++;
+				writeMap = map(segmentFile(writeSegment), segmentSize);
+			}
+		} catch (IOException e) {
+			dropped++;
+			return false;
+		}
+
+		int start = writeMap.position();
+		writeMap.position(start + RECORD_HEADER);
+		writeMap.put(bytes, off, len);
+		crc.reset();
+		crc.update(bytes, off, len);
+		writeMap.putInt(start + 4, (int) crc.getValue());
+		// publishing the length last makes the record visible to readers, and to recovery, only once complete
+		writeMap.putInt(start, len);
+		spilled++;
+		return true;
+	}
+
+	/**
+	 * Copies the oldest record into {@code into}, replacing its content, without consuming it.
+	 *
+	 * @return false if the queue is empty.
+	 */
+	public synchronized boolean peek(GelfBuffer into) {
+		while (!closed) {
+			int length = lengthAt(readMap, readPosition);
+			if (length > 0) {
+				into.reset();
+				into.ensureCapacity(length);
+				readMap.position(readPosition + RECORD_HEADER);
+				readMap.get(into.array(), 0, length);
+				into.advance(length);
+				if (checksum(into.array(), length) == readMap.getInt(readPosition + 4)) {
+					peekedLength = length;
+					return true;
+				}
+				into.reset();
+			}
+			if (readSegment >= writeSegment) {
+				return false;
+			}
+			// the rest of this segment is unused or torn, continue with the next one
+			File consumed = segmentFile(readSegment);
+			readSegment++;
+			readPosition = 0;
+			try {
+				readMap = readSegment == writeSegment ? writeMap.duplicate() : map(segmentFile(readSegment), segmentSize);
+			} catch (IOException e) {
+				return false;
+			}
+			writeCursor();
+			consumed.delete();
+		}
+		return false;
+	}
+
+	/**
+	 * Consumes the record returned by the last {@link #peek(GelfBuffer)}.
+	 */
+	public synchronized void commit() {
+		if (peekedLength > 0) {
+			readPosition += RECORD_HEADER + peekedLength;
+			peekedLength = -1;
+			writeCursor();
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return readSegment == writeSegment && readPosition == writeMap.position();
+	}
+
+	public synchronized long getSpilledCount() {
+		return spilled;
+	}
+
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	public synchronized void close() {
+		closed = true;
+		cursor.force();
+		writeMap.force();
+	}
+
+	/**
+	 * @return the length of the complete record at the position, or 0 at the end of the data.
+	 */
+	private int lengthAt(ByteBuffer map, int position) {
+		if (position + RECORD_HEADER > segmentSize) {
+			return 0;
+		}
+		int length = map.getInt(position);
+		return length > 0 && length <= segmentSize - position - RECORD_HEADER ? length : 0;
+	}
+
+	private int checksum(byte[] bytes, int length) {
+		crc.reset();
+		crc.update(bytes, 0, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Loads the newer of the two cursor slots that has a valid checksum.
+	 */
+	private boolean readCursor() {
+		boolean found = false;
+		for (int slot = 0; slot < 2; slot++) {
+			int base = slot * CURSOR_SLOT;
+			long version = cursor.getLong(base);
+			long segment = cursor.getLong(base + 8);
+			int position = cursor.getInt(base + 16);
+			if (version > 0 && cursor.getInt(base + 20) == cursorChecksum(version, segment, position)
+					&& (!found || version > cursorVersion)) {
+				cursorVersion = version;
+				cursorSegment = segment;
+				cursorPosition = position;
+				found = true;
+			}
+		}
+		return found;
+	}
+
+	private void writeCursor() {
+		cursorVersion++;
+		int base = (int) (cursorVersion & 1) * CURSOR_SLOT;
+		cursor.putLong(base, cursorVersion);
+		cursor.putLong(base + 8, readSegment);
+		cursor.putInt(base + 16, readPosition);
+		cursor.putInt(base + 20, cursorChecksum(cursorVersion, readSegment, readPosition));
+	}
+
+	private static int cursorChecksum(long version, long segment, int position) {
+		return (int) GelfRandomMessageIdGenerator.mix(version * 31 + segment * 17 + position);
+	}
+
+	private File segmentFile(long sequence) {
+		return new File(directory, SEGMENT_PREFIX + String.format("%016d", sequence) + SEGMENT_SUFFIX);
+	}
+
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			// the mapping stays valid after the channel is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+}
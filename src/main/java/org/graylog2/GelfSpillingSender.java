@@ -0,0 +1,149 @@
+package org.graylog2;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps messages the wrapped sender cannot deliver in a {@link GelfSpillQueue} and replays them
+ * from a background thread, at most {@code replayRate} per second, once the wrapped sender accepts
+ * messages again.
+ * <p>
+ * A record the wrapped sender keeps rejecting while its transport works, e.g. a message too large to
+ * send, is dead-lettered after {@link #MAX_REPLAY_ATTEMPTS} attempts, so that it cannot block the queue.
+ * Failures while the transport is down do not count; for wrapped senders that are no
+ * {@link GelfTransportSender}, every failure counts.
+ */
+public class GelfSpillingSender implements GelfSender {
+
+	public static final int DEFAULT_REPLAY_RATE = 1000;
+	public static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+	public static final int MAX_REPLAY_ATTEMPTS = 10;
+
+	private static final long IDLE_MILLIS = 100;
+
+	private final GelfSender delegate;
+	private final GelfSpillQueue queue;
+	private final long replayIntervalNanos;
+	private final long retryDelayMillis;
+	private final Thread replayer;
+	private volatile boolean shutdown = false;
+	private volatile long replayed;
+	private volatile long deadLettered;
+	private GelfMetrics metrics = new GelfMetrics();
+
+	public GelfSpillingSender(GelfSender delegate, GelfSpillQueue queue) {
+		this(delegate, queue, DEFAULT_REPLAY_RATE, DEFAULT_RETRY_DELAY_MILLIS);
+	}
+
+	public GelfSpillingSender(GelfSender delegate, GelfSpillQueue queue, int replayRate, long retryDelayMillis) {
+		this.delegate = delegate;
+		this.queue = queue;
+		this.replayIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, replayRate);
+		this.retryDelayMillis = retryDelayMillis;
+		this.replayer = new Thread(new Runnable() {
+			public void run() {
+				replay();
+			}
+		}, "GelfSpillingSender-replay");
+		this.replayer.setDaemon(true);
+		this.replayer.start();
+	}
+
+	public boolean sendMessage(GelfMessage message) {
+		if (shutdown || !message.isValid()) {
+			return false;
+		}
+		if (delegate.sendMessage(message)) {
+			return true;
+		}
+		if (queue.sendMessage(message)) {
+			metrics.messageSpilled();
+			return true;
+		}
+		metrics.messageDropped();
+		return false;
+	}
+
+	private void replay() {
+		GelfMessage message = new GelfMessage();
+		GelfBuffer record = new GelfBuffer();
+		long nextReplay = System.nanoTime();
+		int attempts = 0;
+		try {
+			while (!shutdown) {
+				if (!queue.peek(record)) {
+					Thread.sleep(IDLE_MILLIS);
+					continue;
+				}
+				long wait = nextReplay - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				message.setEncodedJson(record.array(), record.size());
+				if (delegate.sendMessage(message)) {
+					queue.commit();
+					attempts = 0;
+					replayed++;
+					metrics.messageReplayed();
+					nextReplay = Math.max(nextReplay + replayIntervalNanos, System.nanoTime() - replayIntervalNanos);
+				} else if (isTransportDown() || ++attempts < MAX_REPLAY_ATTEMPTS) {
+					// the record stays at the head of the queue
+					Thread.sleep(retryDelayMillis);
+				} else {
+					// rejected for itself, not for an outage
+					queue.commit();
+					attempts = 0;
+					deadLettered++;
+					metrics.messageDropped();
+				}
+			}
+		} catch (InterruptedException e) {
+			// closing
+		}
+	}
+
+	private boolean isTransportDown() {
+		return delegate instanceof GelfTransportSender && !((GelfTransportSender) delegate).isTransportAvailable();
+	}
+
+	public void setMetrics(GelfMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public GelfMetrics getMetrics() {
+		return metrics;
+	}
+
+	public GelfSender getDelegate() {
+		return delegate;
+	}
+
+	public GelfSpillQueue getQueue() {
+		return queue;
+	}
+
+	public long getReplayedCount() {
+		return replayed;
+	}
+
+	/**
+	 * @return the replayed records dropped after {@link #MAX_REPLAY_ATTEMPTS} attempts
+	 */
+	public long getDeadLetterCount() {
+		return deadLettered;
+	}
+
+	/**
+	 * Stops replaying and closes the wrapped sender and the queue; unsent messages stay on disk for the next start.
+	 */
+	public void close() {
+		shutdown = true;
+		replayer.interrupt();
+		try {
+			replayer.join(DEFAULT_RETRY_DELAY_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		delegate.close();
+		queue.close();
+	}
+}
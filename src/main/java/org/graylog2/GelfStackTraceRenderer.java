@@ -0,0 +1,245 @@
+package org.graylog2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders throwables like {@link Throwable#printStackTrace()}, with their causes and suppressed exceptions,
+ * optionally limited to a number of frames per throwable, and caches the result by exception types and stack frames. An error storm repeating the
+ * same exception then costs a hash over its frames instead of rendering the trace every time.
+ * <p>
+ * Cache hits are lock free. The cache keeps the most recently used traces; when it is full, a miss
+ * evicts the least recently used one.
+ */
+public class GelfStackTraceRenderer {
+
+	public static final int DEFAULT_CACHE_SIZE = 128;
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	private static final int MAX_ENTRIES = 64;
+
+	private final int maxDepth;
+	private final int cacheSize;
+	private final boolean exceptionFields;
+	private final Map<Long, Trace> cache = new ConcurrentHashMap<Long, Trace>();
+	private final AtomicLong clock = new AtomicLong();
+
+	public GelfStackTraceRenderer() {
+		this(0, DEFAULT_CACHE_SIZE, false);
+	}
+
+	/**
+	 * @param maxDepth        frames rendered per throwable, or 0 for all
+	 * @param cacheSize       rendered traces to keep, or 0 to disable caching
+	 * @param exceptionFields whether messages get exception class and stack hash fields
+	 */
+	public GelfStackTraceRenderer(int maxDepth, int cacheSize, boolean exceptionFields) {
+		this.maxDepth = maxDepth;
+		this.cacheSize = cacheSize;
+		this.exceptionFields = exceptionFields;
+	}
+
+	public boolean isExceptionFields() {
+		return exceptionFields;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public Trace render(Throwable throwable) {
+		List<Entry> entries = new ArrayList<Entry>(4);
+		collect(throwable, "", "", null, entries, Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>()));
+		long hash = hash(entries);
+
+		if (cacheSize <= 0) {
+			return new Trace(hash, render(entries), entries);
+		}
+
+		Trace cached = cache.get(hash);
+		if (cached != null && cached.matches(entries)) {
+			cached.lastUsed = clock.incrementAndGet();
+			return cached;
+		}
+
+		Trace trace = new Trace(hash, render(entries), entries);
+		trace.lastUsed = clock.incrementAndGet();
+		if (cached == null && cache.size() >= cacheSize) {
+			evictLeastRecentlyUsed();
+		}
+		cache.put(hash, trace);
+		return trace;
+	}
+
+	int cachedTraces() {
+		return cache.size();
+	}
+
+	private void evictLeastRecentlyUsed() {
+		Long eldest = null;
+		long eldestUse = Long.MAX_VALUE;
+		for (Map.Entry<Long, Trace> entry : cache.entrySet()) {
+			if (entry.getValue().lastUsed < eldestUse) {
+				eldestUse = entry.getValue().lastUsed;
+				eldest = entry.getKey();
+			}
+		}
+		if (eldest != null) {
+			cache.remove(eldest);
+		}
+	}
+
+	/**
+	 * Flattens a throwable with its suppressed exceptions and causes in the order printStackTrace prints them.
+	 */
+	private static void collect(Throwable t, String caption, String prefix, StackTraceElement[] enclosing,
+								List<Entry> entries, Set<Throwable> seen) {
+		if (entries.size() >= MAX_ENTRIES) {
+			return;
+		}
+		if (!seen.add(t)) {
+			entries.add(new Entry(t, caption, prefix, null, true));
+			return;
+		}
+		Entry entry = new Entry(t, caption, prefix, enclosing, false);
+		entries.add(entry);
+		for (Throwable suppressed : t.getSuppressed()) {
+			collect(suppressed, "Suppressed: ", prefix + "\t", entry.frames, entries, seen);
+		}
+		if (t.getCause() != null) {
+			collect(t.getCause(), "Caused by: ", prefix, entry.frames, entries, seen);
+		}
+	}
+
+	/**
+	 * 64 bit hash over the exception types, frames and nesting of the whole trace; messages are left out,
+	 * so that the same failure with different details shares a hash.
+	 */
+	private static long hash(List<Entry> entries) {
+		long hash = 1125899906842597L;
+		for (Entry entry : entries) {
+			hash = 31 * hash + entry.type.hashCode();
+			hash = 31 * hash + entry.caption.hashCode();
+			hash = 31 * hash + entry.prefix.length();
+			for (StackTraceElement frame : entry.frames) {
+				hash = 31 * hash + frame.hashCode();
+			}
+		}
+		return GelfRandomMessageIdGenerator.mix(hash);
+	}
+
+	private String render(List<Entry> entries) {
+		StringBuilder sb = new StringBuilder(1024);
+		for (Entry entry : entries) {
+			sb.append(entry.prefix).append(entry.caption);
+			if (entry.circular) {
+				sb.append("[CIRCULAR REFERENCE: ").append(entry.header).append(']').append(LINE_SEPARATOR);
+				continue;
+			}
+			sb.append(entry.header).append(LINE_SEPARATOR);
+
+			StackTraceElement[] trace = entry.frames;
+			// frames shared with the enclosing trace are summarized, as printStackTrace does
+			int unique = trace.length;
+			if (entry.enclosing != null) {
+				StackTraceElement[] enclosing = entry.enclosing;
+				int n = enclosing.length - 1;
+				while (unique > 0 && n >= 0 && trace[unique - 1].equals(enclosing[n])) {
+					unique--;
+					n--;
+				}
+			}
+			int shown = maxDepth > 0 ? Math.min(unique, maxDepth) : unique;
+			for (int f = 0; f < shown; f++) {
+				sb.append(entry.prefix).append("\tat ").append(trace[f]).append(LINE_SEPARATOR);
+			}
+			if (shown < trace.length) {
+				sb.append(entry.prefix).append("\t... ").append(trace.length - shown).append(" more")
+						.append(LINE_SEPARATOR);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * One throwable of a trace as printStackTrace prints it; the throwable itself is not kept, so that
+	 * cached traces do not hold on to it.
+	 */
+	private static class Entry {
+		private static final StackTraceElement[] NO_FRAMES = new StackTraceElement[0];
+
+		private final String type;
+		private final String header;
+		private final String caption;
+		private final String prefix;
+		private final StackTraceElement[] frames;
+		private final StackTraceElement[] enclosing;
+		private final boolean circular;
+
+		Entry(Throwable t, String caption, String prefix, StackTraceElement[] enclosing, boolean circular) {
+			this.type = t.getClass().getName();
+			this.header = t.toString();
+			this.caption = caption;
+			this.prefix = prefix;
+			this.frames = circular ? NO_FRAMES : t.getStackTrace();
+			this.enclosing = enclosing;
+			this.circular = circular;
+		}
+
+		boolean matches(Entry other) {
+			return circular == other.circular && type.equals(other.type) && header.equals(other.header)
+					&& caption.equals(other.caption) && prefix.equals(other.prefix)
+					&& Arrays.equals(frames, other.frames);
+		}
+	}
+
+	/**
+	 * A rendered stack trace and its hash.
+	 */
+	public static class Trace {
+		private final long hash;
+		private final String text;
+		private final Entry[] entries;
+		private final String hashHex;
+		private volatile long lastUsed;
+
+		Trace(long hash, String text, List<Entry> entries) {
+			this.hash = hash;
+			this.text = text;
+			this.entries = entries.toArray(new Entry[entries.size()]);
+			this.hashHex = Long.toHexString(hash);
+		}
+
+		public long getHash() {
+			return hash;
+		}
+
+		public String getHashHex() {
+			return hashHex;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		// the hash may collide, and it leaves out the messages the rendered text contains
+		private boolean matches(List<Entry> others) {
+			if (others.size() != entries.length) {
+				return false;
+			}
+			for (int i = 0; i < entries.length; i++) {
+				if (!entries[i].matches(others.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
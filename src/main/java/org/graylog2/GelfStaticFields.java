@@ -0,0 +1,113 @@
+package org.graylog2;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Host, facility and additional fields that are identical for every message of an appender.
+ * They are encoded to JSON once, and the bytes are copied into each serialized message.
+ */
+public class GelfStaticFields {
+
+    private final String host;
+    private final String facility;
+    private final Map<String, String> fields;
+    private final byte[] encodedHost;
+    private final byte[] encodedFacility;
+    private final byte[] encodedFields;
+
+    /**
+     * @param host     host of every message, or null to leave it to the message
+     * @param facility facility of every message, or null to leave it to the message
+     * @param fields   additional fields, written with the usual underscore prefix
+     */
+    public GelfStaticFields(String host, String facility, Map<String, String> fields) {
+        this.host = host;
+        this.facility = facility;
+        this.fields = Collections.unmodifiableMap(new LinkedHashMap<String, String>(fields));
+
+        GelfBuffer buffer = new GelfBuffer(256);
+        this.encodedHost = host != null ? encodeField(GelfJsonWriter.HOST_KEY, host, buffer) : null;
+        this.encodedFacility = facility != null ? encodeField(GelfJsonWriter.FACILITY_KEY, facility, buffer) : null;
+        buffer.reset();
+        writeEach(null, buffer);
+        this.encodedFields = buffer.toByteArray();
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getFacility() {
+        return facility;
+    }
+
+    public Map<String, String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return {@code ,"host":"..."}, or null if this block has no host
+     */
+    byte[] getEncodedHost() {
+        return encodedHost;
+    }
+
+    byte[] getEncodedFacility() {
+        return encodedFacility;
+    }
+
+    /**
+     * Appends the static additional fields, each preceded by a comma. Fields the message sets itself
+     * take precedence, so the pre-encoded block is only used when none of its keys is overridden.
+     */
+    void writeFields(Map<String, Object> messageFields, GelfBuffer out) {
+        if (overrides(messageFields)) {
+            writeEach(messageFields, out);
+        } else {
+            out.write(encodedFields);
+        }
+    }
+
+    private void writeEach(Map<String, Object> messageFields, GelfBuffer out) {
+        // values parsed from the additionalFields JSON may be numbers or booleans despite the declared type
+        for (Map.Entry<String, ?> field : ((Map<String, ?>) fields).entrySet()) {
+            if (!GelfMessage.ID_NAME.equals(field.getKey())
+                    && (messageFields == null || !messageFields.containsKey(field.getKey()))) {
+                out.write(',');
+                GelfJsonWriter.writeAdditionalKey(field.getKey(), out);
+                GelfJsonWriter.writeValue(field.getValue(), out);
+            }
+        }
+    }
+
+    private boolean overrides(Map<String, Object> messageFields) {
+        if (fields.isEmpty() || messageFields.isEmpty()) {
+            return false;
+        }
+        if (messageFields instanceof GelfFieldMap) {
+            GelfFieldMap map = (GelfFieldMap) messageFields;
+            for (int i = 0; i < map.size(); i++) {
+                if (fields.containsKey(map.keyAt(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (String key : messageFields.keySet()) {
+            if (fields.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] encodeField(byte[] key, String value, GelfBuffer buffer) {
+        buffer.reset();
+        buffer.write(',');
+        buffer.write(key);
+        GelfJsonWriter.writeString(value, buffer);
+        return buffer.toByteArray();
+    }
+}
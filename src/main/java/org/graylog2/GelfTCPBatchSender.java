@@ -0,0 +1,190 @@
+package org.graylog2;
+
+import java.io.IOException;
+
+/**
+ * GELF TCP sender that frames uncompressed messages with the 0x00 delimiter expected by
+ * GELF TCP inputs and coalesces them into large socket writes.
+ * <p>
+ * A batch is written once it reaches the batch size, once the linger time has passed since
+ * its first message, or on close.
+ * <p>
+ * Messages sent before the first connection attempt has finished are buffered, up to
+ * {@link #MAX_RETAINED_BATCHES} batches, and written once it is established. After that, like
+ * {@link GelfTCPSender}, messages are rejected while the circuit is not closed, so that a spill queue in
+ * front of this sender takes them. A batch whose write fails is kept and written again, ahead of newer
+ * messages, once the connection is back; up to {@link #MAX_RETAINED_BATCHES} batches are kept that way,
+ * older ones are dropped.
+ */
+public class GelfTCPBatchSender extends GelfTCPSender {
+
+	public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+	public static final long DEFAULT_LINGER_MILLIS = 5;
+	public static final int MAX_RETAINED_BATCHES = 4;
+
+	private static final byte FRAME_DELIMITER = 0;
+
+	private final int batchSize;
+	private final long lingerMillis;
+	private final Object batchLock = new Object();
+	private final Object writeLock = new Object();
+	private final Thread flusher;
+	private GelfBuffer filling;
+	private GelfBuffer writing;
+	private int fillingCount;
+
+	public GelfTCPBatchSender(String host, int port) throws IOException {
+		this(host, port, DEFAULT_BATCH_SIZE, DEFAULT_LINGER_MILLIS);
+	}
+
+	public GelfTCPBatchSender(String host, int port, int batchSize, long lingerMillis) throws IOException {
+		this(host, port, batchSize, lingerMillis, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+	}
+
+	public GelfTCPBatchSender(String host, int port, int batchSize, long lingerMillis, int connectTimeoutMillis)
+			throws IOException {
+		super(host, port, connectTimeoutMillis);
+		this.batchSize = batchSize;
+		this.lingerMillis = lingerMillis;
+		this.filling = new GelfBuffer(batchSize + batchSize / 4);
+		this.writing = new GelfBuffer(batchSize + batchSize / 4);
+		this.flusher = new Thread(new Runnable() {
+			public void run() {
+				lingerLoop();
+			}
+		}, "GelfTCPBatchSender-flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+		addStateListener(new StateListener() {
+			public void stateChanged(GelfTCPSender sender, CircuitState previous, CircuitState current) {
+				if (current == CircuitState.CLOSED) {
+					// write what was kept while disconnected
+					synchronized (batchLock) {
+						batchLock.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public boolean sendMessage(GelfMessage message) {
+		if (isShutdown() || !message.isValid()) {
+			return false;
+		}
+		boolean starting = isStarting();
+		if (starting) {
+			connect();
+		} else if (getState() != CircuitState.CLOSED) {
+			getMetrics().messageFailed();
+			return false;
+		}
+
+		long start = System.nanoTime();
+		GelfBuffer json = message.encodeJson();
+		getMetrics().serialized(System.nanoTime() - start, json.size());
+		boolean full;
+		synchronized (batchLock) {
+			if (starting && filling.size() >= MAX_RETAINED_BATCHES * batchSize) {
+				getMetrics().messageFailed();
+				return false;
+			}
+			boolean wasEmpty = filling.size() == 0;
+			filling.write(json.array(), 0, json.size());
+			filling.write(FRAME_DELIMITER);
+			fillingCount++;
+			full = filling.size() >= batchSize;
+			if (wasEmpty && !full) {
+				batchLock.notify();
+			}
+		}
+
+		// the message is buffered either way, a failed write keeps the batch; while starting, the
+		// batch waits for the connection instead of holding up the logging thread
+		if (full && !starting) {
+			flush();
+		}
+		return true;
+	}
+
+	/**
+	 * Writes everything buffered so far in a single socket write.
+	 *
+	 * @return false if the write failed and the batch was kept for the next attempt
+	 */
+	public boolean flush() {
+		synchronized (writeLock) {
+			int count;
+			synchronized (batchLock) {
+				if (filling.size() == 0) {
+					return true;
+				}
+				GelfBuffer batch = filling;
+				filling = writing;
+				writing = batch;
+				count = fillingCount;
+				fillingCount = 0;
+			}
+			boolean written = false;
+			try {
+				written = write(writing.array(), 0, writing.size());
+			} finally {
+				if (written) {
+					getMetrics().messagesSent(count);
+				} else {
+					retain(count);
+				}
+				writing.reset();
+			}
+			return written;
+		}
+	}
+
+	/**
+	 * Puts the failed batch back in front of the messages buffered since; must be called holding writeLock.
+	 */
+	private void retain(int count) {
+		synchronized (batchLock) {
+			if (isShutdown() || writing.size() + filling.size() > MAX_RETAINED_BATCHES * batchSize) {
+				getMetrics().messagesFailed(count);
+				return;
+			}
+			writing.write(filling.array(), 0, filling.size());
+			GelfBuffer retained = writing;
+			writing = filling;
+			filling = retained;
+			fillingCount += count;
+		}
+	}
+
+	private void lingerLoop() {
+		while (!isShutdown()) {
+			try {
+				synchronized (batchLock) {
+					while ((filling.size() == 0 || getState() != CircuitState.CLOSED) && !isShutdown()) {
+						batchLock.wait();
+					}
+					if (lingerMillis > 0) {
+						batchLock.wait(lingerMillis);
+					}
+				}
+				flush();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		flush();
+		super.close();
+		synchronized (batchLock) {
+			// whatever could not be written is lost
+			getMetrics().messagesFailed(fillingCount);
+			fillingCount = 0;
+			filling.reset();
+			batchLock.notifyAll();
+		}
+	}
+}
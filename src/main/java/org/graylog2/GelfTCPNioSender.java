@@ -0,0 +1,370 @@
+package org.graylog2;
+
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Non-blocking GELF TCP sender. Null-byte framed messages are queued and written by a single
+ * I/O thread using gathering writes, so logging threads never wait on connects or a full
+ * socket buffer; once the pending bytes exceed the configured limit, sendMessage returns false.
+ * <p>
+ * Written frame buffers are pooled and reused. A failure in one round of the I/O loop drops the
+ * connection and is reported through the StatusLogger; the thread carries on and reconnects.
+ */
+public class GelfTCPNioSender implements GelfTransportSender {
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+	public static final int DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024;
+	public static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 5000;
+
+	private static final int MAX_GATHER = 64;
+	private static final long SELECT_TIMEOUT_MILLIS = 100;
+	private static final long RECONNECT_DELAY_MILLIS = 1000;
+	private static final int POOLED_FRAMES = 2 * MAX_GATHER;
+	private static final int MIN_FRAME_SIZE = 1024;
+	private static final int MAX_POOLED_FRAME_SIZE = 64 * 1024;
+	private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+	private final GelfHostResolver resolver;
+	private final int port;
+	private final long connectTimeoutMillis;
+	private final int maxPendingBytes;
+	private volatile Selector selector;
+	private final Thread ioThread;
+	private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private int pendingBytes;
+	private volatile SocketChannel channel;
+	private SelectionKey key;
+	private long connectDeadline;
+	private long nextConnectAttempt;
+	private volatile boolean shutdown = false;
+	private volatile boolean addressChanged = false;
+	private boolean connectedBefore = false;
+	private GelfMetrics metrics = new GelfMetrics();
+
+	public GelfTCPNioSender(String host, int port) throws IOException {
+		this(host, port, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_MAX_PENDING_BYTES);
+	}
+
+	public GelfTCPNioSender(String host, int port, long connectTimeoutMillis, int maxPendingBytes) throws IOException {
+		this.resolver = new GelfHostResolver(host);
+		this.port = port;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.maxPendingBytes = maxPendingBytes;
+		this.selector = Selector.open();
+		this.ioThread = new Thread(new Runnable() {
+			public void run() {
+				ioLoop();
+			}
+		}, "GelfTCPNioSender-" + host + ":" + port);
+		this.ioThread.setDaemon(true);
+		this.ioThread.start();
+	}
+
+	public boolean sendMessage(GelfMessage message) {
+		if (shutdown || !message.isValid()) {
+			return false;
+		}
+
+		long start = System.nanoTime();
+		GelfBuffer json = message.encodeJson();
+		metrics.serialized(System.nanoTime() - start, json.size());
+		ByteBuffer frame;
+		synchronized (pending) {
+			frame = free.pollFirst();
+		}
+		if (frame == null || frame.capacity() < json.size() + 1) {
+			frame = ByteBuffer.allocate(Math.max(MIN_FRAME_SIZE, json.size() + 1));
+		}
+		frame.put(json.array(), 0, json.size()).put((byte) 0).flip();
+
+		boolean wasEmpty;
+		synchronized (pending) {
+			if (pendingBytes + frame.remaining() > maxPendingBytes) {
+				recycle(frame);
+				metrics.messageDropped();
+				return false;
+			}
+			wasEmpty = pending.isEmpty();
+			pending.addLast(frame);
+			pendingBytes += frame.remaining();
+		}
+		if (wasEmpty) {
+			selector.wakeup();
+		}
+		return true;
+	}
+
+	/**
+	 * Re-resolves the host every {@code intervalMillis}. When the connected address disappears, the I/O
+	 * thread reconnects to a current one at the next frame boundary. A no-op for intervals of 0 or less.
+	 */
+	public void setDnsRefreshInterval(long intervalMillis) {
+		resolver.startRefresh(intervalMillis, new GelfHostResolver.Listener() {
+			public void addressesChanged(GelfHostResolver resolver, InetAddress[] addresses) {
+				addressChanged = true;
+				selector.wakeup();
+			}
+		});
+	}
+
+	public void setMetrics(GelfMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public GelfMetrics getMetrics() {
+		return metrics;
+	}
+
+	public int getPendingBytes() {
+		synchronized (pending) {
+			return pendingBytes;
+		}
+	}
+
+	public boolean isConnected() {
+		SocketChannel current = channel;
+		return current != null && current.isConnected();
+	}
+
+	public boolean isTransportAvailable() {
+		return !shutdown && isConnected();
+	}
+
+	private void ioLoop() {
+		while (!shutdown || hasPending()) {
+			try {
+				ioRound();
+			} catch (IOException e) {
+				recover(e);
+			} catch (RuntimeException e) {
+				// e.g. a key cancelled under us; the connection is dropped, not the thread
+				recover(e);
+			}
+		}
+		disconnect();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			LOGGER.warn("Could not close the selector of GELF TCP sender", e);
+		}
+	}
+
+	private void ioRound() throws IOException {
+		if (addressChanged && atFrameBoundary()) {
+			addressChanged = false;
+			moveConnection();
+		}
+		if (channel == null && System.currentTimeMillis() >= nextConnectAttempt) {
+			startConnect();
+		}
+		if (key != null && key.isValid()) {
+			key.interestOps(channel.isConnected() ? (hasPending() ? SelectionKey.OP_WRITE : 0) : SelectionKey.OP_CONNECT);
+		}
+
+		selector.select(SELECT_TIMEOUT_MILLIS);
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey selected = keys.next();
+			keys.remove();
+			if (!selected.isValid()) {
+				continue;
+			}
+			if (selected.isConnectable()) {
+				finishConnect();
+			} else if (selected.isWritable()) {
+				writePending();
+			}
+		}
+
+		if (channel != null && !channel.isConnected() && System.currentTimeMillis() >= connectDeadline) {
+			// connect timed out, retry later
+			disconnect();
+		}
+	}
+
+	private void recover(Exception e) {
+		LOGGER.error("GELF TCP sender I/O failed, reconnecting", e);
+		rewindHead();
+		disconnect();
+		if (!selector.isOpen()) {
+			try {
+				selector = Selector.open();
+			} catch (IOException reopen) {
+				LOGGER.error("Could not reopen the selector of GELF TCP sender", reopen);
+			}
+		}
+		try {
+			// do not spin on a failure that repeats every round
+			Thread.sleep(SELECT_TIMEOUT_MILLIS);
+		} catch (InterruptedException ignored) {
+			// only close() ends this thread
+		}
+	}
+
+	private void startConnect() {
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			connectDeadline = System.currentTimeMillis() + connectTimeoutMillis;
+			boolean connected = channel.connect(new InetSocketAddress(resolver.next(), port));
+			key = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT);
+			if (connected) {
+				connected();
+			}
+		} catch (IOException e) {
+			disconnect();
+		}
+	}
+
+	private void finishConnect() {
+		try {
+			if (channel.finishConnect()) {
+				connected();
+			}
+		} catch (IOException e) {
+			disconnect();
+		}
+	}
+
+	private void connected() {
+		if (connectedBefore) {
+			metrics.reconnected();
+		}
+		connectedBefore = true;
+	}
+
+	private void writePending() {
+		int count = 0;
+		long before = 0;
+		synchronized (pending) {
+			// only this thread removes buffers, so the head of the queue is stable while writing
+			for (ByteBuffer buffer : pending) {
+				gather[count++] = buffer;
+				before += buffer.remaining();
+				if (count == MAX_GATHER) {
+					break;
+				}
+			}
+		}
+
+		boolean failed = false;
+		long start = System.nanoTime();
+		try {
+			channel.write(gather, 0, count);
+		} catch (IOException e) {
+			failed = true;
+		}
+		metrics.written(System.nanoTime() - start);
+
+		long after = 0;
+		for (int i = 0; i < count; i++) {
+			after += gather[i].remaining();
+		}
+		synchronized (pending) {
+			pendingBytes -= before - after;
+			while (!pending.isEmpty() && !pending.peekFirst().hasRemaining()) {
+				recycle(pending.removeFirst());
+				metrics.messageSent();
+			}
+			if (failed) {
+				rewindHead();
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			gather[i] = null;
+		}
+		if (failed) {
+			disconnect();
+		}
+	}
+
+	// resend a partially written frame from its start on the next connection
+	private void rewindHead() {
+		synchronized (pending) {
+			if (!pending.isEmpty()) {
+				ByteBuffer head = pending.peekFirst();
+				pendingBytes += head.position();
+				head.rewind();
+			}
+		}
+	}
+
+	// called holding the pending lock
+	private void recycle(ByteBuffer frame) {
+		if (free.size() < POOLED_FRAMES && frame.capacity() <= MAX_POOLED_FRAME_SIZE) {
+			frame.clear();
+			free.addLast(frame);
+		}
+	}
+
+	private void moveConnection() {
+		SocketChannel current = channel;
+		if (current != null && !resolver.contains(current.socket().getInetAddress())) {
+			disconnect();
+			nextConnectAttempt = 0;
+		}
+	}
+
+	// a connection may only be dropped once no frame is half written to it
+	private boolean atFrameBoundary() {
+		synchronized (pending) {
+			return pending.isEmpty() || pending.peekFirst().position() == 0;
+		}
+	}
+
+	private boolean hasPending() {
+		synchronized (pending) {
+			return !pending.isEmpty();
+		}
+	}
+
+	private void disconnect() {
+		if (key != null) {
+			key.cancel();
+			key = null;
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOGGER.warn("Could not close GELF TCP connection", e);
+			}
+			channel = null;
+			nextConnectAttempt = System.currentTimeMillis() + RECONNECT_DELAY_MILLIS;
+		}
+	}
+
+	/**
+	 * Stops accepting messages and waits up to the close timeout for pending frames to be written.
+	 */
+	public void close() {
+		shutdown = true;
+		resolver.close();
+		selector.wakeup();
+		try {
+			ioThread.join(DEFAULT_CLOSE_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (ioThread.isAlive()) {
+			synchronized (pending) {
+				pending.clear();
+				pendingBytes = 0;
+			}
+			selector.wakeup();
+		}
+	}
+}
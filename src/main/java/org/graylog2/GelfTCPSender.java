@@ -1,21 +1,85 @@
 package org.graylog2;
 
+import org.apache.logging.log4j.status.StatusLogger;
+
 import java.io.IOException;
 import java.net.*;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Blocking GELF TCP sender. After a failed write the connection is re-established on a background
+ * thread with exponential backoff and jitter; until then the circuit is open and messages fail fast.
+ * <p>
+ * The first connection is opened in the background as well, started by {@link #connect()} or by the first
+ * message. Messages sent before it is established wait for it, up to the connect timeout, so that startup
+ * messages are not lost; once the first attempt has failed they are rejected like those sent while the
+ * circuit is open, and callers that must not lose them should put a spill queue or an async sender in front.
+ */
+public class GelfTCPSender implements GelfTransportSender {
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+	public static final long DEFAULT_INITIAL_RECONNECT_DELAY_MILLIS = 100;
+	public static final long DEFAULT_MAX_RECONNECT_DELAY_MILLIS = 30000;
+
+	private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+	public enum CircuitState {
+		/** Connected, or not failed yet; messages are written. */
+		CLOSED,
+		/** Connection lost; messages are rejected until a reconnect succeeds. */
+		OPEN,
+		/** A background connect attempt is in progress; messages are still rejected. */
+		HALF_OPEN
+	}
+
+	public interface StateListener {
+		void stateChanged(GelfTCPSender sender, CircuitState previous, CircuitState current);
+	}
 
-public class GelfTCPSender implements GelfSender {
-	private boolean shutdown = false;
-	private InetAddress host;
+	private volatile boolean shutdown = false;
+	private GelfHostResolver resolver;
 	private int port;
-	private Socket socket;
+	private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	private long initialReconnectDelayMillis = DEFAULT_INITIAL_RECONNECT_DELAY_MILLIS;
+	private long maxReconnectDelayMillis = DEFAULT_MAX_RECONNECT_DELAY_MILLIS;
+	private volatile Socket socket;
+	private GelfCompressor compressor = GelfCompressor.GZIP;
+	private GelfMetrics metrics = new GelfMetrics();
+	private final AtomicReference<CircuitState> state = new AtomicReference<CircuitState>(CircuitState.CLOSED);
+	private final List<StateListener> listeners = new CopyOnWriteArrayList<StateListener>();
+	private final Object reconnectLock = new Object();
+	private final Object stateLock = new Object();
+	private final Random jitter = new Random();
+	private ScheduledExecutorService reconnector;
+	private int failedAttempts;
+	private boolean connectStarted;
+	private boolean connectedBefore;
+	private volatile boolean firstAttemptDone;
 
     public GelfTCPSender() {
     }
 
 	public GelfTCPSender(String host, int port) throws IOException {
-		this.host = InetAddress.getByName(host);
+		this(host, port, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * The connection is opened in the background by {@link #connect()} or the first message.
+	 */
+	public GelfTCPSender(String host, int port, int connectTimeoutMillis) throws IOException {
+		this(new GelfHostResolver(host), port, connectTimeoutMillis);
+	}
+
+	GelfTCPSender(GelfHostResolver resolver, int port, int connectTimeoutMillis) {
+		this.resolver = resolver;
 		this.port = port;
-		this.socket = new Socket(host, port);
+		this.connectTimeoutMillis = connectTimeoutMillis;
 	}
 
 	public boolean sendMessage(GelfMessage message) {
@@ -23,30 +87,340 @@ public class GelfTCPSender implements GelfSender {
 			return false;
 		}
 
+		long start = System.nanoTime();
+		GelfBuffer json = message.encodeJson();
+		long serialized = System.nanoTime();
+		metrics.serialized(serialized - start, json.size());
+		GelfBuffer payload = compressor.compress(json);
+		metrics.compressed(System.nanoTime() - serialized, payload.size());
+		if (write(payload.array(), 0, payload.size())) {
+			metrics.messageSent();
+			return true;
+		}
+		metrics.messageFailed();
+		return false;
+	}
+
+	/**
+	 * Writes raw bytes to the connection. Fails fast without touching the network while the circuit is open.
+	 */
+	protected boolean write(byte[] bytes, int off, int len) {
+		if (shutdown || (state.get() != CircuitState.CLOSED || socket == null) && !awaitFirstConnection()) {
+			return false;
+		}
+
+		synchronized (this) {
+			Socket current = socket;
+			if (current == null) {
+				// lost since, reconnecting in the background
+				return false;
+			}
+			try {
+				long start = System.nanoTime();
+				current.getOutputStream().write(bytes, off, len);
+				metrics.written(System.nanoTime() - start);
+
+				return true;
+			} catch (IOException e) {
+				// if an error occours, signal failure and reconnect in the background
+				closeSocket();
+				scheduleReconnect();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Starts opening the first connection in the background, unless that has been started already.
+	 */
+	public void connect() {
+		synchronized (reconnectLock) {
+			if (shutdown || connectStarted) {
+				return;
+			}
+			connectStarted = true;
+			transition(CircuitState.HALF_OPEN);
+			reconnector().execute(new Runnable() {
+				public void run() {
+					reconnect();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Starts the first connection if needed and waits for the circuit to close, e.g. before logging starts.
+	 *
+	 * @return whether the sender is connected
+	 */
+	public boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+		connect();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (stateLock) {
+			long remaining;
+			while (state.get() != CircuitState.CLOSED && !shutdown
+					&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+				stateLock.wait(remaining);
+			}
+		}
+		return state.get() == CircuitState.CLOSED && !shutdown;
+	}
+
+	/**
+	 * Lets messages sent before the first connection wait for it, up to the connect timeout. Once the first
+	 * attempt is over, returns at once.
+	 *
+	 * @return whether the sender is connected
+	 */
+	protected boolean awaitFirstConnection() {
+		if (!firstAttemptDone) {
+			connect();
+			long deadline = System.currentTimeMillis() + connectTimeoutMillis;
+			try {
+				synchronized (stateLock) {
+					long remaining;
+					while (!firstAttemptDone && !shutdown && (remaining = deadline - System.currentTimeMillis()) > 0) {
+						stateLock.wait(remaining);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return state.get() == CircuitState.CLOSED && socket != null && !shutdown;
+	}
+
+	protected Socket createSocket() throws IOException {
+		Socket newSocket = new Socket();
 		try {
-			// reconnect if necessary
-			if (socket == null) {
-				socket = new Socket(host, port);
+			newSocket.connect(new InetSocketAddress(resolver.next(), port), connectTimeoutMillis);
+		} catch (IOException e) {
+			newSocket.close();
+			throw e;
+		}
+		return newSocket;
+	}
+
+	/**
+	 * Re-resolves the host every {@code intervalMillis}. When the connected address disappears, a connection
+	 * to a current one is opened in the background and swapped in between two writes; reconnects always
+	 * use the current addresses. A no-op for intervals of 0 or less.
+	 */
+	public void setDnsRefreshInterval(long intervalMillis) {
+		resolver.startRefresh(intervalMillis, new GelfHostResolver.Listener() {
+			public void addressesChanged(GelfHostResolver resolver, InetAddress[] addresses) {
+				moveConnection();
 			}
+		});
+	}
 
-			socket.getOutputStream().write(message.toBuffer().array());
+	private void moveConnection() {
+		Socket current = socket;
+		if (shutdown || current == null || resolver.contains(current.getInetAddress())) {
+			return;
+		}
+		Socket replacement;
+		try {
+			replacement = createSocket();
+		} catch (IOException e) {
+			// keep the old connection until it fails; reconnects then go to the new addresses
+			return;
+		}
+		synchronized (this) {
+			if (socket != current) {
+				closeQuietly(replacement);
+				return;
+			}
+			socket = replacement;
+		}
+		metrics.reconnected();
+		closeQuietly(current);
+		if (shutdown) {
+			closeSocket();
+		}
+	}
 
-			return true;
+	private void scheduleReconnect() {
+		synchronized (reconnectLock) {
+			if (shutdown) {
+				return;
+			}
+			transition(CircuitState.OPEN);
+			reconnector().schedule(new Runnable() {
+				public void run() {
+					reconnect();
+				}
+			}, nextReconnectDelay(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// must be called holding reconnectLock
+	private ScheduledExecutorService reconnector() {
+		if (reconnector == null) {
+			reconnector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "GelfTCPSender-reconnect-" + resolver.getHost() + ":" + port);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return reconnector;
+	}
+
+	private void reconnect() {
+		if (shutdown) {
+			return;
+		}
+		transition(CircuitState.HALF_OPEN);
+		Socket newSocket;
+		try {
+			newSocket = createSocket();
 		} catch (IOException e) {
-			// if an error occours, signal failure
-			socket = null;
-			return false;
+			synchronized (reconnectLock) {
+				failedAttempts++;
+			}
+			firstAttemptDone = true;
+			scheduleReconnect();
+			return;
+		}
+		boolean first;
+		synchronized (reconnectLock) {
+			// close() takes this lock as well, so it either sees the new socket or prevents it
+			if (shutdown) {
+				closeQuietly(newSocket);
+				return;
+			}
+			socket = newSocket;
+			failedAttempts = 0;
+			first = !connectedBefore;
+			connectedBefore = true;
+		}
+		if (!first) {
+			metrics.reconnected();
 		}
+		firstAttemptDone = true;
+		transition(CircuitState.CLOSED);
+	}
+
+	/**
+	 * Exponential backoff with "equal jitter": half of the delay is fixed, the other half random,
+	 * so that many senders losing the same server do not reconnect in lockstep.
+	 */
+	private long nextReconnectDelay() {
+		long delay = initialReconnectDelayMillis << Math.min(failedAttempts, 20);
+		if (delay <= 0 || delay > maxReconnectDelayMillis) {
+			delay = maxReconnectDelayMillis;
+		}
+		long half = delay / 2;
+		return half + (long) (jitter.nextDouble() * (delay - half));
+	}
+
+	private void transition(CircuitState next) {
+		CircuitState previous = state.getAndSet(next);
+		if (previous != next) {
+			synchronized (stateLock) {
+				stateLock.notifyAll();
+			}
+			for (StateListener listener : listeners) {
+				listener.stateChanged(this, previous, next);
+			}
+		}
+	}
+
+	public void setCompressor(GelfCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	public void setMetrics(GelfMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public GelfMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void setReconnectDelays(long initialMillis, long maxMillis) {
+		this.initialReconnectDelayMillis = Math.max(1, initialMillis);
+		this.maxReconnectDelayMillis = Math.max(this.initialReconnectDelayMillis, maxMillis);
+	}
+
+	public CircuitState getState() {
+		return state.get();
+	}
+
+	/**
+	 * @return whether the circuit is closed
+	 */
+	public boolean isTransportAvailable() {
+		return !shutdown && state.get() == CircuitState.CLOSED;
+	}
+
+	public void addStateListener(StateListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeStateListener(StateListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return whether the first connection attempt has not finished yet
+	 */
+	protected boolean isStarting() {
+		return !firstAttemptDone;
+	}
+
+	protected boolean isShutdown() {
+		return shutdown;
+	}
+
+	protected String getHost() {
+		return resolver.getHost();
+	}
+
+	protected int getPort() {
+		return port;
+	}
+
+	protected int getConnectTimeout() {
+		return connectTimeoutMillis;
 	}
 
 	public void close() {
-		shutdown = true;
+		synchronized (reconnectLock) {
+			shutdown = true;
+			if (reconnector != null) {
+				reconnector.shutdownNow();
+			}
+		}
+		if (resolver != null) {
+			resolver.close();
+		}
+		synchronized (stateLock) {
+			stateLock.notifyAll();
+		}
+		closeSocket();
+	}
+
+	// not synchronized, so that close() can abort a write stuck on a dead connection
+	private void closeSocket() {
+		Socket current = socket;
+		socket = null;
 		try {
-			if (socket != null) {
-				socket.close();
+			if (current != null) {
+				current.close();
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			LOGGER.warn("Error closing the connection to " + resolver.getHost() + ":" + port, e);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already unusable
 		}
 	}
 }
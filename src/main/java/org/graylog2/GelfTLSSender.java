@@ -0,0 +1,124 @@
+package org.graylog2;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * GELF TCP sender for TLS enabled inputs. Frames are batched like {@link GelfTCPBatchSender}, so each
+ * batch goes out as a few full-size TLS records instead of a record per message, over one long-lived
+ * connection.
+ * <p>
+ * All connections of a sender come from the same {@link SSLContext}, whose client session cache is
+ * keyed by host and port, so reconnects resume the previous session instead of doing a full handshake.
+ */
+public class GelfTLSSender extends GelfTCPBatchSender {
+
+	private final SSLContext context;
+	private boolean verifyHostname = true;
+
+	public GelfTLSSender(String host, int port) throws IOException {
+		this(host, port, DEFAULT_BATCH_SIZE, DEFAULT_LINGER_MILLIS, DEFAULT_CONNECT_TIMEOUT_MILLIS, defaultContext());
+	}
+
+	public GelfTLSSender(String host, int port, int batchSize, long lingerMillis, int connectTimeoutMillis,
+						 SSLContext context) throws IOException {
+		super(host, port, batchSize, lingerMillis, connectTimeoutMillis);
+		this.context = context;
+	}
+
+	/**
+	 * Connects and completes the handshake here, so that handshake failures are handled like connect failures.
+	 */
+	@Override
+	protected Socket createSocket() throws IOException {
+		Socket plain = super.createSocket();
+		SSLSocket socket;
+		try {
+			// the host name selects the cached session to resume and is sent as SNI
+			socket = (SSLSocket) context.getSocketFactory().createSocket(plain, getHost(), getPort(), true);
+		} catch (IOException e) {
+			plain.close();
+			throw e;
+		}
+		try {
+			if (verifyHostname) {
+				SSLParameters parameters = socket.getSSLParameters();
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+				socket.setSSLParameters(parameters);
+			}
+			socket.setSoTimeout(getConnectTimeout());
+			socket.startHandshake();
+			socket.setSoTimeout(0);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	/**
+	 * Checks that the server certificate matches the Graylog host name; on by default.
+	 */
+	public void setVerifyHostname(boolean verifyHostname) {
+		this.verifyHostname = verifyHostname;
+	}
+
+	public SSLContext getContext() {
+		return context;
+	}
+
+	private static SSLContext defaultContext() throws IOException {
+		try {
+			return SSLContext.getDefault();
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Can't create the default TLS context", e);
+		}
+	}
+
+	/**
+	 * Creates a context trusting the certificates in {@code trustStore}, and presenting the key in
+	 * {@code keyStore} to inputs requiring client authentication. Either store may be null for the JVM defaults.
+	 */
+	public static SSLContext createContext(String trustStore, String trustStorePassword, String keyStore,
+										   String keyStorePassword) throws IOException {
+		try {
+			TrustManagerFactory trustManagers = null;
+			if (trustStore != null) {
+				trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+				trustManagers.init(loadKeyStore(trustStore, trustStorePassword));
+			}
+			KeyManagerFactory keyManagers = null;
+			if (keyStore != null) {
+				keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+				keyManagers.init(loadKeyStore(keyStore, keyStorePassword),
+						keyStorePassword != null ? keyStorePassword.toCharArray() : null);
+			}
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keyManagers != null ? keyManagers.getKeyManagers() : null,
+					trustManagers != null ? trustManagers.getTrustManagers() : null, null);
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Can't create the TLS context", e);
+		}
+	}
+
+	private static KeyStore loadKeyStore(String path, String password) throws IOException, GeneralSecurityException {
+		KeyStore store = KeyStore.getInstance(path.endsWith(".p12") || path.endsWith(".pfx") ? "PKCS12" : KeyStore.getDefaultType());
+		InputStream in = new FileInputStream(path);
+		try {
+			store.load(in, password != null ? password.toCharArray() : null);
+		} finally {
+			in.close();
+		}
+		return store;
+	}
+}
@@ -0,0 +1,15 @@
+package org.graylog2;
+
+/**
+ * A sender that can tell whether its transport works. Senders also reject single messages while their
+ * transport is fine, e.g. one too large for UDP or one arriving while every HTTP request is busy; callers
+ * such as {@link GelfLoadBalancingSender} and {@link GelfSpillingSender} use this to tell such rejections
+ * from an outage.
+ */
+public interface GelfTransportSender extends GelfSender {
+
+	/**
+	 * @return false while the transport is down, e.g. disconnected or failing to write
+	 */
+	public boolean isTransportAvailable();
+}
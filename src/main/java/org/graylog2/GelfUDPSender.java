@@ -4,11 +4,56 @@ import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class GelfUDPSender implements GelfSender {
-	private InetAddress host;
+public class GelfUDPSender implements GelfTransportSender {
+	/** GELF inputs discard messages split into more chunks than this. */
+	public static final int MAXIMUM_CHUNKS = 128;
+	public static final int DEFAULT_CHUNK_SIZE = GelfMessage.MAXIMUM_CHUNK_SIZE;
+	private static final int MAXIMUM_DATAGRAM_PAYLOAD = 65507;
+	private static final int MINIMUM_TRUNCATED_LENGTH = 1024;
+	private static final int TRUNCATE_ATTEMPTS = 3;
+	/** How long a replaced channel stays open for sends that already picked it. */
+	private static final long CHANNEL_CLOSE_DELAY_MILLIS = 1000;
+
+	public enum OversizePolicy {
+		/**
+		 * Shorten full_message and long additional fields until the compressed message fits into the chunk limit;
+		 * messages that still do not fit are dropped.
+		 */
+		TRUNCATE,
+		/** Discard the message and count it. */
+		DROP,
+		/** Hand the message to the fallback sender, typically a GELF TCP sender. */
+		FALLBACK
+	}
+
+	private static final ThreadLocal<ByteBuffer[]> CHUNK_DATAGRAM = new ThreadLocal<ByteBuffer[]>() {
+		@Override
+		protected ByteBuffer[] initialValue() {
+			return new ByteBuffer[]{ByteBuffer.allocate(GelfMessage.CHUNK_HEADER_LENGTH), null};
+		}
+	};
+
+	private GelfHostResolver resolver;
 	private int port;
-	private DatagramChannel channel;
+	// one channel per resolved address, replaced as a whole when the addresses change
+	private volatile DatagramChannel[] channels;
+	private final AtomicInteger nextChannel = new AtomicInteger();
+	private volatile boolean closed;
+	private volatile boolean writeFailing;
+	private GelfMessageIdGenerator messageIdGenerator = GelfRandomMessageIdGenerator.INSTANCE;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private OversizePolicy oversizePolicy = OversizePolicy.TRUNCATE;
+	private GelfSender fallbackSender;
+	private GelfCompressor compressor = GelfCompressor.GZIP;
+	private final AtomicLong truncatedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong fallbackCount = new AtomicLong();
+	private GelfMetrics metrics = new GelfMetrics();
 
     public GelfUDPSender() {
     }
@@ -18,41 +63,312 @@ public class GelfUDPSender implements GelfSender {
 	}
 
 	public GelfUDPSender(String host, int port) throws IOException {
-		this.host = InetAddress.getByName(host);
+		this(host, port, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param chunkSize payload bytes per datagram; raise it on networks with jumbo frames
+	 */
+	public GelfUDPSender(String host, int port, int chunkSize) throws IOException {
+		this(new GelfHostResolver(host), port, chunkSize);
+	}
+
+	GelfUDPSender(GelfHostResolver resolver, int port, int chunkSize) throws IOException {
+		this.resolver = resolver;
 		this.port = port;
-		this.channel = initiateChannel();
+		this.chunkSize = Math.max(1, Math.min(chunkSize, MAXIMUM_DATAGRAM_PAYLOAD - GelfMessage.CHUNK_HEADER_LENGTH));
+		this.channels = initiateChannels(resolver.getAddresses(), new DatagramChannel[0]);
 	}
 
-	private DatagramChannel initiateChannel() throws IOException {
+	/**
+	 * Opens a channel per address, reusing those of {@code previous} that are connected to one of them.
+	 */
+	private DatagramChannel[] initiateChannels(InetAddress[] addresses, DatagramChannel[] previous) throws IOException {
+		Map<InetAddress, DatagramChannel> reusable = new HashMap<InetAddress, DatagramChannel>();
+		for (DatagramChannel channel : previous) {
+			reusable.put(channel.socket().getInetAddress(), channel);
+		}
+		DatagramChannel[] result = new DatagramChannel[addresses.length];
+		try {
+			for (int i = 0; i < addresses.length; i++) {
+				DatagramChannel channel = reusable.remove(addresses[i]);
+				result[i] = channel != null ? channel : initiateChannel(addresses[i]);
+			}
+		} catch (IOException e) {
+			for (int i = 0; i < result.length; i++) {
+				if (result[i] != null && !contains(previous, result[i])) {
+					closeQuietly(result[i]);
+				}
+			}
+			throw e;
+		}
+		return result;
+	}
+
+	private DatagramChannel initiateChannel(InetAddress address) throws IOException {
 		DatagramChannel resultingChannel = DatagramChannel.open();
-		resultingChannel.socket().bind(new InetSocketAddress(0));
-		resultingChannel.connect(new InetSocketAddress(this.host, this.port));
-		resultingChannel.configureBlocking(false);
+		try {
+			resultingChannel.socket().bind(new InetSocketAddress(0));
+			resultingChannel.connect(new InetSocketAddress(address, this.port));
+			resultingChannel.configureBlocking(false);
+		} catch (IOException e) {
+			closeQuietly(resultingChannel);
+			throw e;
+		}
 
 		return resultingChannel;
 	}
 
+	/**
+	 * Re-resolves the host every {@code intervalMillis} and moves to the new addresses without
+	 * blocking senders; a no-op for intervals of 0 or less.
+	 */
+	public void setDnsRefreshInterval(long intervalMillis) {
+		resolver.startRefresh(intervalMillis, new GelfHostResolver.Listener() {
+			public void addressesChanged(GelfHostResolver resolver, InetAddress[] addresses) {
+				swapChannels(addresses);
+			}
+		});
+	}
+
+	private synchronized void swapChannels(InetAddress[] addresses) {
+		if (closed) {
+			return;
+		}
+		final DatagramChannel[] previous = channels;
+		DatagramChannel[] replacement;
+		try {
+			replacement = initiateChannels(addresses, previous);
+		} catch (IOException e) {
+			// keep sending to the old addresses, the next refresh tries again
+			return;
+		}
+		channels = replacement;
+		for (final DatagramChannel channel : previous) {
+			if (!contains(replacement, channel)) {
+				GelfHostResolver.schedule(new Runnable() {
+					public void run() {
+						closeQuietly(channel);
+					}
+				}, CHANNEL_CLOSE_DELAY_MILLIS);
+			}
+		}
+	}
+
+	private static boolean contains(DatagramChannel[] channels, DatagramChannel channel) {
+		for (DatagramChannel candidate : channels) {
+			if (candidate == channel) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public boolean sendMessage(GelfMessage message) {
-		return message.isValid() && sendDatagrams(message.toBuffers());
+		return message.isValid() && sendDatagrams(message);
 	}
 
-	private boolean sendDatagrams(ByteBuffer[] bytesList) {
+	private boolean sendDatagrams(GelfMessage message) {
+		int limit = chunkSize * MAXIMUM_CHUNKS;
+		long start = System.nanoTime();
+		GelfBuffer json = message.encodeJson();
+		long serialized = System.nanoTime();
+		metrics.serialized(serialized - start, json.size());
+		// deflate can grow incompressible input by a few bytes per block plus the gzip framing
+		boolean mayNotFit = json.size() + json.size() / 1000 + 64 > limit;
+		if (mayNotFit && oversizePolicy == OversizePolicy.FALLBACK && fallbackSender != null) {
+			// decided on the uncompressed size, so no compression is wasted on a message UDP may not carry
+			fallbackCount.incrementAndGet();
+			return fallbackSender.sendMessage(message);
+		}
+
+		GelfBuffer payload = compressor.compress(json);
+		long compressed = System.nanoTime();
+		metrics.compressed(compressed - serialized, payload.size());
+		if (payload.size() > limit) {
+			if (oversizePolicy == OversizePolicy.TRUNCATE) {
+				payload = truncate(json, payload.size(), limit);
+			}
+			if (payload == null || payload.size() > limit) {
+				droppedCount.incrementAndGet();
+				metrics.messageDropped();
+				return false;
+			}
+			truncatedCount.incrementAndGet();
+		}
+
+		DatagramChannel[] current = channels;
+		// all chunks of a message go through the same channel, so they reach the same server
+		DatagramChannel channel = current.length == 1
+				? current[0] : current[(nextChannel.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+		long writing = System.nanoTime();
 		try {
-			for (ByteBuffer buffer : bytesList) {
-				channel.write(buffer);
+			if (payload.size() <= chunkSize) {
+				channel.write(payload.asByteBuffer());
+				metrics.chunksSent(1);
+			} else {
+				metrics.chunksSent(sendChunks(channel, payload.asByteBuffer(), messageIdGenerator.nextId()));
 			}
 		} catch (IOException e) {
+			writeFailing = true;
+			metrics.messageFailed();
 			return false;
 		}
+		writeFailing = false;
+		metrics.written(System.nanoTime() - writing);
+		metrics.messageSent();
 
 		return true;
 	}
 
+	/**
+	 * Shortens the longest of full_message and the additional string fields, in proportion to how far the
+	 * compressed size overshoots the limit. This works on the encoded JSON, so that messages replayed in
+	 * encoded form are shortened as well, and leaves the message as it was logged.
+	 *
+	 * @return the compressed truncated message, or null if it cannot be made to fit
+	 */
+	private GelfBuffer truncate(GelfBuffer json, int compressedLength, int limit) {
+		int[] values = GelfJsonWriter.truncatableValues(json);
+		int maxLength = 0;
+		for (int v = 0; v < values.length; v += 2) {
+			maxLength = Math.max(maxLength, values[v + 1] - values[v]);
+		}
+		GelfBuffer truncated = new GelfBuffer(json.size());
+		for (int attempt = 0; attempt < TRUNCATE_ATTEMPTS && maxLength > MINIMUM_TRUNCATED_LENGTH; attempt++) {
+			long target = (long) (totalLength(values, maxLength) * (limit * 0.9 / compressedLength));
+			maxLength = Math.max(MINIMUM_TRUNCATED_LENGTH, maxLengthFor(values, target, maxLength));
+			truncated.reset();
+			GelfJsonWriter.writeTruncated(json, values, maxLength, truncated);
+			GelfBuffer payload = compressor.compress(truncated);
+			if (payload.size() <= limit) {
+				return payload;
+			}
+			compressedLength = payload.size();
+		}
+		return null;
+	}
+
+	/**
+	 * @return the largest length per value, below {@code upper}, at which the values add up to {@code target} bytes at most
+	 */
+	private static int maxLengthFor(int[] values, long target, int upper) {
+		int low = 0;
+		int high = upper;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (totalLength(values, middle) <= target) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	private static long totalLength(int[] values, int maxLength) {
+		long total = 0;
+		for (int v = 0; v < values.length; v += 2) {
+			total += Math.min(maxLength, values[v + 1] - values[v]);
+		}
+		return total;
+	}
+
+	/**
+	 * Sends each chunk as a gathering write of a reused header buffer and a window onto the
+	 * compressed payload, so chunking copies nothing.
+	 *
+	 * @return the number of chunks sent
+	 */
+	private int sendChunks(DatagramChannel channel, ByteBuffer payload, long messageId) throws IOException {
+		ByteBuffer[] datagram = CHUNK_DATAGRAM.get();
+		ByteBuffer header = datagram[0];
+		int length = payload.limit();
+		int count = (length + chunkSize - 1) / chunkSize;
+		datagram[1] = payload;
+		try {
+			for (int idx = 0; idx < count; idx++) {
+				int from = idx * chunkSize;
+				header.clear();
+				GelfMessage.putChunkHeader(header, messageId, idx, count);
+				header.flip();
+				payload.limit(Math.min(from + chunkSize, length));
+				payload.position(from);
+				channel.write(datagram);
+			}
+		} finally {
+			datagram[1] = null;
+		}
+		return count;
+	}
+
+	public void setMessageIdGenerator(GelfMessageIdGenerator messageIdGenerator) {
+		this.messageIdGenerator = messageIdGenerator;
+	}
+
+	public void setMetrics(GelfMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public GelfMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void setCompressor(GelfCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setOversizePolicy(OversizePolicy oversizePolicy, GelfSender fallbackSender) {
+		this.oversizePolicy = oversizePolicy;
+		this.fallbackSender = fallbackSender;
+	}
+
+	/**
+	 * @return false after a failed write, e.g. an ICMP port unreachable, until a write succeeds again; messages
+	 * dropped for their size do not count
+	 */
+	public boolean isTransportAvailable() {
+		return !closed && !writeFailing;
+	}
+
+	public long getTruncatedCount() {
+		return truncatedCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getFallbackCount() {
+		return fallbackCount.get();
+	}
+
 	public void close() {
+		resolver.close();
+		synchronized (this) {
+			closed = true;
+			for (DatagramChannel channel : channels) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		if (fallbackSender != null) {
+			fallbackSender.close();
+		}
+	}
+
+	private static void closeQuietly(DatagramChannel channel) {
 		try {
 			channel.close();
 		} catch (IOException e) {
-			e.printStackTrace();
+			// already unusable
 		}
 	}
 }
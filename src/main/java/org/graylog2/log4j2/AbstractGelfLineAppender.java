@@ -0,0 +1,217 @@
+package org.graylog2.log4j2;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.filter.ThresholdFilter;
+import org.apache.logging.log4j.util.Constants;
+import org.graylog2.*;
+import org.json.simple.JSONValue;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+/**
+ * Base of the appenders writing GELF messages as JSON lines to a local target, the console or files.
+ * It holds the message settings and metrics they share; the sender is closed when the appender stops.
+ */
+public abstract class AbstractGelfLineAppender<T extends Serializable> extends AbstractAppender implements GelfMessageProvider {
+
+    private final GelfSender gelfSender;
+    private String originHost;
+    private String facility;
+    private boolean extractStacktrace;
+    private boolean addExtendedInformation;
+    private boolean includeLocation = true;
+    private boolean microsecondTimestamps;
+    private GelfStackTraceRenderer stackTraceRenderer = new GelfStackTraceRenderer();
+    private Map<String, String> fields;
+    private volatile GelfStaticFields staticFields;
+    private GelfMetrics metrics = new GelfMetrics();
+    private ObjectName mbeanName;
+
+    protected AbstractGelfLineAppender(final String name, final Filter filter, final Layout<T> layout, GelfSender gelfSender,
+                                       final boolean handleExceptions) {
+        super(name, filter, layout, handleExceptions);
+        this.gelfSender = gelfSender;
+    }
+
+    /**
+     * @return the given filter, or by default one accepting INFO and more severe events
+     */
+    protected static Filter filterOrDefault(Filter filter) {
+        return filter != null ? filter : ThresholdFilter.createFilter(Level.INFO, null, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void setAdditionalFields(String additionalFields) {
+        fields = (Map<String, String>) JSONValue.parse(additionalFields.replaceAll("'", "\""));
+        staticFields = null;
+    }
+
+    public String getFacility() {
+        return facility;
+    }
+
+    public void setFacility(String facility) {
+        this.facility = facility;
+        staticFields = null;
+    }
+
+    public boolean isExtractStacktrace() {
+        return extractStacktrace;
+    }
+
+    public void setExtractStacktrace(boolean extractStacktrace) {
+        this.extractStacktrace = extractStacktrace;
+    }
+
+    public String getOriginHost() {
+        if (originHost == null) {
+            originHost = getLocalHostName();
+        }
+        return originHost;
+    }
+
+    private String getLocalHostName() {
+        String hostName = null;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            error("Unknown local hostname", e);
+            hostName = "unknown";
+        }
+
+        return hostName;
+    }
+
+    public void setOriginHost(String originHost) {
+        this.originHost = originHost;
+        staticFields = null;
+    }
+
+    public boolean isAddExtendedInformation() {
+        return addExtendedInformation;
+    }
+
+    public void setAddExtendedInformation(boolean addExtendedInformation) {
+        this.addExtendedInformation = addExtendedInformation;
+    }
+
+    public boolean isIncludeLocation() {
+        return this.includeLocation;
+    }
+
+    public void setIncludeLocation(boolean includeLocation) {
+        this.includeLocation = includeLocation;
+    }
+
+    public boolean isMicrosecondTimestamps() {
+        return microsecondTimestamps;
+    }
+
+    public void setMicrosecondTimestamps(boolean microsecondTimestamps) {
+        this.microsecondTimestamps = microsecondTimestamps;
+    }
+
+    public GelfStackTraceRenderer getStackTraceRenderer() {
+        return stackTraceRenderer;
+    }
+
+    public void setStackTraceRenderer(GelfStackTraceRenderer stackTraceRenderer) {
+        this.stackTraceRenderer = stackTraceRenderer;
+    }
+
+    public Map<String, String> getFields() {
+        if (fields == null) {
+            fields = new HashMap<String, String>();
+        }
+        return Collections.unmodifiableMap(fields);
+    }
+
+    public GelfStaticFields getStaticFields() {
+        GelfStaticFields current = staticFields;
+        if (current == null) {
+            current = GelfMessageFactory.makeStaticFields(this);
+            staticFields = current;
+        }
+        return current;
+    }
+
+    @Override
+    public void append(LogEvent event) {
+        long start = System.nanoTime();
+        GelfMessage gelfMessage = Constants.ENABLE_THREADLOCALS
+                ? GelfMessageFactory.makeReusableMessage(event, this)
+                : GelfMessageFactory.makeMessage(event, this);
+        metrics.messageBuilt(System.nanoTime() - start);
+
+        if (getGelfSender() == null || !getGelfSender().sendMessage(gelfMessage)) {
+            error("Could not send GELF message");
+        }
+    }
+
+    public GelfSender getGelfSender() {
+        return gelfSender;
+    }
+
+    public void setMetrics(GelfMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public GelfMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the metrics as {@code org.graylog2:type=GelfAppender,name=<appender name>}, like a GELF appender.
+     */
+    public synchronized void registerMBean() {
+        unregisterMBean();
+        mbeanName = GelfMBeans.register(getName(), null, metrics);
+    }
+
+    public synchronized void unregisterMBean() {
+        if (mbeanName != null) {
+            GelfMBeans.unregister(mbeanName, metrics);
+            mbeanName = null;
+        }
+    }
+
+    /**
+     * Log4j stops appenders through this method, {@link #stop()} delegates to it.
+     */
+    @Override
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        if (isStopped()) {
+            return true;
+        }
+        setStopping();
+        boolean stopped = super.stop(timeout, timeUnit, false);
+        // writes out what a buffered sender still holds and completes the active file of a file sender
+        getGelfSender().close();
+        unregisterMBean();
+        setStopped();
+        return stopped;
+    }
+
+    /**
+     * Same as {@link #stop()}.
+     */
+    public void close() {
+        stop();
+    }
+
+    public boolean requiresLayout() {
+        return false;
+    }
+}
@@ -1,26 +1,39 @@
 package org.graylog2.log4j2;
 
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
-import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
-import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
 import org.apache.logging.log4j.core.filter.ThresholdFilter;
 import org.apache.logging.log4j.core.layout.HTMLLayout;
+import org.apache.logging.log4j.util.Constants;
 import org.graylog2.*;
 import org.json.simple.JSONValue;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.net.MalformedURLException;
 import java.net.SocketException;
+import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
 
 /**
  * @author Ivan Mashintsev
@@ -35,16 +48,28 @@ public class GelfAppender<T extends Serializable> extends AbstractAppender imple
 	private boolean extractStacktrace;
 	private boolean addExtendedInformation;
 	private boolean includeLocation = true;
+	private boolean microsecondTimestamps;
+	private GelfStackTraceRenderer stackTraceRenderer = new GelfStackTraceRenderer();
+	private GelfDuplicateSuppressor duplicateSuppressor;
+	private GelfSampler sampler;
 	private Map<String, String> fields;
+	private volatile GelfStaticFields staticFields;
+	private GelfMetrics metrics = new GelfMetrics();
+	private Map<String, GelfMetrics> endpointMetrics = Collections.emptyMap();
+	private final Map<ObjectName, GelfMetrics> mbeanNames = new LinkedHashMap<ObjectName, GelfMetrics>();
+	private final boolean reuseMessages;
 
 	private GelfAppender(final String name, final Filter filter, final Layout<T> layout, GelfSender gelfSender, final boolean handleExceptions) {
 		super(name, filter, layout, handleExceptions);
 		this.gelfSender = gelfSender;
+		// the async sender queues messages, so each event needs its own
+		this.reuseMessages = Constants.ENABLE_THREADLOCALS && !(gelfSender instanceof AsyncGelfSender);
 	}
 
 	@SuppressWarnings("unchecked")
 	public void setAdditionalFields(String additionalFields) {
 		fields = (Map<String, String>) JSONValue.parse(additionalFields.replaceAll("'", "\""));
+		staticFields = null;
 	}
 
 	public String getFacility() {
@@ -53,6 +78,7 @@ public class GelfAppender<T extends Serializable> extends AbstractAppender imple
 
 	public void setFacility(String facility) {
 		this.facility = facility;
+		staticFields = null;
 	}
 
 	public boolean isExtractStacktrace() {
@@ -83,6 +109,7 @@ public class GelfAppender<T extends Serializable> extends AbstractAppender imple
 
 	public void setOriginHost(String originHost) {
 		GelfAppender.originHost = originHost;
+		staticFields = null;
 	}
 
 	public boolean isAddExtendedInformation() {
@@ -101,6 +128,22 @@ public class GelfAppender<T extends Serializable> extends AbstractAppender imple
 		this.includeLocation = includeLocation;
 	}
 
+	public boolean isMicrosecondTimestamps() {
+		return microsecondTimestamps;
+	}
+
+	public void setMicrosecondTimestamps(boolean microsecondTimestamps) {
+		this.microsecondTimestamps = microsecondTimestamps;
+	}
+
+	public GelfStackTraceRenderer getStackTraceRenderer() {
+		return stackTraceRenderer;
+	}
+
+	public void setStackTraceRenderer(GelfStackTraceRenderer stackTraceRenderer) {
+		this.stackTraceRenderer = stackTraceRenderer;
+	}
+
 	public Map<String, String> getFields() {
 		if (fields == null) {
 			fields = new HashMap<String, String>();
@@ -108,8 +151,17 @@ public class GelfAppender<T extends Serializable> extends AbstractAppender imple
 		return Collections.unmodifiableMap(fields);
 	}
 
+	public GelfStaticFields getStaticFields() {
+		GelfStaticFields current = staticFields;
+		if (current == null) {
+			current = GelfMessageFactory.makeStaticFields(this);
+			staticFields = current;
+		}
+		return current;
+	}
+
 	/**
-	 * Create a SMTPAppender.
+	 * Create a GelfAppender with the attributes of earlier versions.
 	 *
 	 * @param name               The name of the Appender.
 	 * @param graylogHost        The Graylog2 host.
@@ -120,95 +172,860 @@ public class GelfAppender<T extends Serializable> extends AbstractAppender imple
 	 * @param suppressExceptions "true" if exceptions should be hidden from the application,
 	 *                           "false" otherwise (defaults to "true").
 	 * @return The GelfAppender.
+	 * @see #newBuilder() for all other attributes
 	 */
-	@PluginFactory
-	public static <S extends Serializable> GelfAppender<S> createAppender(@PluginAttribute("name") final String name,
-																		  @PluginAttribute("graylogHost") final String graylogHost,
-																		  @PluginAttribute("graylogPort") final String graylogPortStr,
-																		  @PluginAttribute("facility") final String facility,
-																		  @PluginAttribute("extractStacktrace") final String extractStacktrace,
-																		  @PluginAttribute("originHost") final String originHost,
-																		  @PluginAttribute("addExtendedInformation") final String addExtendedInformation,
-																		  @PluginAttribute("includeLocation") final String includeLocation,
-																		  @PluginAttribute("additionalFields") final String additionalFields,
-																		  @PluginElement("layout") Layout<S> layout,
-																		  @PluginElement("filter") Filter filter,
-																		  @PluginAttribute("suppressExceptions") final String suppressExceptions) {
-		if (name == null) {
-			LOGGER.error("No name provided for GelfAppender");
-			return null;
-		}
-
-		GelfSender gelfSender = null;
-		int graylogPort = -1;
-		try {
-			graylogPort = Integer.parseInt(graylogPortStr);
-		} catch (Exception e) {
-			LOGGER.error("Can't parse graylog server port");
+	public static <S extends Serializable> GelfAppender<S> createAppender(final String name, final String graylogHost,
+																		  final String graylogPortStr, final String facility,
+																		  final String extractStacktrace, final String originHost,
+																		  final String addExtendedInformation, final String includeLocation,
+																		  final String additionalFields, Layout<S> layout, Filter filter,
+																		  final String suppressExceptions) {
+		return GelfAppender.<S>newBuilder()
+				.setName(name)
+				.setGraylogHost(graylogHost)
+				.setGraylogPort(graylogPortStr)
+				.setFacility(facility)
+				.setExtractStacktrace(extractStacktrace)
+				.setOriginHost(originHost)
+				.setAddExtendedInformation(addExtendedInformation)
+				.setIncludeLocation(includeLocation)
+				.setAdditionalFields(additionalFields)
+				.setLayout(layout)
+				.setFilter(filter)
+				.setSuppressExceptions(suppressExceptions)
+				.build();
+	}
+
+	@PluginBuilderFactory
+	public static <S extends Serializable> Builder<S> newBuilder() {
+		return new Builder<S>();
+	}
+
+	/**
+	 * Configures a GelfAppender from the attributes of its configuration element; attributes that are not set
+	 * keep their defaults, so only the ones in use need setting. All values are strings, parsed by
+	 * {@link #build()}, which logs values it cannot parse and falls back to the default.
+	 */
+	public static class Builder<S extends Serializable> implements org.apache.logging.log4j.core.util.Builder<GelfAppender<S>> {
+
+		@PluginBuilderAttribute
+		private String name;
+		@PluginBuilderAttribute
+		private String graylogHost;
+		@PluginBuilderAttribute
+		private String graylogPort;
+		@PluginBuilderAttribute
+		private String facility;
+		@PluginBuilderAttribute
+		private String extractStacktrace;
+		@PluginBuilderAttribute
+		private String originHost;
+		@PluginBuilderAttribute
+		private String addExtendedInformation;
+		@PluginBuilderAttribute
+		private String includeLocation;
+		@PluginBuilderAttribute
+		private String additionalFields;
+		@PluginBuilderAttribute
+		private String suppressExceptions;
+
+		@PluginElement("layout")
+		private Layout<S> layout;
+		@PluginElement("filter")
+		private Filter filter;
+
+		// async sending
+		@PluginBuilderAttribute
+		private String async;
+		@PluginBuilderAttribute
+		private String asyncQueueSize;
+		@PluginBuilderAttribute
+		private String asyncOverflowPolicy;
+		@PluginBuilderAttribute
+		private String asyncBlockTimeout;
+
+		// tcp: and tls: hosts
+		@PluginBuilderAttribute
+		private String tcpBatchSize;
+		@PluginBuilderAttribute
+		private String tcpLinger;
+		@PluginBuilderAttribute
+		private String tcpNonBlocking;
+		@PluginBuilderAttribute
+		private String tcpConnectTimeout;
+		@PluginBuilderAttribute
+		private String tcpMaxPending;
+		@PluginBuilderAttribute
+		private String tcpReconnectDelay;
+		@PluginBuilderAttribute
+		private String tcpMaxReconnectDelay;
+
+		// udp: hosts
+		@PluginBuilderAttribute
+		private String chunkSize;
+		@PluginBuilderAttribute
+		private String udpOversizePolicy;
+
+		// message encoding
+		@PluginBuilderAttribute
+		private String compression;
+		@PluginBuilderAttribute
+		private String compressionLevel;
+		@PluginBuilderAttribute
+		private String microsecondTimestamps;
+		@PluginBuilderAttribute
+		private String stackTraceMaxDepth;
+		@PluginBuilderAttribute
+		private String stackTraceCacheSize;
+		@PluginBuilderAttribute
+		private String exceptionFields;
+
+		// volume control
+		@PluginBuilderAttribute
+		private String duplicateLimit;
+		@PluginBuilderAttribute
+		private String duplicateWindow;
+		@PluginBuilderAttribute
+		private String sampling;
+		@PluginBuilderAttribute
+		private String samplingTraceIdKey;
+
+		// several endpoints
+		@PluginBuilderAttribute
+		private String loadBalancing;
+		@PluginBuilderAttribute
+		private String endpointRetryDelay;
+		@PluginBuilderAttribute
+		private String dnsRefreshInterval;
+
+		// disk spilling
+		@PluginBuilderAttribute
+		private String spillDirectory;
+		@PluginBuilderAttribute
+		private String spillSegmentSize;
+		@PluginBuilderAttribute
+		private String spillMaxSegments;
+		@PluginBuilderAttribute
+		private String spillReplayRate;
+
+		// http: hosts
+		@PluginBuilderAttribute
+		private String httpBatchSize;
+		@PluginBuilderAttribute
+		private String httpLinger;
+		@PluginBuilderAttribute
+		private String httpMaxInFlight;
+		@PluginBuilderAttribute
+		private String httpMaxRetries;
+
+		// tls: hosts
+		@PluginBuilderAttribute
+		private String tlsTrustStore;
+		@PluginBuilderAttribute
+		private String tlsTrustStorePassword;
+		@PluginBuilderAttribute
+		private String tlsKeyStore;
+		@PluginBuilderAttribute
+		private String tlsKeyStorePassword;
+		@PluginBuilderAttribute
+		private String tlsVerifyHostname;
+
+		/** The name of the Appender. */
+		public Builder<S> setName(String name) {
+			this.name = name;
+			return this;
+		}
+
+		/** The Graylog2 host. */
+		public Builder<S> setGraylogHost(String graylogHost) {
+			this.graylogHost = graylogHost;
+			return this;
+		}
+
+		/** The Graylog2 port. */
+		public Builder<S> setGraylogPort(String graylogPort) {
+			this.graylogPort = graylogPort;
+			return this;
+		}
+
+		public Builder<S> setFacility(String facility) {
+			this.facility = facility;
+			return this;
+		}
+
+		public Builder<S> setExtractStacktrace(String extractStacktrace) {
+			this.extractStacktrace = extractStacktrace;
+			return this;
+		}
+
+		public Builder<S> setOriginHost(String originHost) {
+			this.originHost = originHost;
+			return this;
+		}
+
+		public Builder<S> setAddExtendedInformation(String addExtendedInformation) {
+			this.addExtendedInformation = addExtendedInformation;
+			return this;
+		}
+
+		public Builder<S> setIncludeLocation(String includeLocation) {
+			this.includeLocation = includeLocation;
+			return this;
+		}
+
+		public Builder<S> setAdditionalFields(String additionalFields) {
+			this.additionalFields = additionalFields;
+			return this;
+		}
+
+		/** "true" if exceptions should be hidden from the application, "false" otherwise (defaults to "true"). */
+		public Builder<S> setSuppressExceptions(String suppressExceptions) {
+			this.suppressExceptions = suppressExceptions;
+			return this;
+		}
+
+		/** The layout to use. */
+		public Builder<S> setLayout(Layout<S> layout) {
+			this.layout = layout;
+			return this;
+		}
+
+		/** The Filter or null (defaults to ThresholdFilter, level of INFO). */
+		public Builder<S> setFilter(Filter filter) {
+			this.filter = filter;
+			return this;
+		}
+
+		/** "true" to hand messages to a background sender thread. */
+		public Builder<S> setAsync(String async) {
+			this.async = async;
+			return this;
+		}
+
+		/** Capacity of the background sender queue. */
+		public Builder<S> setAsyncQueueSize(String asyncQueueSize) {
+			this.asyncQueueSize = asyncQueueSize;
+			return this;
+		}
+
+		/** One of DROP_NEWEST, DROP_OLDEST or BLOCK (defaults to DROP_NEWEST). */
+		public Builder<S> setAsyncOverflowPolicy(String asyncOverflowPolicy) {
+			this.asyncOverflowPolicy = asyncOverflowPolicy;
+			return this;
+		}
+
+		/** Milliseconds to wait for queue space with the BLOCK policy. */
+		public Builder<S> setAsyncBlockTimeout(String asyncBlockTimeout) {
+			this.asyncBlockTimeout = asyncBlockTimeout;
+			return this;
+		}
+
+		/** Bytes to coalesce per write for tcp: hosts; enables null-byte framed, uncompressed messages. */
+		public Builder<S> setTcpBatchSize(String tcpBatchSize) {
+			this.tcpBatchSize = tcpBatchSize;
+			return this;
+		}
+
+		/** Milliseconds a partial TCP batch may wait before it is written. */
+		public Builder<S> setTcpLinger(String tcpLinger) {
+			this.tcpLinger = tcpLinger;
+			return this;
+		}
+
+		/** "true" to send tcp: messages from a non-blocking NIO I/O thread. */
+		public Builder<S> setTcpNonBlocking(String tcpNonBlocking) {
+			this.tcpNonBlocking = tcpNonBlocking;
+			return this;
+		}
+
+		/** Milliseconds TCP senders wait for a connection. */
+		public Builder<S> setTcpConnectTimeout(String tcpConnectTimeout) {
+			this.tcpConnectTimeout = tcpConnectTimeout;
+			return this;
+		}
+
+		/** Bytes the non-blocking sender may queue before rejecting messages. */
+		public Builder<S> setTcpMaxPending(String tcpMaxPending) {
+			this.tcpMaxPending = tcpMaxPending;
+			return this;
+		}
+
+		/** Initial background reconnect delay in milliseconds, doubled per failed attempt. */
+		public Builder<S> setTcpReconnectDelay(String tcpReconnectDelay) {
+			this.tcpReconnectDelay = tcpReconnectDelay;
+			return this;
+		}
+
+		/** Upper bound of the reconnect delay in milliseconds. */
+		public Builder<S> setTcpMaxReconnectDelay(String tcpMaxReconnectDelay) {
+			this.tcpMaxReconnectDelay = tcpMaxReconnectDelay;
+			return this;
+		}
+
+		/** UDP payload bytes per chunk (defaults to 1420). */
+		public Builder<S> setChunkSize(String chunkSize) {
+			this.chunkSize = chunkSize;
+			return this;
+		}
+
+		/** One of TRUNCATE, DROP or FALLBACK for messages exceeding 128 UDP chunks. */
+		public Builder<S> setUdpOversizePolicy(String udpOversizePolicy) {
+			this.udpOversizePolicy = udpOversizePolicy;
+			return this;
+		}
+
+		/** One of GZIP, ZLIB or NONE (defaults to GZIP). */
+		public Builder<S> setCompression(String compression) {
+			this.compression = compression;
+			return this;
+		}
+
+		/** Deflate level from 0 to 9. */
+		public Builder<S> setCompressionLevel(String compressionLevel) {
+			this.compressionLevel = compressionLevel;
+			return this;
+		}
+
+		/** "true" to send timestamps with microseconds from the event's Instant. */
+		public Builder<S> setMicrosecondTimestamps(String microsecondTimestamps) {
+			this.microsecondTimestamps = microsecondTimestamps;
+			return this;
+		}
+
+		/** Frames rendered per throwable (defaults to 0, all frames). */
+		public Builder<S> setStackTraceMaxDepth(String stackTraceMaxDepth) {
+			this.stackTraceMaxDepth = stackTraceMaxDepth;
+			return this;
+		}
+
+		/** Rendered stack traces to cache (defaults to 128, 0 disables the cache). */
+		public Builder<S> setStackTraceCacheSize(String stackTraceCacheSize) {
+			this.stackTraceCacheSize = stackTraceCacheSize;
+			return this;
+		}
+
+		/** "true" to add _exception_class and _stack_hash fields for events with a throwable. */
+		public Builder<S> setExceptionFields(String exceptionFields) {
+			this.exceptionFields = exceptionFields;
+			return this;
+		}
+
+		/** Occurrences of the same message sent per window; further ones are counted (defaults to 0, off). */
+		public Builder<S> setDuplicateLimit(String duplicateLimit) {
+			this.duplicateLimit = duplicateLimit;
+			return this;
+		}
+
+		/** Duplicate suppression window in milliseconds (defaults to 60000). */
+		public Builder<S> setDuplicateWindow(String duplicateWindow) {
+			this.duplicateWindow = duplicateWindow;
+			return this;
+		}
+
+		/** Sampling rates by level and logger, e.g. "DEBUG=0.1,com.example=0.5". */
+		public Builder<S> setSampling(String sampling) {
+			this.sampling = sampling;
+			return this;
+		}
+
+		/** Context data key of a trace id that makes sampling decisions per trace. */
+		public Builder<S> setSamplingTraceIdKey(String samplingTraceIdKey) {
+			this.samplingTraceIdKey = samplingTraceIdKey;
+			return this;
+		}
+
+		/** ROUND_ROBIN or LEAST_OUTSTANDING_BYTES when graylogHost lists several endpoints. */
+		public Builder<S> setLoadBalancing(String loadBalancing) {
+			this.loadBalancing = loadBalancing;
+			return this;
+		}
+
+		/** Milliseconds before a failed endpoint is tried again, doubled per failed attempt. */
+		public Builder<S> setEndpointRetryDelay(String endpointRetryDelay) {
+			this.endpointRetryDelay = endpointRetryDelay;
+			return this;
+		}
+
+		/** Milliseconds between background re-resolutions of the Graylog host (defaults to 0, off). */
+		public Builder<S> setDnsRefreshInterval(String dnsRefreshInterval) {
+			this.dnsRefreshInterval = dnsRefreshInterval;
+			return this;
+		}
+
+		/** Directory of a disk queue for messages that cannot be sent right away. */
+		public Builder<S> setSpillDirectory(String spillDirectory) {
+			this.spillDirectory = spillDirectory;
+			return this;
+		}
+
+		/** Bytes per memory-mapped spill segment file (defaults to 8 MB). */
+		public Builder<S> setSpillSegmentSize(String spillSegmentSize) {
+			this.spillSegmentSize = spillSegmentSize;
+			return this;
+		}
+
+		/** Spill segment files kept at most; further messages are dropped (defaults to 16). */
+		public Builder<S> setSpillMaxSegments(String spillMaxSegments) {
+			this.spillMaxSegments = spillMaxSegments;
+			return this;
+		}
+
+		/** Spilled messages replayed per second once sending succeeds again (defaults to 1000). */
+		public Builder<S> setSpillReplayRate(String spillReplayRate) {
+			this.spillReplayRate = spillReplayRate;
+			return this;
+		}
+
+		/** Bytes of newline separated messages per POST for http: hosts (defaults to 65536, 0 posts each message). */
+		public Builder<S> setHttpBatchSize(String httpBatchSize) {
+			this.httpBatchSize = httpBatchSize;
+			return this;
+		}
+
+		/** Milliseconds a partial HTTP batch may wait before it is posted. */
+		public Builder<S> setHttpLinger(String httpLinger) {
+			this.httpLinger = httpLinger;
+			return this;
+		}
+
+		/** Concurrent HTTP requests (defaults to 2). */
+		public Builder<S> setHttpMaxInFlight(String httpMaxInFlight) {
+			this.httpMaxInFlight = httpMaxInFlight;
+			return this;
+		}
+
+		/** Retries of a POST failing with a 5xx status, 429 or an I/O error (defaults to 3). */
+		public Builder<S> setHttpMaxRetries(String httpMaxRetries) {
+			this.httpMaxRetries = httpMaxRetries;
+			return this;
 		}
 
-		final boolean isHandleExceptions = suppressExceptions == null ? true : Boolean.valueOf(suppressExceptions);
+		/** Trust store with the certificates of tls: hosts (defaults to the JVM's). */
+		public Builder<S> setTlsTrustStore(String tlsTrustStore) {
+			this.tlsTrustStore = tlsTrustStore;
+			return this;
+		}
+
+		/** Password of the trust store. */
+		public Builder<S> setTlsTrustStorePassword(String tlsTrustStorePassword) {
+			this.tlsTrustStorePassword = tlsTrustStorePassword;
+			return this;
+		}
+
+		/** Key store with a client certificate for inputs requiring client authentication. */
+		public Builder<S> setTlsKeyStore(String tlsKeyStore) {
+			this.tlsKeyStore = tlsKeyStore;
+			return this;
+		}
 
-		if (layout == null) {
-			@SuppressWarnings({"unchecked", "UnnecessaryLocalVariable"})
-			Layout<S> l = (Layout<S>) HTMLLayout.createLayout(null, null, null, null, null, null);
-			layout = l;
+		/** Password of the key store and its key. */
+		public Builder<S> setTlsKeyStorePassword(String tlsKeyStorePassword) {
+			this.tlsKeyStorePassword = tlsKeyStorePassword;
+			return this;
 		}
-		if (filter == null) {
-			filter = ThresholdFilter.createFilter("INFO", null, null);
+
+		/** "false" to accept server certificates issued for another host name. */
+		public Builder<S> setTlsVerifyHostname(String tlsVerifyHostname) {
+			this.tlsVerifyHostname = tlsVerifyHostname;
+			return this;
 		}
 
-		if (graylogHost == null) {
-			LOGGER.error("No host provided for GelfAppender");
-			return null;
-		} else {
+		public GelfAppender<S> build() {
+			if (name == null) {
+				LOGGER.error("No name provided for GelfAppender");
+				return null;
+			}
+
+			GelfSender gelfSender = null;
+			GelfMetrics metrics = new GelfMetrics();
+			Map<String, GelfMetrics> endpointMetrics = new LinkedHashMap<String, GelfMetrics>();
+			int port = -1;
 			try {
-				if (graylogHost.startsWith("tcp:")) {
-					String tcpGraylogHost = graylogHost.substring(4);
-					gelfSender = getGelfTCPSender(tcpGraylogHost, graylogPort);
-				} else if (graylogHost.startsWith("udp:")) {
-					String udpGraylogHost = graylogHost.substring(4);
-					gelfSender = getGelfUDPSender(udpGraylogHost, graylogPort);
-				} else {
-					gelfSender = getGelfUDPSender(graylogHost, graylogPort);
-				}
-			} catch (UnknownHostException e) {
-				LOGGER.error("Unknown Graylog2 hostname:" + graylogHost, e);
-			} catch (SocketException e) {
-				LOGGER.error("Socket exception", e);
-			} catch (IOException e) {
-				LOGGER.error("IO exception", e);
+				port = Integer.parseInt(graylogPort);
 			} catch (Exception e) {
+				LOGGER.error("Can't parse graylog server port");
+			}
+
+			final boolean isHandleExceptions = suppressExceptions == null ? true : Boolean.valueOf(suppressExceptions);
+
+			Layout<S> appenderLayout = layout;
+			if (appenderLayout == null) {
+				@SuppressWarnings({"unchecked", "UnnecessaryLocalVariable"})
+				Layout<S> l = (Layout<S>) HTMLLayout.createLayout(null, null, null, null, null, null);
+				appenderLayout = l;
+			}
+			Filter appenderFilter = filter;
+			if (appenderFilter == null) {
+				appenderFilter = ThresholdFilter.createFilter("INFO", null, null);
+			}
+
+			GelfCompressor compressor = getGelfCompressor(compression, compressionLevel);
+
+			if (graylogHost == null) {
+				LOGGER.error("No host provided for GelfAppender");
+				return null;
+			} else {
+				try {
+					// one context for all tls: endpoints, so reconnects can resume sessions from its cache
+					SSLContext tlsContext = graylogHost.contains("tls:")
+							? GelfTLSSender.createContext(tlsTrustStore, tlsTrustStorePassword, tlsKeyStore, tlsKeyStorePassword) : null;
+					String[] endpoints = graylogHost.split(",");
+					if (endpoints.length == 1) {
+						gelfSender = createSender(graylogHost, port, compressor, tlsContext, metrics);
+					} else {
+						List<GelfSender> members = new ArrayList<GelfSender>(endpoints.length);
+						try {
+							for (String endpoint : endpoints) {
+								endpoint = endpoint.trim();
+								if (isHttp(endpoint)) {
+									members.add(createSender(endpoint, port, compressor, tlsContext,
+											endpointMetrics(endpointMetrics, endpoint, metrics)));
+									continue;
+								}
+								String prefix = endpoint.startsWith("tcp:") || endpoint.startsWith("tls:") || endpoint.startsWith("udp:")
+										? endpoint.substring(0, 4) : "";
+								String address = endpoint.substring(prefix.length());
+								int portIndex = address.lastIndexOf(':');
+								int endpointPort = port;
+								// a colon is a port separator unless it belongs to an IPv6 literal
+								if (portIndex > 0 && (address.indexOf(':') == portIndex || address.lastIndexOf(']') == portIndex - 1)) {
+									endpointPort = parseInt(address.substring(portIndex + 1), port, "graylogHost port");
+									address = address.substring(0, portIndex);
+								}
+								members.add(createSender(prefix + address, endpointPort, compressor, tlsContext,
+										endpointMetrics(endpointMetrics, prefix + address + ":" + endpointPort, metrics)));
+							}
+						} catch (IOException e) {
+							for (GelfSender member : members) {
+								member.close();
+							}
+							throw e;
+						}
+						gelfSender = getGelfLoadBalancingSender(members, loadBalancing, endpointRetryDelay);
+					}
+				} catch (UnknownHostException e) {
+					LOGGER.error("Unknown Graylog2 hostname:" + graylogHost, e);
+				} catch (SocketException e) {
+					LOGGER.error("Socket exception", e);
+				} catch (IOException e) {
+					LOGGER.error("IO exception", e);
+				} catch (Exception e) {
+					return null;
+				}
+			}
+			GelfSpillQueue spillQueue = null;
+			if (gelfSender != null && spillDirectory != null) {
+				try {
+					spillQueue = new GelfSpillQueue(new File(spillDirectory),
+							parseInt(spillSegmentSize, GelfSpillQueue.DEFAULT_SEGMENT_SIZE, "spillSegmentSize"),
+							parseInt(spillMaxSegments, GelfSpillQueue.DEFAULT_MAX_SEGMENTS, "spillMaxSegments"));
+					GelfSpillingSender spillingSender = new GelfSpillingSender(gelfSender, spillQueue,
+							parseInt(spillReplayRate, GelfSpillingSender.DEFAULT_REPLAY_RATE, "spillReplayRate"),
+							GelfSpillingSender.DEFAULT_RETRY_DELAY_MILLIS);
+					spillingSender.setMetrics(metrics);
+					gelfSender = spillingSender;
+				} catch (IOException e) {
+					LOGGER.error("Can't open spill directory " + spillDirectory, e);
+				}
+			}
+			if (gelfSender != null && Boolean.parseBoolean(async)) {
+				AsyncGelfSender asyncSender = getAsyncGelfSender(gelfSender, asyncQueueSize, asyncOverflowPolicy, asyncBlockTimeout);
+				// a full queue spills to disk as well
+				asyncSender.setOverflowSender(spillQueue);
+				asyncSender.setMetrics(metrics);
+				gelfSender = asyncSender;
+			}
+			if (gelfSender != null) {
+
+				GelfAppender<S> gelfAppender = new GelfAppender<S>(name, appenderFilter, appenderLayout, gelfSender, isHandleExceptions);
+				gelfAppender.setFacility(facility);
+				gelfAppender.setExtractStacktrace(Boolean.parseBoolean(extractStacktrace));
+				gelfAppender.setOriginHost(originHost);
+				gelfAppender.setAddExtendedInformation(Boolean.parseBoolean(addExtendedInformation));
+				gelfAppender.setIncludeLocation(Boolean.parseBoolean(includeLocation));
+				if (additionalFields != null) {
+					gelfAppender.setAdditionalFields(additionalFields);
+				}
+				gelfAppender.setMicrosecondTimestamps(Boolean.parseBoolean(microsecondTimestamps));
+				gelfAppender.setStackTraceRenderer(getGelfStackTraceRenderer(stackTraceMaxDepth, stackTraceCacheSize, exceptionFields));
+				gelfAppender.setDuplicateSuppression(parseInt(duplicateLimit, 0, "duplicateLimit"),
+						parseInt(duplicateWindow, (int) GelfDuplicateSuppressor.DEFAULT_WINDOW_MILLIS, "duplicateWindow"));
+				if (sampling != null) {
+					gelfAppender.setSampler(new GelfSampler(sampling, samplingTraceIdKey));
+				}
+				gelfAppender.setMetrics(metrics);
+				gelfAppender.setEndpointMetrics(endpointMetrics);
+				gelfAppender.registerMBean();
+
+				return gelfAppender;
+			} else {
 				return null;
 			}
 		}
-		if (gelfSender != null) {
 
-			GelfAppender gelfAppender = new GelfAppender<S>(name, filter, layout, gelfSender, isHandleExceptions);
-			gelfAppender.setFacility(facility);
-			gelfAppender.setExtractStacktrace(Boolean.parseBoolean(extractStacktrace));
-			gelfAppender.setOriginHost(originHost);
-			gelfAppender.setAddExtendedInformation(Boolean.parseBoolean(addExtendedInformation));
-			gelfAppender.setIncludeLocation(Boolean.parseBoolean(includeLocation));
-			gelfAppender.setAdditionalFields(additionalFields);
+		private static GelfMetrics endpointMetrics(Map<String, GelfMetrics> endpointMetrics, String endpoint,
+												   GelfMetrics appenderMetrics) {
+			GelfMetrics metrics = endpointMetrics.get(endpoint);
+			if (metrics == null) {
+				metrics = new GelfMetrics(appenderMetrics);
+				endpointMetrics.put(endpoint, metrics);
+			}
+			return metrics;
+		}
 
-			return gelfAppender;
-		} else {
-			return null;
+		private GelfSender createSender(String host, int port, GelfCompressor compressor, SSLContext tlsContext,
+										GelfMetrics metrics) throws IOException {
+			long refreshInterval = parseInt(dnsRefreshInterval, 0, "dnsRefreshInterval");
+			if (isHttp(host)) {
+				GelfHttpSender httpSender = getGelfHttpSender(httpUrl(host, port),
+						parseInt(httpBatchSize, GelfHttpSender.DEFAULT_BATCH_SIZE, "httpBatchSize"),
+						parseInt(httpLinger, (int) GelfHttpSender.DEFAULT_LINGER_MILLIS, "httpLinger"),
+						parseInt(httpMaxInFlight, GelfHttpSender.DEFAULT_MAX_IN_FLIGHT, "httpMaxInFlight"),
+						parseInt(httpMaxRetries, GelfHttpSender.DEFAULT_MAX_RETRIES, "httpMaxRetries"));
+				httpSender.setCompressor(compressor);
+				httpSender.setMetrics(metrics);
+				return httpSender;
+			} else if (host.startsWith("tcp:") || host.startsWith("tls:")) {
+				String tcpGraylogHost = host.substring(4);
+				int batchSize = parseInt(tcpBatchSize, 0, "tcpBatchSize");
+				int connectTimeout = parseInt(tcpConnectTimeout, GelfTCPSender.DEFAULT_CONNECT_TIMEOUT_MILLIS, "tcpConnectTimeout");
+				if (host.startsWith("tls:")) {
+					GelfTLSSender tlsSender = getGelfTLSSender(tcpGraylogHost, port,
+							batchSize > 0 ? batchSize : GelfTCPBatchSender.DEFAULT_BATCH_SIZE,
+							parseInt(tcpLinger, (int) GelfTCPBatchSender.DEFAULT_LINGER_MILLIS, "tcpLinger"), connectTimeout, tlsContext);
+					tlsSender.setVerifyHostname(tlsVerifyHostname == null || Boolean.parseBoolean(tlsVerifyHostname));
+					tlsSender.setReconnectDelays(
+							parseInt(tcpReconnectDelay, (int) GelfTCPSender.DEFAULT_INITIAL_RECONNECT_DELAY_MILLIS, "tcpReconnectDelay"),
+							parseInt(tcpMaxReconnectDelay, (int) GelfTCPSender.DEFAULT_MAX_RECONNECT_DELAY_MILLIS, "tcpMaxReconnectDelay"));
+					tlsSender.setDnsRefreshInterval(refreshInterval);
+					tlsSender.setMetrics(metrics);
+					tlsSender.connect();
+					return tlsSender;
+				} else if (Boolean.parseBoolean(tcpNonBlocking)) {
+					GelfTCPNioSender nioSender = getGelfTCPNioSender(tcpGraylogHost, port, connectTimeout,
+							parseInt(tcpMaxPending, GelfTCPNioSender.DEFAULT_MAX_PENDING_BYTES, "tcpMaxPending"));
+					nioSender.setDnsRefreshInterval(refreshInterval);
+					nioSender.setMetrics(metrics);
+					return nioSender;
+				} else {
+					GelfTCPSender tcpSender;
+					if (batchSize > 0) {
+						tcpSender = getGelfTCPBatchSender(tcpGraylogHost, port, batchSize,
+								parseInt(tcpLinger, (int) GelfTCPBatchSender.DEFAULT_LINGER_MILLIS, "tcpLinger"), connectTimeout);
+					} else {
+						tcpSender = getGelfTCPSender(tcpGraylogHost, port, connectTimeout);
+					}
+					tcpSender.setCompressor(compressor);
+					tcpSender.setReconnectDelays(
+							parseInt(tcpReconnectDelay, (int) GelfTCPSender.DEFAULT_INITIAL_RECONNECT_DELAY_MILLIS, "tcpReconnectDelay"),
+							parseInt(tcpMaxReconnectDelay, (int) GelfTCPSender.DEFAULT_MAX_RECONNECT_DELAY_MILLIS, "tcpMaxReconnectDelay"));
+					tcpSender.setDnsRefreshInterval(refreshInterval);
+					tcpSender.setMetrics(metrics);
+					tcpSender.connect();
+					return tcpSender;
+				}
+			} else {
+				String udpGraylogHost = host.startsWith("udp:") ? host.substring(4) : host;
+				GelfUDPSender udpSender = getGelfUDPSender(udpGraylogHost, port,
+						parseInt(chunkSize, GelfUDPSender.DEFAULT_CHUNK_SIZE, "chunkSize"));
+				GelfUDPSender.OversizePolicy oversizePolicy = GelfUDPSender.OversizePolicy.TRUNCATE;
+				if (udpOversizePolicy != null) {
+					try {
+						oversizePolicy = GelfUDPSender.OversizePolicy.valueOf(udpOversizePolicy.toUpperCase());
+					} catch (IllegalArgumentException e) {
+						LOGGER.error("Unknown UDP oversize policy: " + udpOversizePolicy);
+					}
+				}
+				// Graylog's TCP input expects null-byte framed messages, which the batch sender writes
+				GelfTCPBatchSender fallbackSender = null;
+				if (oversizePolicy == GelfUDPSender.OversizePolicy.FALLBACK) {
+					fallbackSender = getGelfTCPBatchSender(udpGraylogHost, port, GelfTCPBatchSender.DEFAULT_BATCH_SIZE,
+							GelfTCPBatchSender.DEFAULT_LINGER_MILLIS, GelfTCPSender.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+					fallbackSender.setDnsRefreshInterval(refreshInterval);
+					fallbackSender.setMetrics(metrics);
+					fallbackSender.connect();
+				}
+				udpSender.setOversizePolicy(oversizePolicy, fallbackSender);
+				udpSender.setCompressor(compressor);
+				udpSender.setDnsRefreshInterval(refreshInterval);
+				udpSender.setMetrics(metrics);
+				return udpSender;
+			}
 		}
 	}
 
-	protected static GelfUDPSender getGelfUDPSender(String udpGraylogHost, int graylogPort) throws IOException {
-		return new GelfUDPSender(udpGraylogHost, graylogPort);
+	private static boolean isHttp(String host) {
+		return host.startsWith("http:") || host.startsWith("https:");
+	}
+
+	/**
+	 * Completes an http: host with the Graylog port and the input's default path where they are missing.
+	 */
+	private static String httpUrl(String host, int port) throws MalformedURLException {
+		URL url = new URL(host);
+		int urlPort = url.getPort() != -1 ? url.getPort() : port > 0 ? port : url.getDefaultPort();
+		String file = url.getFile().length() == 0 || url.getFile().equals("/") ? "/gelf" : url.getFile();
+		return new URL(url.getProtocol(), url.getHost(), urlPort, file).toString();
+	}
+
+	protected static GelfTLSSender getGelfTLSSender(String tlsGraylogHost, int graylogPort, int batchSize, long lingerMillis,
+												  int connectTimeoutMillis, SSLContext context) throws IOException {
+		return new GelfTLSSender(tlsGraylogHost, graylogPort, batchSize, lingerMillis, connectTimeoutMillis, context);
+	}
+
+	protected static GelfHttpSender getGelfHttpSender(String url, int batchSize, long lingerMillis, int maxInFlight,
+													  int maxRetries) throws IOException {
+		return new GelfHttpSender(url, batchSize, lingerMillis, maxInFlight, maxRetries);
+	}
+
+	protected static GelfUDPSender getGelfUDPSender(String udpGraylogHost, int graylogPort, int chunkSize) throws IOException {
+		return new GelfUDPSender(udpGraylogHost, graylogPort, chunkSize);
+	}
+
+	protected static GelfTCPSender getGelfTCPSender(String tcpGraylogHost, int graylogPort, int connectTimeoutMillis)
+			throws IOException {
+		return new GelfTCPSender(tcpGraylogHost, graylogPort, connectTimeoutMillis);
+	}
+
+	protected static GelfTCPBatchSender getGelfTCPBatchSender(String tcpGraylogHost, int graylogPort, int batchSize,
+															  long lingerMillis, int connectTimeoutMillis) throws IOException {
+		return new GelfTCPBatchSender(tcpGraylogHost, graylogPort, batchSize, lingerMillis, connectTimeoutMillis);
 	}
 
-	protected static GelfTCPSender getGelfTCPSender(String tcpGraylogHost, int graylogPort) throws IOException {
-		return new GelfTCPSender(tcpGraylogHost, graylogPort);
+	protected static GelfTCPNioSender getGelfTCPNioSender(String tcpGraylogHost, int graylogPort, long connectTimeoutMillis,
+														  int maxPendingBytes) throws IOException {
+		return new GelfTCPNioSender(tcpGraylogHost, graylogPort, connectTimeoutMillis, maxPendingBytes);
+	}
+
+	protected static GelfCompressor getGelfCompressor(String codecStr, String levelStr) {
+		GelfCompressor.Codec codec = GelfCompressor.Codec.GZIP;
+		if (codecStr != null) {
+			try {
+				codec = GelfCompressor.Codec.valueOf(codecStr.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				LOGGER.error("Unknown compression: " + codecStr);
+			}
+		}
+		int level = parseInt(levelStr, Deflater.DEFAULT_COMPRESSION, "compressionLevel");
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			LOGGER.error("Compression level must be between 0 and 9: " + level);
+			level = Deflater.DEFAULT_COMPRESSION;
+		}
+		if (codec == GelfCompressor.Codec.GZIP && level == Deflater.DEFAULT_COMPRESSION) {
+			return GelfCompressor.GZIP;
+		}
+		return new GelfCompressor(codec, level);
+	}
+
+	protected static GelfStackTraceRenderer getGelfStackTraceRenderer(String maxDepthStr, String cacheSizeStr,
+																	  String exceptionFieldsStr) {
+		return new GelfStackTraceRenderer(
+				Math.max(0, parseInt(maxDepthStr, 0, "stackTraceMaxDepth")),
+				parseInt(cacheSizeStr, GelfStackTraceRenderer.DEFAULT_CACHE_SIZE, "stackTraceCacheSize"),
+				Boolean.parseBoolean(exceptionFieldsStr));
+	}
+
+	protected static GelfLoadBalancingSender getGelfLoadBalancingSender(List<GelfSender> members, String strategyStr,
+																		String retryDelayStr) {
+		GelfLoadBalancingSender.Strategy strategy = GelfLoadBalancingSender.Strategy.ROUND_ROBIN;
+		if (strategyStr != null) {
+			try {
+				strategy = GelfLoadBalancingSender.Strategy.valueOf(strategyStr.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				LOGGER.error("Unknown load balancing strategy: " + strategyStr);
+			}
+		}
+		if (strategy == GelfLoadBalancingSender.Strategy.LEAST_OUTSTANDING_BYTES) {
+			for (GelfSender member : members) {
+				if (!(member instanceof GelfTCPNioSender)) {
+					// other senders do not report what they have queued
+					LOGGER.error("LEAST_OUTSTANDING_BYTES requires tcpNonBlocking endpoints, using ROUND_ROBIN");
+					strategy = GelfLoadBalancingSender.Strategy.ROUND_ROBIN;
+					break;
+				}
+			}
+		}
+		GelfLoadBalancingSender sender = new GelfLoadBalancingSender(members, strategy);
+		sender.setRetryDelays(
+				parseInt(retryDelayStr, (int) GelfLoadBalancingSender.DEFAULT_INITIAL_RETRY_DELAY_MILLIS, "endpointRetryDelay"),
+				GelfLoadBalancingSender.DEFAULT_MAX_RETRY_DELAY_MILLIS);
+		return sender;
+	}
+
+	protected static AsyncGelfSender getAsyncGelfSender(GelfSender gelfSender, String queueSizeStr, String overflowPolicyStr,
+														String blockTimeoutStr) {
+		AsyncGelfSender.OverflowPolicy overflowPolicy = AsyncGelfSender.OverflowPolicy.DROP_NEWEST;
+		if (overflowPolicyStr != null) {
+			try {
+				overflowPolicy = AsyncGelfSender.OverflowPolicy.valueOf(overflowPolicyStr.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				LOGGER.error("Unknown async overflow policy: " + overflowPolicyStr);
+			}
+		}
+		return new AsyncGelfSender(gelfSender,
+				parseInt(queueSizeStr, AsyncGelfSender.DEFAULT_QUEUE_SIZE, "asyncQueueSize"),
+				overflowPolicy,
+				parseInt(blockTimeoutStr, (int) AsyncGelfSender.DEFAULT_BLOCK_TIMEOUT_MILLIS, "asyncBlockTimeout"),
+				AsyncGelfSender.DEFAULT_DRAIN_TIMEOUT_MILLIS);
+	}
+
+	static int parseInt(String value, int defaultValue, String attribute) {
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			LOGGER.error("Can't parse " + attribute + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Lets at most {@code limit} occurrences of the same message through per window and sends a summary
+	 * with the number of suppressed ones when the window ends.
+	 */
+	public void setDuplicateSuppression(int limit, long windowMillis) {
+		if (duplicateSuppressor != null) {
+			duplicateSuppressor.close();
+		}
+		duplicateSuppressor = limit > 0 ? new GelfDuplicateSuppressor(limit, windowMillis, new GelfDuplicateSuppressor.Listener() {
+			public void suppressed(String loggerName, Level level, String template, int count) {
+				GelfMessage summary = GelfMessageFactory.makeSuppressionSummary(loggerName, level, template, count, GelfAppender.this);
+				if (getGelfSender() == null || !getGelfSender().sendMessage(summary)) {
+					error("Could not send GELF message");
+				}
+			}
+		}) : null;
+	}
+
+	public void setSampler(GelfSampler sampler) {
+		this.sampler = sampler;
 	}
 
 	@Override
 	public void append(LogEvent event) {
-		GelfMessage gelfMessage = GelfMessageFactory.makeMessage(event, this);
+		Double sampleRate = null;
+		if (sampler != null) {
+			sampleRate = sampler.sample(event);
+			if (sampleRate == null) {
+				metrics.messageDropped();
+				return;
+			}
+		}
+		if (duplicateSuppressor != null && !duplicateSuppressor.allow(event)) {
+			metrics.messageDropped();
+			return;
+		}
+
+		long start = System.nanoTime();
+		GelfMessage gelfMessage = reuseMessages
+				? GelfMessageFactory.makeReusableMessage(event, this)
+				: GelfMessageFactory.makeMessage(event, this);
+		metrics.messageBuilt(System.nanoTime() - start);
+		if (sampleRate != null && sampleRate < 1.0) {
+			gelfMessage.addField(GelfMessageFactory.SAMPLE_RATE, sampleRate);
+		}
 
 		if (getGelfSender() == null || !getGelfSender().sendMessage(gelfMessage)) {
 			error("Could not send GELF message");
@@ -219,8 +1036,77 @@ public class GelfAppender<T extends Serializable> extends AbstractAppender imple
 		return gelfSender;
 	}
 
-	public void close() {
+	public void setMetrics(GelfMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public GelfMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Metrics of the single endpoints of a load balanced appender, by endpoint; each also counts towards the
+	 * appender's metrics.
+	 */
+	public void setEndpointMetrics(Map<String, GelfMetrics> endpointMetrics) {
+		this.endpointMetrics = endpointMetrics;
+	}
+
+	public Map<String, GelfMetrics> getEndpointMetrics() {
+		return Collections.unmodifiableMap(endpointMetrics);
+	}
+
+	/**
+	 * Registers the metrics as {@code org.graylog2:type=GelfAppender,name=<appender name>} with the platform
+	 * MBean server, and those of each endpoint with an additional {@code endpoint=<endpoint>} key, replacing
+	 * the MBeans of an appender of the same name, e.g. after a reconfiguration.
+	 */
+	public synchronized void registerMBean() {
+		unregisterMBean();
+		ObjectName objectName = GelfMBeans.register(getName(), null, metrics);
+		if (objectName != null) {
+			mbeanNames.put(objectName, metrics);
+		}
+		for (Map.Entry<String, GelfMetrics> endpoint : endpointMetrics.entrySet()) {
+			objectName = GelfMBeans.register(getName(), endpoint.getKey(), endpoint.getValue());
+			if (objectName != null) {
+				mbeanNames.put(objectName, endpoint.getValue());
+			}
+		}
+	}
+
+	public synchronized void unregisterMBean() {
+		for (Map.Entry<ObjectName, GelfMetrics> registered : mbeanNames.entrySet()) {
+			GelfMBeans.unregister(registered.getKey(), registered.getValue());
+		}
+		mbeanNames.clear();
+	}
+
+	/**
+	 * Sends the pending duplicate summaries and closes the sender, which delivers what it still queues or buffers.
+	 * Log4j stops appenders through this method, {@link #stop()} delegates to it.
+	 */
+	@Override
+	public boolean stop(long timeout, TimeUnit timeUnit) {
+		if (isStopped()) {
+			return true;
+		}
+		setStopping();
+		boolean stopped = super.stop(timeout, timeUnit, false);
+		if (duplicateSuppressor != null) {
+			duplicateSuppressor.close();
+		}
 		getGelfSender().close();
+		unregisterMBean();
+		setStopped();
+		return stopped;
+	}
+
+	/**
+	 * Same as {@link #stop()}.
+	 */
+	public void close() {
+		stop();
 	}
 
 	public boolean requiresLayout() {
@@ -0,0 +1,159 @@
+package org.graylog2.log4j2;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.graylog2.GelfRandomMessageIdGenerator;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lets the first occurrences of a message through per time window and counts the rest. Messages are
+ * identified by logger, level and message template (the unformatted pattern), so that "user {} not found"
+ * is one message whatever the arguments are.
+ * <p>
+ * Counts live in a fixed-size table indexed by fingerprint and are updated with CAS only. Two messages
+ * sharing a slot take turns in it, which restarts their counts, so a collision lets messages through
+ * rather than suppressing them wrongly. When a window with suppressed messages ends, the listener gets
+ * their count: on the logging thread that starts the next window, or from a background sweep once the
+ * message has stopped.
+ */
+public class GelfDuplicateSuppressor {
+
+	public static final int DEFAULT_SLOTS = 1024;
+	public static final long DEFAULT_WINDOW_MILLIS = 60000;
+
+	public interface Listener {
+		void suppressed(String loggerName, Level level, String template, int count);
+	}
+
+	private final int limit;
+	private final long windowMillis;
+	private final int mask;
+	private final AtomicReferenceArray<Window> windows;
+	private final Listener listener;
+	private final ScheduledExecutorService sweeper;
+
+	public GelfDuplicateSuppressor(int limit, long windowMillis, Listener listener) {
+		this(limit, windowMillis, DEFAULT_SLOTS, listener);
+	}
+
+	/**
+	 * @param limit        occurrences let through per window
+	 * @param windowMillis window length
+	 * @param slots        distinct messages tracked at a time, rounded up to a power of two
+	 */
+	public GelfDuplicateSuppressor(int limit, long windowMillis, int slots, Listener listener) {
+		this.limit = limit;
+		this.windowMillis = Math.max(1, windowMillis);
+		int size = Integer.highestOneBit(Math.max(1, slots));
+		if (size < slots) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.windows = new AtomicReferenceArray<Window>(size);
+		this.listener = listener;
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "GelfDuplicateSuppressor-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep(System.currentTimeMillis() / GelfDuplicateSuppressor.this.windowMillis);
+			}
+		}, this.windowMillis, this.windowMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return false if the event is a duplicate beyond the limit of its window
+	 */
+	public boolean allow(LogEvent event) {
+		String loggerName = event.getLoggerName();
+		Level level = event.getLevel();
+		String template = template(event.getMessage());
+		long fingerprint = fingerprint(loggerName, level, template);
+		// windows follow the event time, so that replayed or async events are counted where they belong
+		long window = Log4jVersionChecker.getTimeStamp(event) / windowMillis;
+		int index = (int) fingerprint & mask;
+
+		for (; ; ) {
+			Window current = windows.get(index);
+			if (current != null && current.fingerprint == fingerprint && current.window >= window) {
+				// a late event from an earlier window is counted in the current one
+				return current.count.incrementAndGet() <= limit;
+			}
+			Window next = new Window(fingerprint, window, loggerName, level, template);
+			if (windows.compareAndSet(index, current, next)) {
+				report(current);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Reports windows that ended before the given one.
+	 */
+	void sweep(long window) {
+		for (int i = 0; i < windows.length(); i++) {
+			Window current = windows.get(i);
+			if (current != null && current.window < window && windows.compareAndSet(i, current, null)) {
+				report(current);
+			}
+		}
+	}
+
+	/**
+	 * Stops the sweep and reports all windows with suppressed messages.
+	 */
+	public void close() {
+		sweeper.shutdownNow();
+		sweep(Long.MAX_VALUE);
+	}
+
+	private void report(Window window) {
+		if (window != null) {
+			int suppressed = window.count.get() - limit;
+			if (suppressed > 0) {
+				listener.suppressed(window.loggerName, window.level, window.template, suppressed);
+			}
+		}
+	}
+
+	private static String template(Message message) {
+		String format = message.getFormat();
+		return format != null ? format : message.getFormattedMessage();
+	}
+
+	private static long fingerprint(String loggerName, Level level, String template) {
+		long hash = loggerName == null ? 0 : loggerName.hashCode();
+		hash = 31 * hash + level.intLevel();
+		hash = (hash << 32) ^ (template == null ? 0 : template.hashCode());
+		// mixed, so that the low bits used as index depend on all inputs
+		return GelfRandomMessageIdGenerator.mix(hash);
+	}
+
+	private static class Window {
+		private final long fingerprint;
+		private final long window;
+		private final String loggerName;
+		private final Level level;
+		private final String template;
+		private final AtomicInteger count = new AtomicInteger(1);
+
+		Window(long fingerprint, long window, String loggerName, Level level, String template) {
+			this.fingerprint = fingerprint;
+			this.window = window;
+			this.loggerName = loggerName;
+			this.level = level;
+			this.template = template;
+		}
+	}
+}
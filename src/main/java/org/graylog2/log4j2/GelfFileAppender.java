@@ -0,0 +1,93 @@
+package org.graylog2.log4j2;
+
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.graylog2.*;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Writes GELF messages as JSON lines to rolling files, see {@link GelfFileSender}.
+ */
+@Plugin(name = "GELFFile", category = "Core", elementType = "appender", printObject = true)
+public class GelfFileAppender<T extends Serializable> extends AbstractGelfLineAppender<T> {
+
+    private GelfFileAppender(final String name, final Filter filter, final Layout<T> layout, GelfSender gelfSender, final boolean handleExceptions) {
+        super(name, filter, layout, gelfSender, handleExceptions);
+    }
+
+    @PluginFactory
+    public static <S extends Serializable> GelfFileAppender<S> createAppender(
+            @PluginAttribute("name") final String name,
+            @PluginAttribute("facility") final String facility,
+            @PluginAttribute("fileName") final String fileName,
+            @PluginAttribute("extractStacktrace") final String extractStacktrace,
+            @PluginAttribute("originHost") final String originHost,
+            @PluginAttribute("addExtendedInformation") final String addExtendedInformation,
+            @PluginAttribute("includeLocation") final String includeLocation,
+            @PluginAttribute("additionalFields") final String additionalFields,
+            @PluginElement("layout") Layout<S> layout,
+            @PluginElement("filter") Filter filter,
+            @PluginAttribute("suppressExceptions") final String suppressExceptions,
+            @PluginAttribute("microsecondTimestamps") final String microsecondTimestamps,
+            @PluginAttribute("stackTraceMaxDepth") final String stackTraceMaxDepth,
+            @PluginAttribute("stackTraceCacheSize") final String stackTraceCacheSize,
+            @PluginAttribute("exceptionFields") final String exceptionFields,
+            @PluginAttribute("segmentSize") final String segmentSize,
+            @PluginAttribute("rollInterval") final String rollInterval,
+            @PluginAttribute("maxFiles") final String maxFiles) {
+
+        if (name == null) {
+            LOGGER.error("No name provided for GelfFileAppender");
+            return null;
+        }
+
+        final boolean isHandleExceptions = suppressExceptions == null ? true : Boolean.valueOf(suppressExceptions);
+
+        // messages are encoded as GELF, so no default layout is created
+        filter = filterOrDefault(filter);
+
+        if (fileName == null) {
+            LOGGER.error("No fileName provided for GelfFileAppender");
+            return null;
+        }
+
+        GelfFileSender gelfSender;
+        try {
+            gelfSender = getGelfFileSender(fileName,
+                    GelfAppender.parseInt(segmentSize, GelfFileSender.DEFAULT_SEGMENT_SIZE, "segmentSize"),
+                    GelfAppender.parseInt(rollInterval, (int) GelfFileSender.DEFAULT_ROLL_INTERVAL_MILLIS, "rollInterval"),
+                    GelfAppender.parseInt(maxFiles, GelfFileSender.DEFAULT_MAX_FILES, "maxFiles"));
+        } catch (IOException e) {
+            LOGGER.error("Can't open GELF log file " + fileName, e);
+            return null;
+        }
+
+        GelfFileAppender<S> gelfFileAppender = new GelfFileAppender<S>(name, filter, layout, gelfSender, isHandleExceptions);
+        gelfFileAppender.setFacility(facility);
+        gelfFileAppender.setExtractStacktrace(Boolean.parseBoolean(extractStacktrace));
+        gelfFileAppender.setOriginHost(originHost);
+        gelfFileAppender.setAddExtendedInformation(Boolean.parseBoolean(addExtendedInformation));
+        gelfFileAppender.setIncludeLocation(Boolean.parseBoolean(includeLocation));
+        if (additionalFields != null) {
+            gelfFileAppender.setAdditionalFields(additionalFields);
+        }
+        gelfFileAppender.setMicrosecondTimestamps(Boolean.parseBoolean(microsecondTimestamps));
+        gelfFileAppender.setStackTraceRenderer(
+                GelfAppender.getGelfStackTraceRenderer(stackTraceMaxDepth, stackTraceCacheSize, exceptionFields));
+        gelfFileAppender.setMetrics(gelfSender.getMetrics());
+        gelfFileAppender.registerMBean();
+
+        return gelfFileAppender;
+    }
+
+    protected static GelfFileSender getGelfFileSender(String fileName, int segmentSize, long rollIntervalMillis,
+                                                      int maxFiles) throws IOException {
+        return new GelfFileSender(fileName, segmentSize, rollIntervalMillis, maxFiles);
+    }
+}
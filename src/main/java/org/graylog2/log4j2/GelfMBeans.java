@@ -0,0 +1,69 @@
+package org.graylog2.log4j2;
+
+import org.apache.logging.log4j.status.StatusLogger;
+import org.graylog2.GelfMetrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers appender metrics with the platform MBean server as
+ * {@code org.graylog2:type=GelfAppender,name=<appender name>}, and the metrics of a single endpoint with an
+ * additional {@code endpoint} key. A registration replaces the MBean of an appender of the same name, e.g.
+ * after a reconfiguration.
+ */
+final class GelfMBeans {
+
+	private static final StatusLogger LOGGER = StatusLogger.getLogger();
+	private static final ConcurrentMap<ObjectName, GelfMetrics> REGISTERED_METRICS = new ConcurrentHashMap<ObjectName, GelfMetrics>();
+
+	private GelfMBeans() {
+	}
+
+	/**
+	 * @param endpoint the endpoint, or null for the metrics of the whole appender
+	 * @return the name registered, or null if registering failed
+	 */
+	static ObjectName register(String appenderName, String endpoint, GelfMetrics metrics) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("org.graylog2:type=GelfAppender,name=" + quoteIfNeeded(appenderName)
+					+ (endpoint == null ? "" : ",endpoint=" + quoteIfNeeded(endpoint)));
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(metrics, objectName);
+			REGISTERED_METRICS.put(objectName, metrics);
+			return objectName;
+		} catch (JMException e) {
+			LOGGER.error("Can't register GELF appender metrics", e);
+			return null;
+		}
+	}
+
+	static void unregister(ObjectName objectName, GelfMetrics metrics) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			// an appender that replaced this one may have registered under the same name
+			if (REGISTERED_METRICS.remove(objectName, metrics) && server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			LOGGER.error("Can't unregister GELF appender metrics", e);
+		}
+	}
+
+	private static String quoteIfNeeded(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (",=:\"*?\n".indexOf(value.charAt(i)) >= 0) {
+				return ObjectName.quote(value);
+			}
+		}
+		return value;
+	}
+}
@@ -2,11 +2,18 @@ package org.graylog2.log4j2;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.time.Instant;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.TriConsumer;
+import org.graylog2.GelfFieldMap;
 import org.graylog2.GelfMessage;
 import org.graylog2.GelfMessageProvider;
+import org.graylog2.GelfStackTraceRenderer;
+import org.graylog2.GelfStaticFields;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class GelfMessageFactory {
@@ -17,10 +24,29 @@ public class GelfMessageFactory {
 	public static final String LOGGER_NDC = "loggerNdc";
 	public static final String THREAD_NAME = "thread";
 	public static final String JAVA_TIMESTAMP = "timestampMs";
+	public static final String EXCEPTION_CLASS = "exception_class";
+	public static final String STACK_HASH = "stack_hash";
+	public static final String SUPPRESSED_COUNT = "suppressed_count";
+	public static final String SAMPLE_RATE = "sample_rate";
+
+	private static final String[] SYSLOG_LEVELS = {"0", "1", "2", "3", "4", "5", "6", "7"};
+	private static final int MAX_RETAINED_TEXT_CAPACITY = 1024 * 1024;
+
+	private static final TriConsumer<String, Object, GelfMessage> ADD_CONTEXT_FIELD =
+			new TriConsumer<String, Object, GelfMessage>() {
+				public void accept(String key, Object value, GelfMessage gelfMessage) {
+					gelfMessage.addField(key, value == null ? null : String.valueOf(value));
+				}
+			};
+
+	private static final ThreadLocal<ReusableState> REUSABLE_STATE = new ThreadLocal<ReusableState>() {
+		@Override
+		protected ReusableState initialValue() {
+			return new ReusableState();
+		}
+	};
 
-	@SuppressWarnings("unchecked")
 	public static GelfMessage makeMessage(LogEvent event, GelfMessageProvider provider) {
-		long timeStamp = Log4jVersionChecker.getTimeStamp(event);
 		Level level = event.getLevel();
 
 		String file = null;
@@ -37,11 +63,9 @@ public class GelfMessageFactory {
 			renderedMessage = "";
 		}
 
-		if (provider.isExtractStacktrace()) {
-			Throwable throwable = event.getThrown();
-			if (throwable != null) {
-				renderedMessage += "\n\r" + extractStacktrace(throwable);
-			}
+		GelfStackTraceRenderer.Trace trace = renderThrown(event, provider);
+		if (trace != null && provider.isExtractStacktrace()) {
+			renderedMessage += "\n\r" + trace.getText();
 		}
 
 		if (renderedMessage.length() > MAX_SHORT_MESSAGE_LENGTH) {
@@ -50,39 +74,126 @@ public class GelfMessageFactory {
 			shortMessage = renderedMessage;
 		}
 
-		GelfMessage gelfMessage = new GelfMessage(shortMessage, renderedMessage, timeStamp,
-				String.valueOf(getSyslogEquivalent(level)), lineNumber, file);
+		GelfMessage gelfMessage = new GelfMessage(shortMessage, renderedMessage, 0L,
+				SYSLOG_LEVELS[getSyslogEquivalent(level)], lineNumber, file);
+		long timeStamp = setTimestamp(gelfMessage, event, provider);
+
+		addFields(gelfMessage, event, provider, Long.toString(timeStamp));
+		addExceptionFields(gelfMessage, event, provider, trace);
+
+		return gelfMessage;
+	}
+
+	/**
+	 * Like {@link #makeMessage(LogEvent, GelfMessageProvider)}, but populates a message owned by the calling
+	 * thread instead of allocating one. Messages implementing StringBuilderFormattable are formatted straight
+	 * into a reused builder, so apart from stack traces and caller location nothing is allocated per event.
+	 * <p>
+	 * The returned message is only valid until the next call on the same thread; it must not be handed to a
+	 * sender that keeps messages after sendMessage returns, such as {@link org.graylog2.AsyncGelfSender}.
+	 */
+	public static GelfMessage makeReusableMessage(LogEvent event, GelfMessageProvider provider) {
+		ReusableState state = REUSABLE_STATE.get();
+		GelfMessage gelfMessage = state.message;
+		gelfMessage.clear();
+
+		StringBuilder text = state.text();
+		Message message = event.getMessage();
+		if (message instanceof StringBuilderFormattable) {
+			((StringBuilderFormattable) message).formatTo(text);
+		} else {
+			String formatted = message.getFormattedMessage();
+			if (formatted != null) {
+				text.append(formatted);
+			}
+		}
+
+		GelfStackTraceRenderer.Trace trace = renderThrown(event, provider);
+		if (trace != null && provider.isExtractStacktrace()) {
+			text.append("\n\r").append(trace.getText());
+		}
+
+		gelfMessage.setMessage(text, text.length() > MAX_SHORT_MESSAGE_LENGTH ? MAX_SHORT_MESSAGE_LENGTH - 1 : text.length());
 
-		if (provider.getOriginHost() != null) {
-			gelfMessage.setHost(provider.getOriginHost());
+		long timeStamp = setTimestamp(gelfMessage, event, provider);
+		gelfMessage.setLevel(SYSLOG_LEVELS[getSyslogEquivalent(event.getLevel())]);
+		if (provider.isIncludeLocation()) {
+			gelfMessage.setFile(event.getFQCN());
+			gelfMessage.setLine(String.valueOf(event.getSource().getLineNumber()));
 		}
 
-		if (provider.getFacility() != null) {
-			gelfMessage.setFacility(provider.getFacility());
+		StringBuilder javaTimestamp = state.javaTimestamp;
+		javaTimestamp.setLength(0);
+		javaTimestamp.append(timeStamp);
+		addFields(gelfMessage, event, provider, javaTimestamp);
+		addExceptionFields(gelfMessage, event, provider, trace);
+
+		return gelfMessage;
+	}
+
+	/**
+	 * Builds the message reporting how often a message was suppressed as a duplicate.
+	 */
+	public static GelfMessage makeSuppressionSummary(String loggerName, Level level, String template, int count,
+	                                                 GelfMessageProvider provider) {
+		String text = "Suppressed " + count + " duplicates of: " + template;
+		String shortMessage = text.length() > MAX_SHORT_MESSAGE_LENGTH ? text.substring(0, MAX_SHORT_MESSAGE_LENGTH - 1) : text;
+		GelfMessage gelfMessage = new GelfMessage(shortMessage, text, System.currentTimeMillis(),
+				SYSLOG_LEVELS[getSyslogEquivalent(level)]);
+		gelfMessage.setStaticFields(provider.getStaticFields());
+		if (loggerName != null) {
+			gelfMessage.addField(LOGGER_NAME, loggerName);
 		}
+		gelfMessage.addField(SUPPRESSED_COUNT, count);
+		return gelfMessage;
+	}
 
-		Map<String, String> fields = provider.getFields();
-		for (Map.Entry<String, String> entry : fields.entrySet()) {
-			if (entry.getKey().equals(ORIGIN_HOST_KEY) && gelfMessage.getHost() == null) {
-				gelfMessage.setHost(fields.get(ORIGIN_HOST_KEY));
+	/**
+	 * Collects the provider's origin host, facility and additional fields, which are the same for every
+	 * event. An "originHost" additional field is used as host if the provider has none.
+	 */
+	public static GelfStaticFields makeStaticFields(GelfMessageProvider provider) {
+		String host = provider.getOriginHost();
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> entry : provider.getFields().entrySet()) {
+			if (entry.getKey().equals(ORIGIN_HOST_KEY) && host == null) {
+				host = entry.getValue();
 			} else {
-				gelfMessage.addField(entry.getKey(), entry.getValue());
+				fields.put(entry.getKey(), entry.getValue());
 			}
 		}
+		return new GelfStaticFields(host, provider.getFacility(), fields);
+	}
+
+	/**
+	 * @return the event time in epoch milliseconds
+	 */
+	private static long setTimestamp(GelfMessage gelfMessage, LogEvent event, GelfMessageProvider provider) {
+		if (provider.isMicrosecondTimestamps()) {
+			Instant instant = event.getInstant();
+			gelfMessage.setJavaTimestamp(instant.getEpochMillisecond(), instant.getNanoOfMillisecond());
+			return instant.getEpochMillisecond();
+		}
+		long timeStamp = Log4jVersionChecker.getTimeStamp(event);
+		gelfMessage.setJavaTimestamp(timeStamp);
+		return timeStamp;
+	}
+
+	private static void addFields(GelfMessage gelfMessage, LogEvent event, GelfMessageProvider provider,
+	                              CharSequence javaTimestamp) {
+		gelfMessage.setStaticFields(provider.getStaticFields());
 
 		if (provider.isAddExtendedInformation()) {
 
 			gelfMessage.addField(THREAD_NAME, event.getThreadName());
 			gelfMessage.addField(LOGGER_NAME, event.getLoggerName());
-			gelfMessage.addField(JAVA_TIMESTAMP, Long.toString(gelfMessage.getJavaTimestamp()));
+			gelfMessage.addField(JAVA_TIMESTAMP, javaTimestamp);
 
 			// Get MDC data
-			Map<String, String> mdc = event.getContextMap();
+			ReadOnlyStringMap mdc = event.getContextData();
 
 			if (mdc != null) {
-				for (Map.Entry<String, String> entry : mdc.entrySet()) {
-					gelfMessage.addField(entry.getKey(), entry.getValue());
-				}
+				mdc.forEach(ADD_CONTEXT_FIELD, gelfMessage);
 			}
 
 			// Get NDC and add a GELF field
@@ -92,8 +203,6 @@ public class GelfMessageFactory {
 				gelfMessage.addField(LOGGER_NDC, ndc);
 			}
 		}
-
-		return gelfMessage;
 	}
 
 	private static int getSyslogEquivalent(Level level) {
@@ -117,10 +226,46 @@ public class GelfMessageFactory {
 		}
 	}
 
-	private static String extractStacktrace(Throwable throwable) {
-		StringWriter sw = new StringWriter();
-		PrintWriter pw = new PrintWriter(sw);
-		throwable.printStackTrace(pw);
-		return sw.toString();
+	/**
+	 * @return the event's rendered stack trace, or null if there is none or it is not needed
+	 */
+	private static GelfStackTraceRenderer.Trace renderThrown(LogEvent event, GelfMessageProvider provider) {
+		Throwable throwable = event.getThrown();
+		if (throwable == null) {
+			return null;
+		}
+		GelfStackTraceRenderer renderer = provider.getStackTraceRenderer();
+		if (!provider.isExtractStacktrace() && !renderer.isExceptionFields()) {
+			return null;
+		}
+		return renderer.render(throwable);
+	}
+
+	private static void addExceptionFields(GelfMessage gelfMessage, LogEvent event, GelfMessageProvider provider,
+	                                       GelfStackTraceRenderer.Trace trace) {
+		if (trace != null && provider.getStackTraceRenderer().isExceptionFields()) {
+			gelfMessage.addField(EXCEPTION_CLASS, event.getThrown().getClass().getName());
+			gelfMessage.addField(STACK_HASH, trace.getHashHex());
+		}
+	}
+
+	private static class ReusableState {
+		private final GelfMessage message = new GelfMessage();
+		private final StringBuilder javaTimestamp = new StringBuilder(20);
+		private StringBuilder text = new StringBuilder(MAX_SHORT_MESSAGE_LENGTH);
+
+		ReusableState() {
+			message.setAdditonalFields(new GelfFieldMap());
+		}
+
+		// empties the builder, dropping it after a huge message so it does not stay pinned to the thread
+		StringBuilder text() {
+			if (text.capacity() > MAX_RETAINED_TEXT_CAPACITY) {
+				text = new StringBuilder(MAX_SHORT_MESSAGE_LENGTH);
+			} else {
+				text.setLength(0);
+			}
+			return text;
+		}
 	}
 }
@@ -0,0 +1,152 @@
+package org.graylog2.log4j2;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.graylog2.GelfRandomMessageIdGenerator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides per event whether it is sent, from sampling rates configured as a comma separated list:
+ * <pre>DEBUG=0.1, INFO=0.5, com.example.noisy=0.01, com.example.api:INFO=0.2</pre>
+ * A level name sets the rate for that level; a logger name sets it for that logger and its descendants,
+ * for all levels less severe than WARN unless a level is given after a colon. The most specific logger
+ * rule wins over a level rule. Events without a matching rule are always sent.
+ * <p>
+ * If the event's context data has a trace id, the decision is a hash of that id, so all events of a
+ * trace are kept or dropped together; otherwise a per-thread random number decides.
+ */
+public class GelfSampler {
+
+	private static final StatusLogger LOGGER = StatusLogger.getLogger();
+	private static final Double ALWAYS = 1.0;
+
+	private final Map<Level, Double> levelRates = new HashMap<Level, Double>();
+	private final List<LoggerRule> loggerRules = new ArrayList<LoggerRule>();
+	private final String traceIdKey;
+
+	/**
+	 * @param rates      the sampling rules, see above
+	 * @param traceIdKey context data key of the trace id, or null to always sample randomly
+	 */
+	public GelfSampler(String rates, String traceIdKey) {
+		this.traceIdKey = traceIdKey;
+		for (String entry : rates.split(",")) {
+			parseRule(entry.trim());
+		}
+		// longest prefixes first, so the first match is the most specific one
+		Collections.sort(loggerRules, new Comparator<LoggerRule>() {
+			public int compare(LoggerRule a, LoggerRule b) {
+				return b.prefix.length() - a.prefix.length();
+			}
+		});
+	}
+
+	private void parseRule(String entry) {
+		if (entry.length() == 0) {
+			return;
+		}
+		int equals = entry.lastIndexOf('=');
+		Double rate = null;
+		try {
+			rate = equals > 0 ? Double.valueOf(entry.substring(equals + 1).trim()) : null;
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		if (rate == null || rate < 0 || rate > 1) {
+			LOGGER.error("Sampling rule must be <level or logger>=<rate between 0 and 1>: " + entry);
+			return;
+		}
+
+		String key = entry.substring(0, equals).trim();
+		int colon = key.indexOf(':');
+		Level level = Level.getLevel((colon >= 0 ? key.substring(colon + 1) : key).trim().toUpperCase());
+		if (colon >= 0) {
+			if (level == null) {
+				LOGGER.error("Unknown level in sampling rule: " + entry);
+				return;
+			}
+			loggerRules.add(new LoggerRule(key.substring(0, colon).trim(), level, rate));
+		} else if (level != null) {
+			levelRates.put(level, rate);
+		} else {
+			loggerRules.add(new LoggerRule(key, null, rate));
+		}
+	}
+
+	/**
+	 * @return the rate the event was sampled at, or null if it should be dropped; the same Double instance
+	 * is returned for every event matching a rule, so nothing is allocated
+	 */
+	public Double sample(LogEvent event) {
+		Double rate = rateFor(event.getLoggerName(), event.getLevel());
+		if (rate == null) {
+			return null;
+		}
+		double value = rate;
+		if (value >= 1.0) {
+			return rate;
+		}
+		if (value <= 0.0) {
+			return null;
+		}
+		return uniform(event) < value ? rate : null;
+	}
+
+	/**
+	 * @return the configured rate for the logger and level; 1.0 if no rule matches
+	 */
+	Double rateFor(String loggerName, Level level) {
+		String name = loggerName == null ? "" : loggerName;
+		for (LoggerRule rule : loggerRules) {
+			if (rule.matches(name)) {
+				if (rule.level == null ? level.intLevel() > Level.WARN.intLevel() : rule.level == level) {
+					return rule.rate;
+				}
+			}
+		}
+		Double rate = levelRates.get(level);
+		return rate != null ? rate : ALWAYS;
+	}
+
+	private double uniform(LogEvent event) {
+		long bits;
+		Object traceId = null;
+		if (traceIdKey != null) {
+			ReadOnlyStringMap contextData = event.getContextData();
+			traceId = contextData != null ? contextData.getValue(traceIdKey) : null;
+		}
+		if (traceId != null) {
+			bits = GelfRandomMessageIdGenerator.mix(traceId.hashCode() * 0x9e3779b97f4a7c15L);
+		} else {
+			bits = GelfRandomMessageIdGenerator.INSTANCE.nextId();
+		}
+		// top 53 bits as a double in [0, 1)
+		return (bits >>> 11) * 0x1.0p-53;
+	}
+
+	private static class LoggerRule {
+		private final String prefix;
+		private final Level level;
+		private final Double rate;
+
+		LoggerRule(String prefix, Level level, Double rate) {
+			this.prefix = prefix;
+			this.level = level;
+			this.rate = rate;
+		}
+
+		// the logger itself and its descendants, "com.foo" matches "com.foo.Bar" but not "com.foobar"
+		private boolean matches(String loggerName) {
+			return loggerName.startsWith(prefix) && (loggerName.length() == prefix.length()
+					|| prefix.length() == 0 || loggerName.charAt(prefix.length()) == '.');
+		}
+	}
+}
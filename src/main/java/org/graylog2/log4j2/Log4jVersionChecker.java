@@ -13,20 +13,34 @@ import java.lang.reflect.Method;
  */
 public class Log4jVersionChecker {
 
-    private static Method methodGetTimeStamp = null;
+    /**
+     * Whether the runtime LogEvent has getTimeMillis (log4j 2.0 final and later), decided once so that
+     * the common case is a plain interface call the JIT can inline.
+     */
+    private static final boolean HAS_GET_TIME_MILLIS = findMethod("getTimeMillis") != null;
 
-    static {
+    // only needed for log4j 2.0 betas, which called it getMillis
+    private static final Method methodGetTimeStamp = HAS_GET_TIME_MILLIS ? null : findMethod("getMillis");
+
+    private static Method findMethod(String name) {
         Method[] declaredMethods = LogEvent.class.getDeclaredMethods();
         for(Method m : declaredMethods) {
-            if (m.getName().equals("getMillis")) {
-                methodGetTimeStamp = m;
-                break;
+            if (m.getName().equals(name) && m.getParameterTypes().length == 0) {
+                return m;
             }
         }
+        return null;
     }
 
     public static long getTimeStamp(LogEvent event) {
 
+        long timeStamp = HAS_GET_TIME_MILLIS ? event.getTimeMillis() : getTimeStampReflectively(event);
+
+        return timeStamp == 0 ? System.currentTimeMillis() : timeStamp;
+    }
+
+    private static long getTimeStampReflectively(LogEvent event) {
+
         long timeStamp = 0;
         if(methodGetTimeStamp != null) {
 
@@ -39,6 +53,6 @@ public class Log4jVersionChecker {
             }
         }
 
-        return timeStamp == 0 ? System.currentTimeMillis() : timeStamp;
+        return timeStamp;
     }
 }
@@ -0,0 +1,91 @@
+package org.graylog2;
+
+import org.graylog2.GelfTestSupport.RecordingSender;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class AsyncGelfSenderTest {
+
+	@Test
+	public void testDrainOnClose() {
+		RecordingSender delegate = new RecordingSender(null);
+		AsyncGelfSender sender = new AsyncGelfSender(delegate, 1024, AsyncGelfSender.OverflowPolicy.DROP_NEWEST, 0, 5000);
+
+		for (int i = 0; i < 500; i++) {
+			assertTrue(sender.sendMessage(newMessage(String.valueOf(i))));
+		}
+		sender.close();
+
+		assertEquals(500, delegate.messages.size());
+		assertEquals("0", delegate.messages.get(0).getShortMessage());
+		assertEquals(500, sender.getEnqueuedCount());
+		assertEquals(500, sender.getSentCount());
+		assertEquals(0, sender.getDroppedCount());
+		assertTrue(delegate.closed);
+		assertFalse(sender.sendMessage(newMessage("late")));
+	}
+
+	@Test
+	public void testDropNewestWhenFull() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingSender delegate = new RecordingSender(release);
+		AsyncGelfSender sender = new AsyncGelfSender(delegate, 4, AsyncGelfSender.OverflowPolicy.DROP_NEWEST, 0, 5000);
+
+		// the first message is taken by the worker, which then blocks inside the delegate
+		assertTrue(sender.sendMessage(newMessage("first")));
+		delegate.awaitFirstSend();
+		for (int i = 0; i < 4; i++) {
+			assertTrue(sender.sendMessage(newMessage("queued" + i)));
+		}
+		assertFalse(sender.sendMessage(newMessage("overflow")));
+		assertEquals(1, sender.getDroppedCount());
+
+		release.countDown();
+		sender.close();
+		assertEquals(5, delegate.messages.size());
+	}
+
+	@Test
+	public void testDropOldestWhenFull() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingSender delegate = new RecordingSender(release);
+		AsyncGelfSender sender = new AsyncGelfSender(delegate, 4, AsyncGelfSender.OverflowPolicy.DROP_OLDEST, 0, 5000);
+
+		assertTrue(sender.sendMessage(newMessage("first")));
+		delegate.awaitFirstSend();
+		for (int i = 0; i < 6; i++) {
+			assertTrue(sender.sendMessage(newMessage("queued" + i)));
+		}
+		assertEquals(2, sender.getDroppedCount());
+
+		release.countDown();
+		sender.close();
+		assertEquals(5, delegate.messages.size());
+		assertEquals("queued2", delegate.messages.get(1).getShortMessage());
+	}
+
+	@Test
+	public void testBlockTimesOut() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingSender delegate = new RecordingSender(release);
+		AsyncGelfSender sender = new AsyncGelfSender(delegate, 2, AsyncGelfSender.OverflowPolicy.BLOCK, 20, 5000);
+
+		assertTrue(sender.sendMessage(newMessage("first")));
+		delegate.awaitFirstSend();
+		assertTrue(sender.sendMessage(newMessage("queued0")));
+		assertTrue(sender.sendMessage(newMessage("queued1")));
+
+		long start = System.nanoTime();
+		assertFalse(sender.sendMessage(newMessage("blocked")));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+
+		release.countDown();
+		sender.close();
+		assertEquals(3, delegate.messages.size());
+	}
+}
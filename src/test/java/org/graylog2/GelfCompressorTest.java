@@ -0,0 +1,83 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class GelfCompressorTest {
+
+	@Test
+	public void testGzipRoundTrip() throws Exception {
+		GelfBuffer input = text(GelfUDPSenderTest.randomText(50000));
+		GelfBuffer output = GelfCompressor.GZIP.compress(input);
+
+		assertEquals(0x1f, output.array()[0] & 0xff);
+		assertEquals(0x8b, output.array()[1] & 0xff);
+		assertArrayEquals(input.toByteArray(), read(new GZIPInputStream(new ByteArrayInputStream(output.toByteArray()))));
+	}
+
+	@Test
+	public void testZlibRoundTrip() throws Exception {
+		GelfCompressor compressor = new GelfCompressor(GelfCompressor.Codec.ZLIB, Deflater.BEST_SPEED);
+		GelfBuffer input = text("{\"short_message\":\"zlib\"}");
+
+		byte[] compressed = compressor.compress(input).toByteArray();
+
+		assertEquals(0x78, compressed[0] & 0xff);
+		assertArrayEquals(input.toByteArray(), read(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+	}
+
+	@Test
+	public void testNoneReturnsInput() throws Exception {
+		GelfBuffer input = text("{}");
+		assertSame(input, new GelfCompressor(GelfCompressor.Codec.NONE, Deflater.DEFAULT_COMPRESSION).compress(input));
+	}
+
+	@Test
+	public void testCompressorsOfSameCodecAndLevelShareDeflater() throws Exception {
+		GelfCompressor first = new GelfCompressor(GelfCompressor.Codec.ZLIB, Deflater.BEST_SPEED);
+		GelfCompressor second = new GelfCompressor(GelfCompressor.Codec.ZLIB, Deflater.BEST_SPEED);
+		GelfCompressor other = new GelfCompressor(GelfCompressor.Codec.ZLIB, Deflater.BEST_COMPRESSION);
+
+		GelfBuffer output = first.compress(text("first"));
+		assertSame(output, second.compress(text("second")));
+		assertNotSame(output, other.compress(text("other")));
+		assertNotSame(output, GelfCompressor.GZIP.compress(text("gzip")));
+		assertNotSame(GelfCompressor.GZIP.compress(text("gzip")),
+				new GelfCompressor(GelfCompressor.Codec.ZLIB, Deflater.DEFAULT_COMPRESSION).compress(text("zlib")));
+	}
+
+	@Test
+	public void testOutputBufferIsReusedPerThread() throws Exception {
+		GelfBuffer first = GelfCompressor.GZIP.compress(text("first"));
+		byte[] firstBytes = first.toByteArray();
+		GelfBuffer second = GelfCompressor.GZIP.compress(text("second"));
+
+		assertSame(first, second);
+		assertEquals("first", new String(read(new GZIPInputStream(new ByteArrayInputStream(firstBytes))), "UTF-8"));
+		assertEquals("second", new String(read(new GZIPInputStream(new ByteArrayInputStream(second.toByteArray()))), "UTF-8"));
+	}
+
+	private static GelfBuffer text(String value) throws Exception {
+		GelfBuffer buffer = new GelfBuffer();
+		buffer.write(value.getBytes("UTF-8"));
+		return buffer;
+	}
+
+	private static byte[] read(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+}
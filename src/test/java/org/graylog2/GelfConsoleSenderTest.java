@@ -0,0 +1,119 @@
+package org.graylog2;
+
+import org.graylog2.log4j2.GelfConsoleAppender.Target;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfConsoleSenderTest {
+
+	@Test
+	public void testBufferedLinesFromManyThreads() throws Exception {
+		RecordingChannel channel = new RecordingChannel();
+		final GelfConsoleSender sender = new GelfConsoleSender(Target.SYSTEM_OUT, channel, 5, 1024);
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 500; i++) {
+						assertTrue(sender.sendMessage(newMessage(thread + "-" + i)));
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		sender.close();
+
+		String[] lines = channel.toString().split("\n");
+		assertEquals(2000, lines.length);
+		Set<Object> seen = new HashSet<Object>();
+		for (String line : lines) {
+			seen.add(((Map) JSONValue.parse(line)).get("short_message"));
+		}
+		assertEquals(2000, seen.size());
+		assertTrue("writes are batched", channel.writes.get() < 2000);
+		assertEquals(2000, sender.getMetrics().getMessagesSent());
+	}
+
+	@Test
+	public void testFlushInterval() throws Exception {
+		RecordingChannel channel = new RecordingChannel();
+		GelfConsoleSender sender = new GelfConsoleSender(Target.SYSTEM_OUT, channel, 10, 64 * 1024);
+
+		assertTrue(sender.sendMessage(newMessage("waiting")));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (channel.size() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals("waiting", ((Map) JSONValue.parse(channel.toString().trim())).get("short_message"));
+		sender.close();
+	}
+
+	@Test
+	public void testLineLargerThanBuffer() throws Exception {
+		RecordingChannel channel = new RecordingChannel();
+		GelfConsoleSender sender = new GelfConsoleSender(Target.SYSTEM_OUT, channel, 1000, 1024);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			text.append('x');
+		}
+
+		assertTrue(sender.sendMessage(newMessage("small")));
+		assertTrue(sender.sendMessage(newMessage(text.toString())));
+		sender.close();
+
+		String[] lines = channel.toString().split("\n");
+		assertEquals(2, lines.length);
+		assertEquals(text.toString(), ((Map) JSONValue.parse(lines[1])).get("short_message"));
+		assertFalse("closed", sender.sendMessage(newMessage("late")));
+	}
+
+	private static class RecordingChannel implements WritableByteChannel {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private final AtomicInteger writes = new AtomicInteger();
+
+		public synchronized int write(ByteBuffer src) {
+			writes.incrementAndGet();
+			int length = src.remaining();
+			out.write(src.array(), src.arrayOffset() + src.position(), length);
+			src.position(src.limit());
+			return length;
+		}
+
+		public synchronized int size() {
+			return out.size();
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+
+		@Override
+		public synchronized String toString() {
+			try {
+				return out.toString("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
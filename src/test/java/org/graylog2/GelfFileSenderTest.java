@@ -0,0 +1,220 @@
+package org.graylog2;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.status.StatusData;
+import org.apache.logging.log4j.status.StatusListener;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.json.simple.JSONValue;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfFileSenderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRollsBySizeAndCompletesOnClose() throws Exception {
+		File directory = folder.newFolder();
+		GelfFileSender sender = new GelfFileSender(new File(directory, "gelf.log").getPath(), 4096, 0, 0);
+
+		for (int i = 0; i < 200; i++) {
+			assertTrue(sender.sendMessage(newMessage("message " + i)));
+		}
+		sender.close();
+
+		String[] names = directory.list();
+		Arrays.sort(names);
+		assertTrue("rolled", names.length > 1);
+		List<String> lines = new ArrayList<String>();
+		for (String name : names) {
+			assertTrue(name, name.matches("gelf-\\d{6}\\.log"));
+			lines.addAll(readLines(new File(directory, name)));
+		}
+		assertEquals(200, lines.size());
+		for (int i = 0; i < 200; i++) {
+			assertEquals("message " + i, ((Map) JSONValue.parse(lines.get(i))).get("short_message"));
+		}
+		assertFalse("closed", sender.sendMessage(newMessage("late")));
+	}
+
+	@Test
+	public void testRollsByTime() throws Exception {
+		File directory = folder.newFolder();
+		GelfFileSender sender = new GelfFileSender(new File(directory, "gelf.log").getPath(), 1024 * 1024, 20, 0);
+
+		assertTrue(sender.sendMessage(newMessage("timely")));
+		File completed = new File(directory, "gelf-000001.log");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!completed.exists() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, readLines(completed).size());
+		assertEquals("a new segment is active", new File(directory, "gelf-000002.log.active"), sender.getActiveFile());
+		sender.close();
+		assertFalse("empty segments are removed", new File(directory, "gelf-000002.log.active").exists());
+	}
+
+	@Test
+	public void testCompletesActiveSegmentLeftByCrash() throws Exception {
+		File directory = folder.newFolder();
+		String fileName = new File(directory, "gelf.log").getPath();
+		GelfFileSender crashed = new GelfFileSender(fileName, 64 * 1024, 0, 0);
+		for (int i = 0; i < 3; i++) {
+			crashed.sendMessage(newMessage("before crash " + i));
+		}
+		File active = crashed.getActiveFile();
+		assertEquals(3, readLines(active).size());
+		// a line torn by the crash
+		RandomAccessFile raf = new RandomAccessFile(active, "rw");
+		raf.seek(new String(readBytes(active), "UTF-8").indexOf('\u0000'));
+		raf.write("{\"version\":\"1.1\",\"sho".getBytes("UTF-8"));
+		raf.close();
+
+		GelfFileSender restarted = new GelfFileSender(fileName, 64 * 1024, 0, 0);
+		assertTrue(restarted.sendMessage(newMessage("after restart")));
+		restarted.close();
+
+		List<String> recovered = readLines(new File(directory, "gelf-000001.log"));
+		assertEquals(3, recovered.size());
+		assertEquals("before crash 2", ((Map) JSONValue.parse(recovered.get(2))).get("short_message"));
+		assertEquals(1, readLines(new File(directory, "gelf-000002.log")).size());
+	}
+
+	@Test
+	public void testDeletesOldestSegments() throws Exception {
+		File directory = folder.newFolder();
+		GelfFileSender sender = new GelfFileSender(new File(directory, "gelf.log").getPath(), 4096, 0, 2);
+
+		for (int i = 0; i < 500; i++) {
+			sender.sendMessage(newMessage("message " + i));
+		}
+		sender.close();
+
+		String[] names = directory.list();
+		Arrays.sort(names);
+		assertEquals(2, names.length);
+		List<String> last = readLines(new File(directory, names[1]));
+		assertEquals("message 499", ((Map) JSONValue.parse(last.get(last.size() - 1))).get("short_message"));
+	}
+
+	@Test
+	public void testUnmapsCompletedSegments() throws Exception {
+		File maps = new File("/proc/self/maps");
+		Assume.assumeTrue("needs Linux to list the mappings", maps.exists());
+		File directory = folder.newFolder();
+		GelfFileSender sender = new GelfFileSender(new File(directory, "gelf.log").getPath(), 4096, 0, 0);
+
+		for (int i = 0; i < 200; i++) {
+			assertTrue(sender.sendMessage(newMessage("message " + i)));
+		}
+		String active = sender.getActiveFile().getPath();
+		String mapped = readProcFile(maps);
+		assertTrue(mapped.contains(active));
+		assertFalse("rolled segments are unmapped", mapped.contains(new File(directory, "gelf-000001.log").getPath()));
+		sender.close();
+		assertFalse(readProcFile(maps).contains(active));
+	}
+
+	@Test
+	public void testReportsRollFailure() throws Exception {
+		final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+		StatusListener listener = new StatusListener() {
+			public void log(StatusData data) {
+				if (data.getLevel() == Level.ERROR) {
+					errors.add(data.getMessage().getFormattedMessage());
+				}
+			}
+
+			public Level getStatusLevel() {
+				return Level.ERROR;
+			}
+
+			public void close() {
+			}
+		};
+		StatusLogger.getLogger().registerListener(listener);
+		try {
+			File directory = folder.newFolder();
+			GelfFileSender sender = new GelfFileSender(new File(directory, "gelf.log").getPath(), 1024 * 1024, 20, 0);
+			// the completed name is taken, so the rename fails
+			assertTrue(new File(directory, "gelf-000001.log").mkdir());
+
+			assertTrue(sender.sendMessage(newMessage("stuck")));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (errors.isEmpty() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertFalse(errors.isEmpty());
+			assertTrue(errors.get(0), errors.get(0).contains("gelf-000001.log.active"));
+			assertEquals("the segment stays active", 1, readLines(new File(directory, "gelf-000001.log.active")).size());
+			assertTrue("logging goes on", sender.sendMessage(newMessage("next")));
+			sender.close();
+		} finally {
+			StatusLogger.getLogger().removeListener(listener);
+		}
+	}
+
+	/**
+	 * @return the complete lines; in active files the unused zeros after them are ignored.
+	 */
+	private static List<String> readLines(File file) throws Exception {
+		String content = new String(readBytes(file), "UTF-8");
+		List<String> lines = new ArrayList<String>();
+		int start = 0;
+		int end;
+		while ((end = content.indexOf('\n', start)) >= 0) {
+			lines.add(content.substring(start, end));
+			start = end + 1;
+		}
+		if (!file.getName().endsWith(".active")) {
+			assertEquals("completed files end with a line", content.length(), start);
+		}
+		return lines;
+	}
+
+	private static byte[] readBytes(File file) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) raf.length()];
+			raf.readFully(bytes);
+			return bytes;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Files in /proc report a length of 0, so they are read to the end.
+	 */
+	private static String readProcFile(File file) throws Exception {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfHostResolverTest {
+
+	private static final InetAddress FIRST = address(127, 0, 0, 1);
+	private static final InetAddress SECOND = address(127, 0, 0, 2);
+
+	@Test
+	public void testRefreshDetectsChanges() throws Exception {
+		StubLookup lookup = new StubLookup(FIRST, SECOND);
+		GelfHostResolver resolver = new GelfHostResolver("graylog", lookup);
+		resolver.startRefresh(60000, IGNORE);
+
+		Set<InetAddress> seen = new HashSet<InetAddress>();
+		for (int i = 0; i < 4; i++) {
+			seen.add(resolver.next());
+		}
+		assertEquals("addresses are used in turn", 2, seen.size());
+
+		lookup.addresses = new InetAddress[]{SECOND, FIRST};
+		assertFalse("order does not matter", resolver.refresh());
+
+		lookup.addresses = null;
+		assertFalse("failed lookups keep the old addresses", resolver.refresh());
+		assertTrue(resolver.contains(FIRST));
+
+		lookup.addresses = new InetAddress[]{SECOND};
+		assertTrue(resolver.refresh());
+		assertFalse(resolver.contains(FIRST));
+		assertEquals(SECOND, resolver.next());
+		resolver.close();
+	}
+
+	@Test
+	public void testSpreadsOnlyWhenRefreshingAndWithinOneFamily() throws Exception {
+		InetAddress ipv6 = InetAddress.getByAddress(new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1});
+		StubLookup lookup = new StubLookup(FIRST, ipv6, SECOND);
+		GelfHostResolver resolver = new GelfHostResolver("localhost", lookup);
+		assertArrayEquals("the first address, like getByName", new InetAddress[]{FIRST}, resolver.getAddresses());
+
+		resolver.startRefresh(60000, IGNORE);
+		assertArrayEquals(new InetAddress[]{FIRST, SECOND}, resolver.getAddresses());
+		resolver.close();
+	}
+
+	@Test
+	public void testUdpSenderMovesToNewAddress() throws Exception {
+		DatagramSocket first = new DatagramSocket(new InetSocketAddress(FIRST, 0));
+		int port = first.getLocalPort();
+		DatagramSocket second = new DatagramSocket(new InetSocketAddress(SECOND, port));
+		first.setSoTimeout(5000);
+		second.setSoTimeout(5000);
+
+		StubLookup lookup = new StubLookup(FIRST);
+		GelfUDPSender sender = new GelfUDPSender(new GelfHostResolver("graylog", lookup), port, GelfUDPSender.DEFAULT_CHUNK_SIZE);
+		sender.setDnsRefreshInterval(10);
+
+		assertTrue(sender.sendMessage(newMessage("resolved")));
+		first.receive(new DatagramPacket(new byte[65536], 65536));
+
+		lookup.addresses = new InetAddress[]{SECOND};
+		second.setSoTimeout(100);
+		long deadline = System.currentTimeMillis() + 5000;
+		boolean received = false;
+		while (!received && System.currentTimeMillis() < deadline) {
+			assertTrue(sender.sendMessage(newMessage("resolved")));
+			try {
+				second.receive(new DatagramPacket(new byte[65536], 65536));
+				received = true;
+			} catch (java.net.SocketTimeoutException e) {
+				// not swapped yet
+			}
+		}
+		assertTrue(received);
+
+		sender.close();
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testTcpSenderMovesToNewAddress() throws Exception {
+		ServerSocket first = new ServerSocket();
+		first.bind(new InetSocketAddress(FIRST, 0));
+		int port = first.getLocalPort();
+		ServerSocket second = new ServerSocket();
+		second.bind(new InetSocketAddress(SECOND, port));
+		second.setSoTimeout(5000);
+
+		StubLookup lookup = new StubLookup(FIRST);
+		GelfTCPSender sender = new GelfTCPSender(new GelfHostResolver("graylog", lookup), port, 1000);
+		sender.setDnsRefreshInterval(10);
+		assertTrue(sender.awaitConnected(5000));
+		assertTrue(sender.sendMessage(newMessage("resolved")));
+		Socket oldConnection = first.accept();
+
+		lookup.addresses = new InetAddress[]{SECOND};
+		Socket newConnection = second.accept();
+		// accepted once connected, which can be just before the sender swaps the connection in
+		newConnection.setSoTimeout(100);
+		InputStream in = newConnection.getInputStream();
+		long deadline = System.currentTimeMillis() + 5000;
+		boolean received = false;
+		while (!received && System.currentTimeMillis() < deadline) {
+			assertTrue(sender.sendMessage(newMessage("resolved")));
+			try {
+				received = in.read() != -1;
+			} catch (java.net.SocketTimeoutException e) {
+				// not swapped yet
+			}
+		}
+		assertTrue("the message went to the new address", received);
+
+		sender.close();
+		oldConnection.close();
+		newConnection.close();
+		first.close();
+		second.close();
+	}
+
+	private static final GelfHostResolver.Listener IGNORE = new GelfHostResolver.Listener() {
+		public void addressesChanged(GelfHostResolver resolver, InetAddress[] addresses) {
+		}
+	};
+
+	private static InetAddress address(int a, int b, int c, int d) {
+		try {
+			return InetAddress.getByAddress(new byte[]{(byte) a, (byte) b, (byte) c, (byte) d});
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class StubLookup implements GelfHostResolver.Lookup {
+		volatile InetAddress[] addresses;
+
+		StubLookup(InetAddress... addresses) {
+			this.addresses = addresses;
+		}
+
+		public InetAddress[] lookup(String host) throws UnknownHostException {
+			InetAddress[] current = addresses;
+			if (current == null) {
+				throw new UnknownHostException(host);
+			}
+			return current;
+		}
+	}
+}
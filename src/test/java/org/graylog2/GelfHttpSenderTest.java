@@ -0,0 +1,169 @@
+package org.graylog2;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfHttpSenderTest {
+
+	private HttpServer server;
+	private final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+	private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+	private final AtomicInteger requests = new AtomicInteger();
+	/** Statuses answered to the first requests, then 202. */
+	private final List<Integer> statuses = Collections.synchronizedList(new ArrayList<Integer>());
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/gelf", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				clientPorts.add(exchange.getRemoteAddress().getPort());
+				// the request is read to its end before decoding, or the server closes the connection
+				byte[] raw = readFully(exchange.getRequestBody());
+				byte[] body = raw;
+				if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+					body = readFully(new GZIPInputStream(new ByteArrayInputStream(raw)));
+				}
+				int status = statuses.isEmpty() ? 202 : statuses.remove(0);
+				if (status == 202) {
+					bodies.add(new String(body, "UTF-8"));
+				}
+				exchange.sendResponseHeaders(status, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testPostsGzippedBatches() throws Exception {
+		GelfHttpSender sender = new GelfHttpSender(url(), 64 * 1024, 10000, 1, 0);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(sender.sendMessage(newMessage("batched " + i)));
+		}
+		sender.close();
+
+		assertEquals(1, requests.get());
+		String[] lines = bodies.get(0).split("\n");
+		assertEquals(10, lines.length);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(lines[i].startsWith("{") && lines[i].contains("\"short_message\":\"batched " + i + "\""));
+		}
+		assertEquals(10, sender.getMetrics().getMessagesSent());
+	}
+
+	@Test
+	public void testSingleMessagesAreNotDelimited() throws Exception {
+		GelfHttpSender sender = new GelfHttpSender(url(), 0, 0, 1, 0);
+		sender.sendMessage(newMessage("first"));
+		sender.sendMessage(newMessage("second"));
+		sender.close();
+
+		assertEquals(2, bodies.size());
+		for (String body : bodies) {
+			assertFalse(body.contains("\n"));
+		}
+	}
+
+	@Test
+	public void testLingerPostsPartialBatch() throws Exception {
+		GelfHttpSender sender = new GelfHttpSender(url(), 64 * 1024, 20, 1, 0);
+		sender.sendMessage(newMessage("lingering"));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (bodies.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, bodies.size());
+		sender.close();
+	}
+
+	@Test
+	public void testRetriesServerErrors() throws Exception {
+		statuses.add(503);
+		statuses.add(500);
+		GelfHttpSender sender = new GelfHttpSender(url(), 0, 0, 1, 3);
+		sender.setRetryDelay(1);
+		sender.sendMessage(newMessage("retried"));
+		sender.close();
+
+		assertEquals(3, requests.get());
+		assertEquals(1, bodies.size());
+		assertEquals(0, sender.getFailedCount());
+	}
+
+	@Test
+	public void testDoesNotRetryClientErrors() throws Exception {
+		statuses.add(400);
+		GelfHttpSender sender = new GelfHttpSender(url(), 0, 0, 1, 3);
+		sender.setRetryDelay(1);
+		sender.sendMessage(newMessage("rejected"));
+		sender.close();
+
+		assertEquals(1, requests.get());
+		assertEquals(1, sender.getFailedCount());
+		assertEquals(1, sender.getMetrics().getMessagesFailed());
+	}
+
+	@Test
+	public void testReusesConnections() throws Exception {
+		GelfHttpSender sender = new GelfHttpSender(url(), 0, 0, 1, 0);
+		for (int i = 0; i < 5; i++) {
+			sender.sendMessage(newMessage("kept alive " + i));
+			sender.flush();
+		}
+		sender.close();
+
+		assertEquals(5, requests.get());
+		assertEquals("one keep-alive connection", 1, clientPorts.size());
+	}
+
+	@Test
+	public void testUncompressed() throws Exception {
+		GelfHttpSender sender = new GelfHttpSender(url(), 0, 0, 1, 0);
+		sender.setCompressor(new GelfCompressor(GelfCompressor.Codec.NONE, 0));
+		sender.sendMessage(newMessage("plain"));
+		sender.close();
+
+		assertTrue(bodies.get(0).contains("\"short_message\":\"plain\""));
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private String url() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/gelf";
+	}
+}
@@ -0,0 +1,265 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.json.simple.JSONValue;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfLoadBalancingSenderTest {
+
+	@Test
+	public void testRoundRobin() {
+		CountingSender a = new CountingSender();
+		CountingSender b = new CountingSender();
+		CountingSender c = new CountingSender();
+		GelfLoadBalancingSender sender = new GelfLoadBalancingSender(Arrays.asList(a, b, c),
+				GelfLoadBalancingSender.Strategy.ROUND_ROBIN);
+
+		for (int i = 0; i < 300; i++) {
+			assertTrue(sender.sendMessage(newMessage("balanced")));
+		}
+
+		assertEquals(100, a.sent);
+		assertEquals(100, b.sent);
+		assertEquals(100, c.sent);
+		sender.close();
+		assertTrue(a.closed && b.closed && c.closed);
+	}
+
+	@Test
+	public void testFailedMemberIsSkippedAndRetriedAfterBackoff() throws Exception {
+		CountingSender healthy = new CountingSender();
+		CountingSender failing = new CountingSender();
+		failing.fail = true;
+		GelfLoadBalancingSender sender = new GelfLoadBalancingSender(Arrays.asList(failing, healthy),
+				GelfLoadBalancingSender.Strategy.ROUND_ROBIN);
+		sender.setRetryDelays(200, 200);
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue("messages fail over to the healthy member", sender.sendMessage(newMessage("balanced")));
+		}
+		assertEquals(1, failing.attempts);
+		assertEquals(100, healthy.sent);
+		assertEquals(1, sender.getHealthyCount());
+
+		failing.fail = false;
+		Thread.sleep(250);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(sender.sendMessage(newMessage("balanced")));
+		}
+		assertTrue("recovered member is back in rotation", failing.sent >= 49);
+		assertEquals(2, sender.getHealthyCount());
+	}
+
+	@Test
+	public void testAllMembersFailing() {
+		CountingSender a = new CountingSender();
+		CountingSender b = new CountingSender();
+		a.fail = true;
+		b.fail = true;
+		GelfLoadBalancingSender sender = new GelfLoadBalancingSender(Arrays.asList(a, b),
+				GelfLoadBalancingSender.Strategy.ROUND_ROBIN);
+
+		assertFalse(sender.sendMessage(newMessage("balanced")));
+		assertFalse(sender.sendMessage(newMessage("balanced")));
+		assertEquals("failing members are not hammered", 2, a.attempts + b.attempts);
+		assertEquals(0, sender.getHealthyCount());
+	}
+
+	@Test
+	public void testRejectedMessageKeepsMembersInRotation() {
+		TransportSender a = new TransportSender();
+		TransportSender b = new TransportSender();
+		a.fail = true;
+		b.fail = true;
+		GelfLoadBalancingSender sender = new GelfLoadBalancingSender(Arrays.asList(a, b),
+				GelfLoadBalancingSender.Strategy.ROUND_ROBIN);
+		sender.setRetryDelays(60000, 60000);
+
+		// e.g. too large for every member, while their transports work
+		assertFalse(sender.sendMessage(newMessage("balanced")));
+		assertEquals(2, sender.getHealthyCount());
+
+		a.fail = false;
+		b.fail = false;
+		for (int i = 0; i < 10; i++) {
+			assertTrue(sender.sendMessage(newMessage("balanced")));
+		}
+		assertTrue("both members take messages right away", a.sent == 5 && b.sent == 5);
+
+		b.available = false;
+		b.fail = true;
+		for (int i = 0; i < 10; i++) {
+			assertTrue(sender.sendMessage(newMessage("balanced")));
+		}
+		assertEquals("a failed transport takes the member out", 1, sender.getHealthyCount());
+	}
+
+	@Test
+	public void testLeastOutstandingBytesAvoidsBusyMember() throws Exception {
+		final BlockingSender slow = new BlockingSender();
+		CountingSender fast = new CountingSender();
+		final GelfLoadBalancingSender sender = new GelfLoadBalancingSender(Arrays.asList(slow, fast),
+				GelfLoadBalancingSender.Strategy.LEAST_OUTSTANDING_BYTES);
+
+		Thread blocked = null;
+		// keep sending until one message is stuck in the slow member
+		for (int i = 0; i < 10 && slow.entered == 0; i++) {
+			blocked = new Thread(new Runnable() {
+				public void run() {
+					sender.sendMessage(newMessage("balanced"));
+				}
+			});
+			blocked.start();
+			blocked.join(100);
+		}
+		assertEquals(1, slow.entered);
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue(sender.sendMessage(newMessage("balanced")));
+		}
+		assertEquals(1, slow.entered);
+
+		slow.release();
+		blocked.join();
+	}
+
+	@Test
+	public void testMixedUdpAndTcpMembers() throws Exception {
+		DatagramSocket udpServer = new DatagramSocket(0);
+		udpServer.setSoTimeout(5000);
+		ServerSocket closedTcpPort = new ServerSocket(0);
+		int tcpPort = closedTcpPort.getLocalPort();
+		closedTcpPort.close();
+
+		GelfTCPSender tcp = new GelfTCPSender("127.0.0.1", tcpPort, 1000);
+		GelfTCPNioSender nio = new GelfTCPNioSender("127.0.0.1", tcpPort);
+		GelfUDPSender udp = new GelfUDPSender("127.0.0.1", udpServer.getLocalPort());
+		GelfLoadBalancingSender sender = new GelfLoadBalancingSender(Arrays.<GelfSender>asList(tcp, nio, udp),
+				GelfLoadBalancingSender.Strategy.ROUND_ROBIN);
+
+		// the TCP endpoint refuses connections, so all messages end up on UDP
+		for (int i = 0; i < 3; i++) {
+			assertTrue(sender.sendMessage(newMessage("balanced")));
+		}
+		assertEquals(0, nio.getPendingBytes());
+		for (int i = 0; i < 3; i++) {
+			byte[] buffer = new byte[65536];
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			udpServer.receive(packet);
+			byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+			assertEquals("balanced", ((Map) JSONValue.parse(GelfUDPSenderTest.gunzip(data))).get("short_message"));
+		}
+
+		sender.close();
+		udpServer.close();
+	}
+
+	@Test
+	public void testReconnectedTcpMemberRejoinsWithoutProbe() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		server.setSoTimeout(5000);
+		int port = server.getLocalPort();
+		GelfTCPSender tcp = new GelfTCPSender("127.0.0.1", port, 1000);
+		tcp.setReconnectDelays(10, 50);
+		assertTrue(tcp.awaitConnected(5000));
+		CountingSender other = new CountingSender();
+		GelfLoadBalancingSender sender = new GelfLoadBalancingSender(Arrays.<GelfSender>asList(tcp, other),
+				GelfLoadBalancingSender.Strategy.ROUND_ROBIN);
+		sender.setRetryDelays(60000, 60000);
+		server.accept().close();
+		server.close();
+
+		// writes still succeed until the reset from the closed connection arrives
+		for (int i = 0; i < 1000 && sender.getHealthyCount() == 2; i++) {
+			assertTrue(sender.sendMessage(newMessage("balanced")));
+			Thread.sleep(1);
+		}
+		assertEquals(1, sender.getHealthyCount());
+
+		server = new ServerSocket(port);
+		server.setSoTimeout(5000);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (sender.getHealthyCount() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals("back in rotation long before the next probe", 2, sender.getHealthyCount());
+		int before = other.sent;
+		for (int i = 0; i < 10; i++) {
+			assertTrue(sender.sendMessage(newMessage("balanced")));
+		}
+		assertEquals(before + 5, other.sent);
+		Socket client = server.accept();
+
+		sender.close();
+		client.close();
+		server.close();
+	}
+
+	private static class CountingSender implements GelfSender {
+		volatile boolean fail;
+		int attempts;
+		int sent;
+		boolean closed;
+
+		public synchronized boolean sendMessage(GelfMessage message) {
+			attempts++;
+			if (fail) {
+				return false;
+			}
+			sent++;
+			return true;
+		}
+
+		public void close() {
+			closed = true;
+		}
+	}
+
+	private static class TransportSender extends CountingSender implements GelfTransportSender {
+		volatile boolean available = true;
+
+		public boolean isTransportAvailable() {
+			return available;
+		}
+	}
+
+	private static class BlockingSender implements GelfSender {
+		private final Object lock = new Object();
+		private boolean released;
+		volatile int entered;
+
+		public boolean sendMessage(GelfMessage message) {
+			synchronized (lock) {
+				entered++;
+				while (!released) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		void release() {
+			synchronized (lock) {
+				released = true;
+				lock.notifyAll();
+			}
+		}
+
+		public void close() {
+		}
+	}
+}
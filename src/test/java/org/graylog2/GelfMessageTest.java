@@ -8,6 +8,7 @@ import org.junit.Test;
 import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Map;
+import java.util.Random;
 
 import static junit.framework.Assert.*;
 import static org.hamcrest.CoreMatchers.is;
@@ -45,6 +46,21 @@ public class GelfMessageTest {
 		assertTrue(bytes2[1].get(11) == (byte) 0x02);
 	}
 
+	@Test
+	public void testDropsMessageExceedingChunkLimit() throws Exception {
+		// random text does not compress below the 128 chunk limit
+		Random random = new Random(42);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 400000; i++) {
+			text.append((char) ('!' + random.nextInt(90)));
+		}
+		GelfMessage message = new GelfMessage("Huge", text.toString(), new Date().getTime(), "1");
+		GelfMetrics metrics = new GelfMetrics();
+
+		assertEquals(0, message.toBuffers(metrics).length);
+		assertEquals(1, metrics.getMessagesDropped());
+	}
+
 	@Test
 	public void testSimpleMessage() throws Exception {
 		GelfMessage message = new GelfMessage("Short", "Long", new Date().getTime(), "1");
@@ -84,4 +100,82 @@ public class GelfMessageTest {
 		message.setFullMessage(null);
 		assertThat("Valid when short message is set", message.isValid(), is(true));
 	}
+
+	@Test
+	public void testJsonEscaping() throws Exception {
+		String text = "quote \" backslash \\ newline \n tab \t bell \u0007 umlaut \u00fc euro \u20ac clef \ud834\udd1e";
+		GelfMessage message = new GelfMessage(text, null, 1L, "1");
+		message.setHost("localhost");
+		message.addField("flag", true).addField("nan", Double.NaN).addField("nothing", null);
+
+		String json = message.toJson();
+		Map resultingMap = (Map) JSONValue.parse(json);
+
+		assertThat((String) resultingMap.get("short_message"), is(text));
+		assertNull(resultingMap.get("full_message"));
+		assertThat((Boolean) resultingMap.get("_flag"), is(true));
+		assertTrue(resultingMap.containsKey("_nan"));
+		assertNull(resultingMap.get("_nothing"));
+		assertEquals(json, new String(message.encodeJson().toByteArray(), "UTF-8"));
+	}
+
+	@Test
+	public void testTruncatesEncodedJson() throws Exception {
+		GelfMessage message = new GelfMessage("keep this", "\u00fc\u00fc\u00fc\"x", 1L, "1");
+		message.setHost("localhost");
+		message.addField("escaped", "ab\ncd").addField("number", 123456789L);
+		GelfBuffer json = message.encodeJson();
+
+		int[] values = GelfJsonWriter.truncatableValues(json);
+		assertEquals("full_message and one string field", 4, values.length);
+		GelfBuffer truncated = new GelfBuffer();
+		assertEquals(2, GelfJsonWriter.writeTruncated(json, values, 3, truncated));
+
+		Map resultingMap = (Map) JSONValue.parse(new String(truncated.toByteArray(), "UTF-8"));
+		assertEquals("cut between characters", "\u00fc", resultingMap.get("full_message"));
+		assertEquals("cut before an escape", "ab", resultingMap.get("_escaped"));
+		assertEquals("keep this", resultingMap.get("short_message"));
+		assertEquals(123456789L, resultingMap.get("_number"));
+	}
+
+	@Test
+	public void testStaticFields() throws Exception {
+		Map<String, String> fields = new java.util.LinkedHashMap<String, String>();
+		fields.put("environment", "DEV");
+		fields.put("application", "My \"APP\"");
+		GelfStaticFields staticFields = new GelfStaticFields("example.com", "USER", fields);
+
+		GelfMessage message = new GelfMessage("Short", "Long", 1L, "1");
+		message.setStaticFields(staticFields);
+		message.addField("application", "overridden");
+		message.addField("thread", "main");
+
+		Map resultingMap = (Map) JSONValue.parse(message.toJson());
+		assertEquals("example.com", resultingMap.get("host"));
+		assertEquals("USER", resultingMap.get("facility"));
+		assertEquals("DEV", resultingMap.get("_environment"));
+		assertEquals("overridden", resultingMap.get("_application"));
+		assertEquals("main", resultingMap.get("_thread"));
+		assertEquals(message.toJson().indexOf("\"_application\""), message.toJson().lastIndexOf("\"_application\""));
+
+		message.setHost("other.example.com");
+		message.getAdditonalFields().remove("application");
+		resultingMap = (Map) JSONValue.parse(message.toJson());
+		assertEquals("other.example.com", resultingMap.get("host"));
+		assertEquals("My \"APP\"", resultingMap.get("_application"));
+	}
+
+	@Test
+	public void testTimestampIsNumber() throws Exception {
+		GelfMessage message = new GelfMessage("Short", "Long", 1500000000120L, "1");
+		assertEquals("1500000000.12", message.getTimestamp());
+		assertTrue(message.toJson().contains("\"timestamp\":1500000000.12,"));
+
+		message.setJavaTimestamp(1500000000000L);
+		assertEquals("1500000000", message.getTimestamp());
+
+		message.setJavaTimestamp(1500000000001L, 500000);
+		assertEquals("1500000000.0015", message.getTimestamp());
+		assertEquals(1500000000.0015, ((Number) ((Map) JSONValue.parse(message.toJson())).get("timestamp")).doubleValue(), 0.0);
+	}
 }
@@ -0,0 +1,102 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfMetricsTest {
+
+	@Test
+	public void testCounterSumsAllThreads() throws Exception {
+		final GelfCounter counter = new GelfCounter();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					for (int n = 0; n < 10000; n++) {
+						counter.increment();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(80000, counter.sum());
+	}
+
+	@Test
+	public void testEndpointMetricsCountTowardsParent() {
+		GelfMetrics appender = new GelfMetrics();
+		GelfMetrics first = new GelfMetrics(appender);
+		GelfMetrics second = new GelfMetrics(appender);
+
+		first.messageSent();
+		second.messagesSent(2);
+		second.messageFailed();
+		first.written(1000);
+
+		assertEquals(1, first.getMessagesSent());
+		assertEquals(2, second.getMessagesSent());
+		assertEquals(3, appender.getMessagesSent());
+		assertEquals(1, appender.getMessagesFailed());
+		assertEquals(1000, appender.getWriteMeanNanos());
+	}
+
+	@Test
+	public void testHistogramPercentiles() {
+		GelfHistogram histogram = new GelfHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500500, histogram.getMeanNanos());
+		long median = histogram.getPercentileNanos(50);
+		assertTrue("median " + median, median >= 500000 && median <= 500000 * 1.25);
+		long p99 = histogram.getPercentileNanos(99);
+		assertTrue("p99 " + p99, p99 >= 990000 && p99 <= 990000 * 1.25);
+		assertEquals(0, new GelfHistogram().getPercentileNanos(99));
+	}
+
+	@Test
+	public void testBucketsCoverTheirValues() {
+		for (long value : new long[]{0, 1, 3, 4, 5, 7, 8, 100, 1023, 1024, 123456789, Long.MAX_VALUE}) {
+			int bucket = GelfHistogram.bucket(value);
+			assertTrue(value + " <= " + GelfHistogram.upperBound(bucket), value <= GelfHistogram.upperBound(bucket));
+			if (bucket > 0) {
+				assertTrue(value + " > " + GelfHistogram.upperBound(bucket - 1), value > GelfHistogram.upperBound(bucket - 1));
+			}
+		}
+	}
+
+	@Test
+	public void testUdpSenderMetrics() throws Exception {
+		DatagramSocket server = new DatagramSocket(0);
+		GelfUDPSender sender = new GelfUDPSender("127.0.0.1", server.getLocalPort());
+		GelfMetrics metrics = new GelfMetrics();
+		sender.setMetrics(metrics);
+
+		GelfMessage small = newMessage("small");
+		GelfMessage chunked = newMessage("chunked", GelfUDPSenderTest.randomText(20000));
+		assertTrue(sender.sendMessage(small));
+		assertTrue(sender.sendMessage(chunked));
+
+		assertEquals(2, metrics.getMessagesSent());
+		assertEquals(0, metrics.getMessagesFailed());
+		assertTrue(metrics.getBytesSerialized() > 20000);
+		assertTrue(metrics.getBytesCompressed() < metrics.getBytesSerialized());
+		assertTrue(metrics.getChunksSent() > 2);
+		assertTrue(metrics.getChunksPerMessage() > 1);
+		assertEquals(2, metrics.getSerializationHistogram().getCount());
+		assertEquals(2, metrics.getCompressionHistogram().getCount());
+		assertEquals(2, metrics.getWriteHistogram().getCount());
+		assertTrue(metrics.getCompressionMeanNanos() > 0);
+
+		sender.close();
+		server.close();
+	}
+}
@@ -0,0 +1,87 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfRandomMessageIdGeneratorTest {
+
+	private static final int THREADS = 8;
+
+	@Test
+	public void testIdsAreUniqueAcrossThreads() throws Exception {
+		final int perThread = 500000;
+		long[][] ids = run(new IdTask() {
+			public long[] call() {
+				long[] result = new long[perThread];
+				for (int i = 0; i < perThread; i++) {
+					result[i] = GelfRandomMessageIdGenerator.INSTANCE.nextId();
+				}
+				return result;
+			}
+		});
+		assertUnique(ids, THREADS * perThread);
+	}
+
+	@Test
+	public void testChunkedMessagesGetDistinctIds() throws Exception {
+		final int perThread = 500;
+		final GelfMessage template = newMessage("chunked", GelfUDPSenderTest.randomText(4000));
+		long[][] ids = run(new IdTask() {
+			public long[] call() {
+				long[] result = new long[perThread];
+				for (int i = 0; i < perThread; i++) {
+					ByteBuffer[] datagrams = template.toBuffers();
+					assertTrue(datagrams.length > 1);
+					result[i] = datagrams[0].getLong(2);
+					for (ByteBuffer datagram : datagrams) {
+						assertEquals(result[i], datagram.getLong(2));
+					}
+				}
+				return result;
+			}
+		});
+		assertUnique(ids, THREADS * perThread);
+	}
+
+	private interface IdTask extends Callable<long[]> {
+	}
+
+	private static long[][] run(IdTask task) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			Future<?>[] futures = new Future<?>[THREADS];
+			for (int i = 0; i < THREADS; i++) {
+				futures[i] = executor.submit(task);
+			}
+			long[][] results = new long[THREADS][];
+			for (int i = 0; i < THREADS; i++) {
+				results[i] = (long[]) futures[i].get();
+			}
+			return results;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void assertUnique(long[][] ids, int total) {
+		long[] all = new long[total];
+		int offset = 0;
+		for (long[] chunk : ids) {
+			System.arraycopy(chunk, 0, all, offset, chunk.length);
+			offset += chunk.length;
+		}
+		Arrays.sort(all);
+		for (int i = 1; i < all.length; i++) {
+			assertTrue("duplicate message id " + all[i], all[i] != all[i - 1]);
+		}
+	}
+}
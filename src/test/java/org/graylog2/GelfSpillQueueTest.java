@@ -0,0 +1,129 @@
+package org.graylog2;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GelfSpillQueueTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testFifoAcrossSegments() throws Exception {
+		File directory = folder.newFolder();
+		GelfSpillQueue queue = new GelfSpillQueue(directory, 4096, 8);
+		assertTrue(queue.isEmpty());
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue(queue.offer(record(i), 0, record(i).length));
+		}
+		assertTrue("records roll over into several segments", segments(directory) > 1);
+
+		for (int i = 0; i < 100; i++) {
+			assertEquals(new String(record(i), "UTF-8"), poll(queue));
+		}
+		assertNull(poll(queue));
+		assertTrue(queue.isEmpty());
+		assertEquals("consumed segments are deleted", 1, segments(directory));
+		queue.close();
+	}
+
+	@Test
+	public void testRejectsWhenAllSegmentsAreFull() throws Exception {
+		GelfSpillQueue queue = new GelfSpillQueue(folder.newFolder(), 4096, 2);
+		byte[] record = new byte[1000];
+		int accepted = 0;
+		while (queue.offer(record, 0, record.length)) {
+			accepted++;
+		}
+		assertEquals(8, accepted);
+		assertEquals(1, queue.getDroppedCount());
+		assertFalse("larger than a segment", queue.offer(new byte[5000], 0, 5000));
+
+		assertNotNull(poll(queue));
+		for (int i = 0; i < 4; i++) {
+			assertNotNull(poll(queue));
+		}
+		assertTrue("room again once a segment is consumed", queue.offer(record, 0, record.length));
+		queue.close();
+	}
+
+	@Test
+	public void testRecoversCursorAndAppendPosition() throws Exception {
+		File directory = folder.newFolder();
+		GelfSpillQueue queue = new GelfSpillQueue(directory, 4096, 8);
+		for (int i = 0; i < 50; i++) {
+			queue.offer(record(i), 0, record(i).length);
+		}
+		for (int i = 0; i < 20; i++) {
+			poll(queue);
+		}
+		GelfBuffer peeked = new GelfBuffer();
+		assertTrue("peeked but not committed", queue.peek(peeked));
+		queue.close();
+
+		GelfSpillQueue reopened = new GelfSpillQueue(directory, 4096, 8);
+		reopened.offer(record(50), 0, record(50).length);
+		List<String> remaining = drain(reopened);
+		assertEquals(31, remaining.size());
+		assertEquals(new String(record(20), "UTF-8"), remaining.get(0));
+		assertEquals(new String(record(50), "UTF-8"), remaining.get(30));
+		reopened.close();
+	}
+
+	@Test
+	public void testTornRecordEndsTheData() throws Exception {
+		File directory = folder.newFolder();
+		GelfSpillQueue queue = new GelfSpillQueue(directory, 4096, 8);
+		queue.offer(record(0), 0, record(0).length);
+		queue.offer(record(1), 0, record(1).length);
+		queue.close();
+
+		// corrupt the payload of the second record as if the crash happened while it was written
+		RandomAccessFile file = new RandomAccessFile(new File(directory, "segment-0000000000000000.spill"), "rw");
+		file.seek(8 + record(0).length + 8);
+		file.write('X');
+		file.close();
+
+		GelfSpillQueue reopened = new GelfSpillQueue(directory, 4096, 8);
+		reopened.offer(record(2), 0, record(2).length);
+		assertEquals(new String(record(0), "UTF-8"), poll(reopened));
+		assertEquals("the torn record is overwritten", new String(record(2), "UTF-8"), poll(reopened));
+		assertNull(poll(reopened));
+		reopened.close();
+	}
+
+	private static byte[] record(int i) throws Exception {
+		return ("{\"short_message\":\"spilled message number " + i + "\"}").getBytes("UTF-8");
+	}
+
+	private static String poll(GelfSpillQueue queue) throws Exception {
+		GelfBuffer buffer = new GelfBuffer();
+		if (!queue.peek(buffer)) {
+			return null;
+		}
+		queue.commit();
+		return new String(buffer.array(), 0, buffer.size(), "UTF-8");
+	}
+
+	private static List<String> drain(GelfSpillQueue queue) throws Exception {
+		List<String> records = new ArrayList<String>();
+		String record;
+		while ((record = poll(queue)) != null) {
+			records.add(record);
+		}
+		return records;
+	}
+
+	private static int segments(File directory) {
+		return directory.list().length - 1;
+	}
+}
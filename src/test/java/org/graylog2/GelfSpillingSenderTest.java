@@ -0,0 +1,164 @@
+package org.graylog2;
+
+import org.graylog2.GelfTestSupport.RecordingSender;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfSpillingSenderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSpillsWhileDownAndReplaysInOrder() throws Exception {
+		RecordingSender transport = new RecordingSender();
+		transport.down = true;
+		GelfSpillQueue queue = new GelfSpillQueue(folder.newFolder());
+		GelfSpillingSender sender = new GelfSpillingSender(transport, queue, 10000, 20);
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue("spilled messages count as sent", sender.sendMessage(newMessage("spilled " + i)));
+		}
+		assertEquals(100, queue.getSpilledCount());
+		assertTrue(transport.received.isEmpty());
+
+		transport.down = false;
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!queue.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(queue.isEmpty());
+		assertEquals(100, sender.getReplayedCount());
+		for (int i = 0; i < 100; i++) {
+			assertTrue(transport.received.get(i).contains("\"short_message\":\"spilled " + i + "\""));
+		}
+		sender.close();
+	}
+
+	@Test
+	public void testDeadLettersRecordRejectedWhileUp() throws Exception {
+		RecordingSender transport = new RecordingSender();
+		transport.down = true;
+		GelfSpillQueue queue = new GelfSpillQueue(folder.newFolder());
+		GelfSpillingSender sender = new GelfSpillingSender(transport, queue, 10000, 5);
+
+		assertTrue(sender.sendMessage(newMessage("before")));
+		assertTrue(sender.sendMessage(newMessage("poison")));
+		assertTrue(sender.sendMessage(newMessage("after")));
+		// failures while down are no attempts
+		Thread.sleep(5 * GelfSpillingSender.MAX_REPLAY_ATTEMPTS * 2);
+		assertEquals(0, sender.getDeadLetterCount());
+
+		transport.rejected = "poison";
+		transport.down = false;
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!queue.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue("the record no longer blocks the queue", queue.isEmpty());
+		assertEquals(1, sender.getDeadLetterCount());
+		assertEquals(2, transport.received.size());
+		assertTrue(transport.received.get(1).contains("\"short_message\":\"after\""));
+		sender.close();
+	}
+
+	@Test
+	public void testAsyncOverflowSpills() throws Exception {
+		GelfSpillQueue queue = new GelfSpillQueue(folder.newFolder());
+		final Object gate = new Object();
+		GelfSender stuck = new GelfSender() {
+			public boolean sendMessage(GelfMessage message) {
+				synchronized (gate) {
+					return true;
+				}
+			}
+
+			public void close() {
+			}
+		};
+		AsyncGelfSender async = new AsyncGelfSender(stuck, 2, AsyncGelfSender.OverflowPolicy.DROP_NEWEST, 0, 1000);
+		async.setOverflowSender(queue);
+
+		synchronized (gate) {
+			for (int i = 0; i < 10; i++) {
+				assertTrue(async.sendMessage(newMessage("overflow " + i)));
+			}
+		}
+		assertTrue(queue.getSpilledCount() > 0);
+		assertEquals(0, async.getDroppedCount());
+		async.close();
+		queue.close();
+	}
+
+	@Test
+	public void testSpillsAndReplaysThroughBatchingSender() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		int port = server.getLocalPort();
+		// every message is written right away
+		GelfTCPBatchSender transport = new GelfTCPBatchSender("127.0.0.1", port, 1, 0);
+		transport.setReconnectDelays(10, 50);
+		assertTrue(transport.awaitConnected(5000));
+		GelfSpillQueue queue = new GelfSpillQueue(folder.newFolder());
+		GelfSpillingSender sender = new GelfSpillingSender(transport, queue, 10000, 20);
+		server.accept().close();
+		server.close();
+
+		// writes still succeed until the reset from the closed connection arrives
+		int probes = 0;
+		while (queue.getSpilledCount() == 0 && probes < 1000) {
+			assertTrue(sender.sendMessage(newMessage("probe " + probes++)));
+			Thread.sleep(1);
+		}
+		for (int i = 0; i < 100; i++) {
+			assertTrue(sender.sendMessage(newMessage("spilled " + i)));
+		}
+		long spilled = queue.getSpilledCount();
+		assertTrue(spilled > 100);
+
+		server = new ServerSocket(port);
+		server.setSoTimeout(5000);
+		Socket client = server.accept();
+		client.setSoTimeout(5000);
+		InputStream in = client.getInputStream();
+		List<String> frames = new ArrayList<String>();
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		while (frames.isEmpty() || !frames.get(frames.size() - 1).contains("\"short_message\":\"spilled 99\"")) {
+			int b = in.read();
+			assertTrue("connection closed", b != -1);
+			if (b == 0) {
+				frames.add(frame.toString("UTF-8"));
+				frame.reset();
+			} else {
+				frame.write(b);
+			}
+		}
+
+		int next = 0;
+		for (String json : frames) {
+			if (json.contains("\"short_message\":\"spilled ")) {
+				assertTrue("replayed in order", json.contains("\"short_message\":\"spilled " + next++ + "\""));
+			}
+		}
+		assertEquals(100, next);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (sender.getReplayedCount() < spilled && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(spilled, sender.getReplayedCount());
+		assertTrue(queue.isEmpty());
+		sender.close();
+		client.close();
+		server.close();
+	}
+}
@@ -0,0 +1,114 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class GelfStackTraceRendererTest {
+
+	@Test
+	public void testRendersLikePrintStackTrace() {
+		Exception exception = new IllegalStateException("outer", new IllegalArgumentException("inner"));
+		StringWriter expected = new StringWriter();
+		exception.printStackTrace(new PrintWriter(expected));
+
+		assertEquals(expected.toString(), new GelfStackTraceRenderer().render(exception).getText());
+	}
+
+	@Test
+	public void testRendersSuppressedLikePrintStackTrace() {
+		Exception exception = new IllegalStateException("outer", new IllegalArgumentException("inner"));
+		Exception suppressed = new IllegalStateException("close failed", new IllegalArgumentException("cause"));
+		suppressed.addSuppressed(new UnsupportedOperationException("nested"));
+		exception.addSuppressed(suppressed);
+		exception.getCause().addSuppressed(new RuntimeException("of the cause"));
+		StringWriter expected = new StringWriter();
+		exception.printStackTrace(new PrintWriter(expected));
+
+		assertEquals(expected.toString(), new GelfStackTraceRenderer().render(exception).getText());
+	}
+
+	@Test
+	public void testRendersCircularReference() {
+		Exception outer = new IllegalStateException("outer");
+		Exception inner = new IllegalArgumentException("inner", outer);
+		outer.initCause(inner);
+
+		String text = new GelfStackTraceRenderer().render(outer).getText();
+
+		assertTrue(text, text.contains("Caused by: [CIRCULAR REFERENCE: java.lang.IllegalStateException: outer]"));
+	}
+
+	@Test
+	public void testCacheHitComparesSuppressed() {
+		GelfStackTraceRenderer renderer = new GelfStackTraceRenderer(0, 16, false);
+		Exception plain = failure("same", 0);
+		Exception withSuppressed = failure("same", 0);
+		withSuppressed.addSuppressed(new IllegalArgumentException("hidden"));
+		plain.setStackTrace(withSuppressed.getStackTrace());
+
+		GelfStackTraceRenderer.Trace first = renderer.render(plain);
+		GelfStackTraceRenderer.Trace second = renderer.render(withSuppressed);
+
+		assertNotSame(first, second);
+		assertTrue(second.getText().contains("Suppressed: java.lang.IllegalArgumentException: hidden"));
+	}
+
+	@Test
+	public void testLimitsDepth() {
+		Exception exception = new IllegalStateException("deep");
+		int frames = exception.getStackTrace().length;
+
+		String text = new GelfStackTraceRenderer(2, 0, false).render(exception).getText();
+
+		String[] lines = text.split(System.getProperty("line.separator"));
+		assertEquals(4, lines.length);
+		assertEquals("java.lang.IllegalStateException: deep", lines[0]);
+		assertTrue(lines[1].startsWith("\tat org.graylog2.GelfStackTraceRendererTest.testLimitsDepth"));
+		assertEquals("\t... " + (frames - 2) + " more", lines[3]);
+	}
+
+	@Test
+	public void testCachesByFrames() {
+		GelfStackTraceRenderer renderer = new GelfStackTraceRenderer(0, 16, true);
+		String[] messages = {"same", "same", "same", "different"};
+		GelfStackTraceRenderer.Trace[] traces = new GelfStackTraceRenderer.Trace[messages.length];
+
+		// thrown from the same place, so all traces have the same frames
+		for (int i = 0; i < messages.length; i++) {
+			traces[i] = renderer.render(failure(messages[i], 0));
+		}
+
+		assertSame(traces[0], traces[1]);
+		assertSame(traces[0], traces[2]);
+		assertEquals(traces[0].getHash(), traces[3].getHash());
+		assertTrue(traces[3].getText().startsWith("java.lang.IllegalStateException: different"));
+		assertEquals(1, renderer.cachedTraces());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		GelfStackTraceRenderer renderer = new GelfStackTraceRenderer(0, 2, false);
+		int[] depths = {0, 1, 0, 2, 0, 1};
+		GelfStackTraceRenderer.Trace[] traces = new GelfStackTraceRenderer.Trace[depths.length];
+
+		// the depth adds frames, giving three distinct traces
+		for (int i = 0; i < depths.length; i++) {
+			traces[i] = renderer.render(failure("failure", depths[i]));
+		}
+
+		assertSame(traces[0], traces[2]);
+		assertSame(traces[0], traces[4]);
+		// depth 1 was least recently used when depth 2 came in
+		assertNotSame(traces[1], traces[5]);
+		assertEquals(traces[1].getHash(), traces[5].getHash());
+		assertEquals(2, renderer.cachedTraces());
+	}
+
+	private static Exception failure(String message, int depth) {
+		return depth == 0 ? new IllegalStateException(message) : failure(message, depth - 1);
+	}
+}
@@ -0,0 +1,153 @@
+package org.graylog2;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfTCPBatchSenderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ServerSocket server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ServerSocket(0);
+		server.setSoTimeout(5000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	@Test
+	public void testFramesAreNullDelimitedJson() throws Exception {
+		GelfTCPBatchSender sender = new GelfTCPBatchSender("127.0.0.1", server.getLocalPort(), 1024, 10000);
+		assertTrue(sender.awaitConnected(5000));
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue(sender.sendMessage(newMessage("message " + i)));
+		}
+		sender.close();
+		Socket client = server.accept();
+
+		List<String> frames = readFrames(client);
+		assertEquals(100, frames.size());
+		for (int i = 0; i < frames.size(); i++) {
+			Map json = (Map) JSONValue.parse(frames.get(i));
+			assertEquals("message " + i, json.get("short_message"));
+		}
+	}
+
+	@Test
+	public void testLingerFlushesPartialBatch() throws Exception {
+		GelfTCPBatchSender sender = new GelfTCPBatchSender("127.0.0.1", server.getLocalPort(), 64 * 1024, 10);
+		assertTrue(sender.awaitConnected(5000));
+
+		assertTrue(sender.sendMessage(newMessage("lonely")));
+		Socket client = server.accept();
+		client.setSoTimeout(5000);
+
+		InputStream in = client.getInputStream();
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) > 0) {
+			frame.write(b);
+		}
+		assertEquals(0, b);
+		assertEquals("lonely", ((Map) JSONValue.parse(frame.toString("UTF-8"))).get("short_message"));
+		sender.close();
+	}
+
+	@Test
+	public void testBuffersUntilFirstConnection() throws Exception {
+		GelfTCPBatchSender sender = new GelfTCPBatchSender("127.0.0.1", server.getLocalPort(), 256, 0) {
+			@Override
+			protected Socket createSocket() throws IOException {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				return super.createSocket();
+			}
+		};
+		sender.connect();
+
+		// several batches, all sent while connecting
+		for (int i = 0; i < 5; i++) {
+			assertTrue(sender.sendMessage(newMessage("early " + i)));
+		}
+		assertEquals(GelfTCPSender.CircuitState.HALF_OPEN, sender.getState());
+		assertTrue(sender.awaitConnected(5000));
+		sender.close();
+
+		List<String> frames = readFrames(server.accept());
+		assertEquals(5, frames.size());
+		for (int i = 0; i < frames.size(); i++) {
+			assertEquals("early " + i, ((Map) JSONValue.parse(frames.get(i))).get("short_message"));
+		}
+	}
+
+	@Test
+	public void testRejectsWhileDisconnectedSoMessagesSpill() throws Exception {
+		// every message is written right away
+		GelfTCPBatchSender sender = new GelfTCPBatchSender("127.0.0.1", server.getLocalPort(), 1, 0);
+		sender.setReconnectDelays(60000, 60000);
+		assertTrue(sender.awaitConnected(5000));
+		GelfSpillQueue queue = new GelfSpillQueue(folder.newFolder());
+		GelfSpillingSender spilling = new GelfSpillingSender(sender, queue, 1000, 60000);
+		server.accept().close();
+		server.close();
+
+		// writes still succeed until the reset from the closed connection arrives
+		int sent = 0;
+		while (queue.getSpilledCount() == 0 && sent < 1000) {
+			assertTrue(spilling.sendMessage(newMessage("message " + sent++)));
+			Thread.sleep(1);
+		}
+		assertTrue(queue.getSpilledCount() > 0);
+		assertEquals(GelfTCPSender.CircuitState.OPEN, sender.getState());
+		long spilled = queue.getSpilledCount();
+		for (int i = 0; i < 10; i++) {
+			assertTrue(spilling.sendMessage(newMessage("spilled " + i)));
+		}
+		assertEquals(spilled + 10, queue.getSpilledCount());
+		spilling.close();
+	}
+
+	private static List<String> readFrames(Socket client) throws Exception {
+		InputStream in = client.getInputStream();
+		List<String> frames = new ArrayList<String>();
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == 0) {
+				frames.add(frame.toString("UTF-8"));
+				frame.reset();
+			} else {
+				frame.write(b);
+			}
+		}
+		assertEquals("no trailing partial frame", 0, frame.size());
+		return frames;
+	}
+}
@@ -0,0 +1,102 @@
+package org.graylog2;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Selector;
+import java.util.Map;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfTCPNioSenderTest {
+
+	@Test
+	public void testSendsFramedMessages() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		server.setSoTimeout(5000);
+		GelfTCPNioSender sender = new GelfTCPNioSender("127.0.0.1", server.getLocalPort(), 1000, 1024 * 1024);
+
+		for (int i = 0; i < 200; i++) {
+			assertTrue(sender.sendMessage(newMessage("message " + i)));
+		}
+		Socket client = server.accept();
+		client.setSoTimeout(5000);
+		sender.close();
+
+		InputStream in = client.getInputStream();
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		int count = 0;
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == 0) {
+				Map json = (Map) JSONValue.parse(frame.toString("UTF-8"));
+				assertEquals("message " + count++, json.get("short_message"));
+				frame.reset();
+			} else {
+				frame.write(b);
+			}
+		}
+		assertEquals(200, count);
+		server.close();
+	}
+
+	@Test
+	public void testSurvivesFailingIoRound() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		server.setSoTimeout(5000);
+		GelfTCPNioSender sender = new GelfTCPNioSender("127.0.0.1", server.getLocalPort(), 1000, 1024 * 1024);
+		assertTrue(sender.sendMessage(newMessage("before")));
+		Socket first = server.accept();
+		first.setSoTimeout(5000);
+		assertEquals("before", readFrame(first.getInputStream()).get("short_message"));
+
+		// a closed selector fails the next select with an unchecked exception
+		Field selector = GelfTCPNioSender.class.getDeclaredField("selector");
+		selector.setAccessible(true);
+		((Selector) selector.get(sender)).close();
+
+		assertTrue(sender.sendMessage(newMessage("after")));
+		Socket second = server.accept();
+		second.setSoTimeout(5000);
+		assertEquals("after", readFrame(second.getInputStream()).get("short_message"));
+		sender.close();
+		first.close();
+		second.close();
+		server.close();
+	}
+
+	@Test
+	public void testRejectsWhenPendingLimitReached() throws Exception {
+		// nothing listens on the port, so frames pile up until the limit is hit
+		ServerSocket server = new ServerSocket(0);
+		int port = server.getLocalPort();
+		server.close();
+		GelfTCPNioSender sender = new GelfTCPNioSender("127.0.0.1", port, 100, 1024);
+
+		int accepted = 0;
+		long start = System.nanoTime();
+		while (sender.sendMessage(newMessage("filler"))) {
+			accepted++;
+		}
+		assertTrue(accepted > 0);
+		assertTrue(sender.getPendingBytes() <= 1024);
+		assertTrue("sendMessage must not block", System.nanoTime() - start < 1000L * 1000 * 1000);
+		assertFalse(sender.isConnected());
+		sender.close();
+	}
+
+	private static Map readFrame(InputStream in) throws Exception {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) > 0) {
+			frame.write(b);
+		}
+		return (Map) JSONValue.parse(frame.toString("UTF-8"));
+	}
+}
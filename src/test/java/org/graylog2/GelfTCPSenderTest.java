@@ -0,0 +1,98 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfTCPSenderTest {
+
+	@Test
+	public void testFailsFastAndReconnectsInBackground() throws Exception {
+		ServerSocket probe = new ServerSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+
+		GelfTCPSender sender = new GelfTCPSender("127.0.0.1", port, 1000);
+		sender.setReconnectDelays(10, 50);
+		final List<String> transitions = Collections.synchronizedList(new ArrayList<String>());
+		sender.addStateListener(new GelfTCPSender.StateListener() {
+			public void stateChanged(GelfTCPSender s, GelfTCPSender.CircuitState previous, GelfTCPSender.CircuitState current) {
+				transitions.add(previous + "->" + current);
+			}
+		});
+
+		assertFalse("the first message waits for the first attempt only", sender.sendMessage(newMessage("circuit")));
+		assertNotSame(GelfTCPSender.CircuitState.CLOSED, sender.getState());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!transitions.contains("HALF_OPEN->OPEN") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals("CLOSED->HALF_OPEN", transitions.get(0));
+		assertTrue(transitions.contains("HALF_OPEN->OPEN"));
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 10000; i++) {
+			assertFalse(sender.sendMessage(newMessage("circuit")));
+		}
+		assertTrue("open circuit must fail fast", System.nanoTime() - start < 1000L * 1000 * 1000);
+
+		ServerSocket server = new ServerSocket(port);
+		assertTrue(sender.awaitConnected(5000));
+		// the listeners run after waiting threads are woken
+		deadline = System.currentTimeMillis() + 5000;
+		while (!transitions.contains("HALF_OPEN->CLOSED") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertTrue(transitions.contains("OPEN->HALF_OPEN"));
+		assertEquals("HALF_OPEN->CLOSED", transitions.get(transitions.size() - 1));
+		assertTrue(sender.sendMessage(newMessage("circuit")));
+
+		sender.close();
+		server.close();
+	}
+
+	@Test
+	public void testConnectsInBackground() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		GelfTCPSender sender = new GelfTCPSender("127.0.0.1", server.getLocalPort(), 1000);
+		sender.connect();
+		assertTrue(sender.awaitConnected(5000));
+		assertTrue(sender.sendMessage(newMessage("circuit")));
+		assertEquals("the first connection is no reconnect", 0, sender.getMetrics().getReconnects());
+
+		sender.close();
+		assertFalse(sender.awaitConnected(10));
+		server.close();
+	}
+
+	@Test
+	public void testFirstMessagesWaitForFirstConnection() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		GelfTCPSender sender = new GelfTCPSender("127.0.0.1", server.getLocalPort(), 5000) {
+			@Override
+			protected Socket createSocket() throws IOException {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				return super.createSocket();
+			}
+		};
+		sender.connect();
+		assertTrue("sent once connected", sender.sendMessage(newMessage("circuit")));
+		assertEquals(GelfTCPSender.CircuitState.CLOSED, sender.getState());
+
+		sender.close();
+		server.close();
+	}
+}
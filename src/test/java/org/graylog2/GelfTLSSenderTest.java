@@ -0,0 +1,207 @@
+package org.graylog2;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfTLSSenderTest {
+
+	private static final String PASSWORD = "changeit";
+
+	@ClassRule
+	public static TemporaryFolder folder = new TemporaryFolder();
+
+	/** Self-signed certificate for 127.0.0.1, also used as the client's trust store. */
+	private static File keyStore;
+	/** Self-signed certificate for another host name. */
+	private static File otherKeyStore;
+
+	private SSLServerSocket server;
+	private Thread acceptor;
+	private final List<byte[]> sessionIds = Collections.synchronizedList(new ArrayList<byte[]>());
+	private final List<String> frames = Collections.synchronizedList(new ArrayList<String>());
+
+	@BeforeClass
+	public static void createKeyStores() throws Exception {
+		keyStore = generateKeyStore("gelf.p12", "ip:127.0.0.1");
+		otherKeyStore = generateKeyStore("other.p12", "dns:graylog.example.com");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server != null) {
+			server.close();
+			acceptor.join(5000);
+		}
+	}
+
+	@Test
+	public void testFramesOverTls() throws Exception {
+		startServer(keyStore);
+		GelfTLSSender sender = new GelfTLSSender("127.0.0.1", server.getLocalPort(), 1024, 10000, 5000, clientContext());
+		assertTrue(sender.awaitConnected(5000));
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue(sender.sendMessage(newMessage("message " + i)));
+		}
+		sender.close();
+
+		awaitFrames(100);
+		for (int i = 0; i < 100; i++) {
+			Map json = (Map) JSONValue.parse(frames.get(i));
+			assertEquals("message " + i, json.get("short_message"));
+		}
+	}
+
+	@Test
+	public void testReconnectResumesSession() throws Exception {
+		startServer(keyStore);
+		SSLContext context = clientContext();
+
+		GelfTLSSender first = new GelfTLSSender("127.0.0.1", server.getLocalPort(), 1024, 10000, 5000, context);
+		assertTrue(first.awaitConnected(5000));
+		assertTrue(first.sendMessage(newMessage("first")));
+		first.close();
+		awaitFrames(1);
+		GelfTLSSender second = new GelfTLSSender("127.0.0.1", server.getLocalPort(), 1024, 10000, 5000, context);
+		assertTrue(second.awaitConnected(5000));
+		assertTrue(second.sendMessage(newMessage("second")));
+		second.close();
+		awaitFrames(2);
+
+		assertEquals(2, sessionIds.size());
+		assertTrue("abbreviated handshake", Arrays.equals(sessionIds.get(0), sessionIds.get(1)));
+	}
+
+	@Test
+	public void testRejectsUntrustedServer() throws Exception {
+		startServer(keyStore);
+		SSLContext untrusting = GelfTLSSender.createContext(otherKeyStore.getPath(), PASSWORD, null, null);
+		GelfTLSSender sender = new GelfTLSSender("127.0.0.1", server.getLocalPort(), 1, 0, 5000, untrusting);
+
+		sender.setReconnectDelays(60000, 60000);
+		assertFalse(sender.awaitConnected(1000));
+		assertEquals(GelfTCPSender.CircuitState.OPEN, sender.getState());
+		assertFalse(sender.sendMessage(newMessage("untrusted")));
+		sender.close();
+	}
+
+	@Test
+	public void testVerifiesHostname() throws Exception {
+		startServer(otherKeyStore);
+		SSLContext context = GelfTLSSender.createContext(otherKeyStore.getPath(), PASSWORD, null, null);
+		GelfTLSSender verifying = new GelfTLSSender("127.0.0.1", server.getLocalPort(), 1, 0, 5000, context);
+		assertFalse(verifying.awaitConnected(1000));
+		assertFalse(verifying.sendMessage(newMessage("wrong host")));
+		verifying.close();
+
+		GelfTLSSender trusting = new GelfTLSSender("127.0.0.1", server.getLocalPort(), 1, 0, 5000, context);
+		trusting.setVerifyHostname(false);
+		assertTrue(trusting.awaitConnected(5000));
+		assertTrue(trusting.sendMessage(newMessage("any host")));
+		trusting.close();
+		awaitFrames(1);
+		assertEquals("any host", ((Map) JSONValue.parse(frames.get(0))).get("short_message"));
+	}
+
+	private static SSLContext clientContext() throws Exception {
+		return GelfTLSSender.createContext(keyStore.getPath(), PASSWORD, null, null);
+	}
+
+	private void startServer(File serverKeyStore) throws Exception {
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		InputStream in = new FileInputStream(serverKeyStore);
+		try {
+			store.load(in, PASSWORD.toCharArray());
+		} finally {
+			in.close();
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(store, PASSWORD.toCharArray());
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), null, null);
+
+		server = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+		// TLS 1.2 session ids show whether a session was resumed
+		server.setEnabledProtocols(new String[]{"TLSv1.2"});
+		acceptor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						SSLSocket client = (SSLSocket) server.accept();
+						try {
+							client.setSoTimeout(5000);
+							client.startHandshake();
+							sessionIds.add(client.getSession().getId());
+							readFrames(client.getInputStream());
+						} catch (Exception e) {
+							// failed handshake, wait for the next client
+						} finally {
+							client.close();
+						}
+					}
+				} catch (Exception e) {
+					// server closed
+				}
+			}
+		});
+		acceptor.start();
+	}
+
+	private void readFrames(InputStream in) throws Exception {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == 0) {
+				frames.add(frame.toString("UTF-8"));
+				frame.reset();
+			} else {
+				frame.write(b);
+			}
+		}
+	}
+
+	private void awaitFrames(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (frames.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, frames.size());
+	}
+
+	private static File generateKeyStore(String name, String subjectAlternativeName) throws Exception {
+		File file = new File(folder.getRoot(), name);
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "gelf", "-keyalg", "EC", "-keysize", "256",
+				"-dname", "CN=gelf-test", "-ext", "SAN=" + subjectAlternativeName, "-validity", "2",
+				"-storetype", "PKCS12", "-keystore", file.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+				.redirectErrorStream(true).start();
+		InputStream out = process.getInputStream();
+		while (out.read() != -1) {
+			// keytool output is not needed
+		}
+		assertEquals("keytool exit code", 0, process.waitFor());
+		return file;
+	}
+}
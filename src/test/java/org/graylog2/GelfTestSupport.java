@@ -0,0 +1,84 @@
+package org.graylog2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fixtures shared by the sender tests.
+ */
+final class GelfTestSupport {
+
+	private GelfTestSupport() {
+	}
+
+	static GelfMessage newMessage(String shortMessage) {
+		return newMessage(shortMessage, null);
+	}
+
+	static GelfMessage newMessage(String shortMessage, String fullMessage) {
+		GelfMessage message = new GelfMessage(shortMessage, fullMessage, 1L, "6");
+		message.setHost("localhost");
+		return message;
+	}
+
+	/**
+	 * Records what it is sent; it can be taken down, reject some messages, or hold every send until released.
+	 */
+	static class RecordingSender implements GelfTransportSender {
+		final List<GelfMessage> messages = Collections.synchronizedList(new ArrayList<GelfMessage>());
+		/** The JSON of the messages sent, for messages that are reused after sending. */
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		volatile boolean down;
+		/** Messages containing this are rejected while the transport is up. */
+		volatile String rejected;
+		volatile boolean closed;
+		private final CountDownLatch firstSend = new CountDownLatch(1);
+		private final CountDownLatch release;
+
+		RecordingSender() {
+			this(null);
+		}
+
+		/**
+		 * @param release sends wait for it, may be null
+		 */
+		RecordingSender(CountDownLatch release) {
+			this.release = release;
+		}
+
+		public boolean sendMessage(GelfMessage message) {
+			firstSend.countDown();
+			if (release != null) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			String json = message.toJson();
+			if (down || rejected != null && json.contains(rejected)) {
+				return false;
+			}
+			messages.add(message);
+			received.add(json);
+			return true;
+		}
+
+		void awaitFirstSend() throws InterruptedException {
+			assertTrue(firstSend.await(5, TimeUnit.SECONDS));
+		}
+
+		public boolean isTransportAvailable() {
+			return !down;
+		}
+
+		public void close() {
+			closed = true;
+		}
+	}
+}
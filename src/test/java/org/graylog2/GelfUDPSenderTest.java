@@ -0,0 +1,191 @@
+package org.graylog2;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.graylog2.GelfTestSupport.newMessage;
+import static org.junit.Assert.*;
+
+public class GelfUDPSenderTest {
+
+	private DatagramSocket server;
+	private GelfUDPSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new DatagramSocket(0);
+		server.setSoTimeout(5000);
+		server.setReceiveBufferSize(1024 * 1024);
+		sender = new GelfUDPSender("127.0.0.1", server.getLocalPort());
+	}
+
+	@After
+	public void tearDown() {
+		sender.close();
+		server.close();
+	}
+
+	@Test
+	public void testSendsChunkedMessage() throws Exception {
+		String fullMessage = randomText(20000);
+		GelfMessage message = newMessage("chunked", fullMessage);
+
+		assertTrue(sender.sendMessage(message));
+
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		byte[] buffer = new byte[65536];
+		int count = -1;
+		long messageId = 0;
+		for (int idx = 0; count == -1 || idx < count; idx++) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			server.receive(packet);
+			byte[] data = packet.getData();
+			assertEquals(0x1e, data[0]);
+			assertEquals(0x0f, data[1]);
+			long id = java.nio.ByteBuffer.wrap(data, 2, 8).getLong();
+			if (count == -1) {
+				count = data[11];
+				messageId = id;
+				assertTrue(count > 1);
+			}
+			assertEquals(messageId, id);
+			assertEquals(idx, data[10]);
+			assertTrue(packet.getLength() <= GelfMessage.CHUNK_HEADER_LENGTH + GelfMessage.MAXIMUM_CHUNK_SIZE);
+			payload.write(data, GelfMessage.CHUNK_HEADER_LENGTH, packet.getLength() - GelfMessage.CHUNK_HEADER_LENGTH);
+		}
+
+		Map json = (Map) JSONValue.parse(gunzip(payload.toByteArray()));
+		assertEquals(fullMessage, json.get("full_message"));
+	}
+
+	@Test
+	public void testSendsSmallMessageUnchunked() throws Exception {
+		GelfMessage message = newMessage("small");
+
+		assertTrue(sender.sendMessage(message));
+
+		byte[] buffer = new byte[65536];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		server.receive(packet);
+		byte[] data = new byte[packet.getLength()];
+		System.arraycopy(packet.getData(), 0, data, 0, data.length);
+		assertEquals("small", ((Map) JSONValue.parse(gunzip(data))).get("short_message"));
+	}
+
+	@Test
+	public void testConfiguredChunkSize() throws Exception {
+		GelfUDPSender jumboSender = new GelfUDPSender("127.0.0.1", server.getLocalPort(), 8154);
+		GelfMessage message = newMessage("jumbo", randomText(20000));
+
+		assertTrue(jumboSender.sendMessage(message));
+
+		byte[] buffer = new byte[65536];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		server.receive(packet);
+		assertEquals(2, packet.getData()[11]);
+		assertEquals(GelfMessage.CHUNK_HEADER_LENGTH + 8154, packet.getLength());
+		jumboSender.close();
+	}
+
+	@Test
+	public void testOversizePolicies() throws Exception {
+		// 100 byte chunks cap the compressed message at 12800 bytes
+		GelfUDPSender smallSender = new GelfUDPSender("127.0.0.1", server.getLocalPort(), 100);
+		String fullMessage = randomText(40000);
+		GelfMessage message = newMessage("oversized", fullMessage);
+
+		smallSender.setOversizePolicy(GelfUDPSender.OversizePolicy.DROP, null);
+		assertFalse(smallSender.sendMessage(message));
+		assertEquals(1, smallSender.getDroppedCount());
+
+		smallSender.setOversizePolicy(GelfUDPSender.OversizePolicy.TRUNCATE, null);
+		assertTrue(smallSender.sendMessage(message));
+		assertEquals(1, smallSender.getTruncatedCount());
+		assertEquals("message is restored after truncation", fullMessage, message.getFullMessage());
+		byte[] buffer = new byte[65536];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		server.receive(packet);
+		int chunks = packet.getData()[11] & 0xff;
+		assertTrue(chunks > 1);
+		assertTrue(chunks <= GelfUDPSender.MAXIMUM_CHUNKS);
+
+		final GelfMessage[] fallback = new GelfMessage[1];
+		smallSender.setOversizePolicy(GelfUDPSender.OversizePolicy.FALLBACK, new GelfSender() {
+			public boolean sendMessage(GelfMessage m) {
+				fallback[0] = m;
+				return true;
+			}
+
+			public void close() {
+			}
+		});
+		assertTrue(smallSender.sendMessage(message));
+		assertSame(message, fallback[0]);
+		assertEquals(1, smallSender.getFallbackCount());
+		smallSender.close();
+	}
+
+	@Test
+	public void testTruncatesReplayedMessageWithLongField() throws Exception {
+		GelfUDPSender smallSender = new GelfUDPSender("127.0.0.1", server.getLocalPort(), 100);
+		String field = randomText(40000);
+		GelfMessage logged = newMessage("replayed", "short");
+		logged.addField("payload", field);
+		byte[] encoded = logged.encodeJson().toByteArray();
+		GelfMessage replayed = new GelfMessage();
+		replayed.setEncodedJson(encoded, encoded.length);
+
+		assertTrue(smallSender.sendMessage(replayed));
+		assertEquals(1, smallSender.getTruncatedCount());
+
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		byte[] buffer = new byte[65536];
+		int count = -1;
+		for (int idx = 0; count == -1 || idx < count; idx++) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			server.receive(packet);
+			count = packet.getData()[11] & 0xff;
+			assertEquals(idx, packet.getData()[10]);
+			payload.write(packet.getData(), GelfMessage.CHUNK_HEADER_LENGTH, packet.getLength() - GelfMessage.CHUNK_HEADER_LENGTH);
+		}
+		assertTrue(count <= GelfUDPSender.MAXIMUM_CHUNKS);
+		Map json = (Map) JSONValue.parse(gunzip(payload.toByteArray()));
+		assertEquals("replayed", json.get("short_message"));
+		assertEquals("short", json.get("full_message"));
+		String truncated = (String) json.get("_payload");
+		assertTrue(truncated.length() < field.length());
+		assertTrue(field.startsWith(truncated));
+		smallSender.close();
+	}
+
+	static String gunzip(byte[] data) throws Exception {
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toString("UTF-8");
+	}
+
+	static String randomText(int length) {
+		// random letters compress poorly, so the payload really needs several chunks
+		Random random = new Random(42);
+		StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			text.append((char) ('a' + random.nextInt(26)));
+		}
+		return text.toString();
+	}
+}
@@ -3,17 +3,34 @@ package org.graylog2.log;
 import org.apache.log4j.*;
 import org.apache.log4j.spi.ErrorHandler;
 import org.apache.log4j.spi.LoggingEvent;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.graylog2.AsyncGelfSender;
 import org.graylog2.GelfMessage;
 import org.graylog2.GelfTCPSender;
 import org.graylog2.GelfUDPSender;
 import org.graylog2.log4j2.GelfAppender;
+import org.graylog2.log4j2.GelfConsoleAppender;
+import org.json.simple.JSONValue;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
@@ -33,8 +50,17 @@ public class GelfAppenderTest {
 	public void setUp() throws IOException {
 		gelfSender = new TestGelfSender("localhost");
 
-		gelfAppender = GelfAppender.createAppender("test", "127.0.0.1", "12201", "USER", "true", "localhost", "true", "true",
-				"{'environment': 'DEV', 'application': 'MyAPP'}", null, null, null);
+		gelfAppender = GelfAppender.newBuilder()
+				.setName("test")
+				.setGraylogHost("127.0.0.1")
+				.setGraylogPort("12201")
+				.setFacility("USER")
+				.setExtractStacktrace("true")
+				.setOriginHost("localhost")
+				.setAddExtendedInformation("true")
+				.setIncludeLocation("true")
+				.setAdditionalFields("{'environment': 'DEV', 'application': 'MyAPP'}")
+				.build();
 	}
 
 	@After
@@ -123,6 +149,162 @@ public class GelfAppenderTest {
 		assertEquals(gelfSender.getLastMessage().getAdditonalFields().get("logger"), CLASS_NAME);
 	}
 
+	@Test
+	public void registersMetricsMBean() throws Exception {
+		ObjectName name = new ObjectName("org.graylog2:type=GelfAppender,name=test");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertTrue(server.isRegistered(name));
+		assertEquals(0L, server.getAttribute(name, "MessagesSent"));
+
+		gelfAppender.stop();
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void registersEndpointMBeans() throws Exception {
+		GelfAppender appender = GelfAppender.newBuilder()
+				.setName("balanced")
+				.setGraylogHost("udp:127.0.0.1:12201, udp:127.0.0.1:12202")
+				.setOriginHost("localhost")
+				.build();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName first = new ObjectName("org.graylog2:type=GelfAppender,name=balanced,endpoint="
+				+ ObjectName.quote("udp:127.0.0.1:12201"));
+		ObjectName second = new ObjectName("org.graylog2:type=GelfAppender,name=balanced,endpoint="
+				+ ObjectName.quote("udp:127.0.0.1:12202"));
+		assertTrue(server.isRegistered(new ObjectName("org.graylog2:type=GelfAppender,name=balanced")));
+		assertTrue(server.isRegistered(first));
+		assertTrue(server.isRegistered(second));
+
+		appender.append(logEvent("to one endpoint"));
+		assertEquals(1L, (Long) server.getAttribute(first, "MessagesSent") + (Long) server.getAttribute(second, "MessagesSent"));
+		assertEquals(1L, server.getAttribute(new ObjectName("org.graylog2:type=GelfAppender,name=balanced"), "MessagesSent"));
+
+		appender.stop();
+		assertFalse(server.isRegistered(first));
+		assertFalse(server.isRegistered(second));
+	}
+
+	@Test
+	public void consoleAppenderRegistersMetricsMBean() throws Exception {
+		GelfConsoleAppender appender = GelfConsoleAppender.createAppender("console", null, null, null, "localhost",
+				null, null, null, null, null, null, null, null, null, null, "true", null, null);
+		ObjectName name = new ObjectName("org.graylog2:type=GelfAppender,name=console");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertTrue(server.isRegistered(name));
+
+		appender.append(logEvent("to the console"));
+		assertEquals(1L, server.getAttribute(name, "MessagesBuilt"));
+		appender.stop();
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void consoleAppendersKeepTheirOwnOriginHost() throws Exception {
+		GelfConsoleAppender first = GelfConsoleAppender.createAppender("first", null, null, null, "one.example.com",
+				null, null, null, null, null, null, null, null, null, null, null, null, null);
+		GelfConsoleAppender second = GelfConsoleAppender.createAppender("second", null, null, null, "two.example.com",
+				null, null, null, null, null, null, null, null, null, null, null, null, null);
+
+		assertEquals("one.example.com", first.getOriginHost());
+		assertEquals("two.example.com", second.getOriginHost());
+		first.stop();
+		second.stop();
+	}
+
+	@Test
+	public void deliversMessageLoggedRightAfterBuild() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		try {
+			GelfAppender appender = GelfAppender.newBuilder()
+					.setName("starting")
+					.setGraylogHost("tcp:127.0.0.1")
+					.setGraylogPort(String.valueOf(server.getLocalPort()))
+					.setOriginHost("localhost")
+					.setCompression("NONE")
+					.build();
+			// the connection is still being opened in the background
+			appender.append(logEvent("first"));
+			appender.stop();
+
+			Socket client = server.accept();
+			client.setSoTimeout(5000);
+			InputStream in = client.getInputStream();
+			ByteArrayOutputStream json = new ByteArrayOutputStream();
+			int b;
+			while ((b = in.read()) != -1) {
+				json.write(b);
+			}
+			client.close();
+
+			assertEquals("first", ((Map) JSONValue.parse(json.toString("UTF-8"))).get("short_message"));
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void stopDeliversQueuedMessages() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		try {
+			GelfAppender appender = GelfAppender.newBuilder()
+					.setName("stopping")
+					.setGraylogHost("tcp:127.0.0.1")
+					.setGraylogPort(String.valueOf(server.getLocalPort()))
+					.setOriginHost("localhost")
+					.setAsync("true")
+					.setTcpBatchSize("65536")
+					.setTcpLinger("60000")
+					.setDuplicateLimit("1")
+					.build();
+			GelfTCPSender tcpSender = (GelfTCPSender) ((AsyncGelfSender) appender.getGelfSender()).getDelegate();
+			assertTrue(tcpSender.awaitConnected(5000));
+
+			for (int i = 0; i < 10; i++) {
+				appender.append(logEvent("message " + i));
+			}
+			for (int i = 0; i < 3; i++) {
+				appender.append(logEvent("repeated"));
+			}
+			// the batch lingers for a minute, so only stopping sends it
+			appender.stop();
+
+			Socket client = server.accept();
+			client.setSoTimeout(5000);
+			List<String> messages = new ArrayList<String>();
+			InputStream in = client.getInputStream();
+			ByteArrayOutputStream frame = new ByteArrayOutputStream();
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b == 0) {
+					messages.add((String) ((Map) JSONValue.parse(frame.toString("UTF-8"))).get("short_message"));
+					frame.reset();
+				} else {
+					frame.write(b);
+				}
+			}
+			client.close();
+
+			assertEquals(12, messages.size());
+			for (int i = 0; i < 10; i++) {
+				assertEquals("message " + i, messages.get(i));
+			}
+			assertEquals("repeated", messages.get(10));
+			assertEquals("Suppressed 2 duplicates of: repeated", messages.get(11));
+		} finally {
+			server.close();
+		}
+	}
+
+	private static LogEvent logEvent(String text) {
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName(CLASS_NAME)
+				.setLevel(org.apache.logging.log4j.Level.INFO)
+				.setMessage(new SimpleMessage(text))
+				.setTimeMillis(System.currentTimeMillis())
+				.build();
+	}
+
 	private class TestGelfSender extends GelfUDPSender {
 
 		private GelfMessage lastMessage;
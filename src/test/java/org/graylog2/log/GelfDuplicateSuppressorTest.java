@@ -0,0 +1,94 @@
+package org.graylog2.log;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.graylog2.log4j2.GelfDuplicateSuppressor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class GelfDuplicateSuppressorTest {
+
+	private final List<String> summaries = Collections.synchronizedList(new ArrayList<String>());
+	private final GelfDuplicateSuppressor.Listener listener = new GelfDuplicateSuppressor.Listener() {
+		public void suppressed(String loggerName, Level level, String template, int count) {
+			summaries.add(loggerName + " " + level + " " + template + " " + count);
+		}
+	};
+
+	@Test
+	public void testSuppressesBeyondLimitPerWindow() {
+		GelfDuplicateSuppressor suppressor = new GelfDuplicateSuppressor(3, 1000, listener);
+		try {
+			int allowed = 0;
+			for (int i = 0; i < 10; i++) {
+				if (suppressor.allow(event("user {} not found", i, 5000))) {
+					allowed++;
+				}
+			}
+			assertEquals(3, allowed);
+			assertTrue(summaries.isEmpty());
+
+			assertTrue(suppressor.allow(event("user {} not found", 11, 6000)));
+			assertEquals(Collections.singletonList("test ERROR user {} not found 7"), summaries);
+		} finally {
+			suppressor.close();
+		}
+	}
+
+	@Test
+	public void testDistinguishesTemplates() {
+		GelfDuplicateSuppressor suppressor = new GelfDuplicateSuppressor(1, 1000, listener);
+		try {
+			assertTrue(suppressor.allow(event("first {}", 1, 5000)));
+			assertTrue(suppressor.allow(event("second {}", 1, 5000)));
+			assertFalse(suppressor.allow(event("first {}", 2, 5000)));
+		} finally {
+			suppressor.close();
+		}
+		assertEquals(Collections.singletonList("test ERROR first {} 1"), summaries);
+	}
+
+	@Test
+	public void testConcurrentCounting() throws Exception {
+		final GelfDuplicateSuppressor suppressor = new GelfDuplicateSuppressor(5, 60000, listener);
+		final AtomicInteger allowed = new AtomicInteger();
+		final LogEvent event = event("hot loop {}", 0, 5000);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						if (suppressor.allow(event)) {
+							allowed.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		suppressor.close();
+
+		assertEquals(5, allowed.get());
+		assertEquals(Collections.singletonList("test ERROR hot loop {} 39995"), summaries);
+	}
+
+	private static LogEvent event(String pattern, int argument, long timeMillis) {
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName("test")
+				.setLevel(Level.ERROR)
+				.setMessage(new ParameterizedMessage(pattern, argument))
+				.setTimeMillis(timeMillis)
+				.build();
+	}
+}
@@ -0,0 +1,204 @@
+package org.graylog2.log;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.time.MutableInstant;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.graylog2.GelfMessage;
+import org.graylog2.GelfMessageProvider;
+import org.graylog2.GelfStackTraceRenderer;
+import org.graylog2.GelfStaticFields;
+import org.graylog2.GelfUDPSender;
+import org.graylog2.log4j2.GelfMessageFactory;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class GelfMessageFactoryTest {
+
+	@Test
+	public void testReusableMessageMatchesMakeMessage() {
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("environment", "DEV");
+		TestProvider provider = new TestProvider(fields, true);
+		LogEvent event = event("user {} logged in from {}", "bob", "10.0.0.1");
+
+		GelfMessage reusable = GelfMessageFactory.makeReusableMessage(event, provider);
+
+		Map<String, Object> expectedFields = GelfMessageFactory.makeMessage(event, provider).getAdditonalFields();
+		Map<String, Object> reusableFields = fieldsAsStrings(reusable);
+		assertEquals(expectedFields, reusableFields);
+		assertEquals("1500000000123", reusableFields.get(GelfMessageFactory.JAVA_TIMESTAMP));
+		assertEquals("1500000000.123", reusable.getTimestamp());
+		assertEquals("user bob logged in from 10.0.0.1", reusable.getShortMessage());
+		assertEquals("bar", reusable.getAdditonalFields().get("foo").toString());
+	}
+
+	@Test
+	public void testReusableMessageIsReused() {
+		TestProvider provider = new TestProvider(Collections.<String, String>emptyMap(), true);
+
+		GelfMessage first = GelfMessageFactory.makeReusableMessage(event("first {}", "a", "b"), provider);
+		GelfMessage second = GelfMessageFactory.makeReusableMessage(event("second {}", "a", "b"), provider);
+
+		assertSame(first, second);
+		assertEquals("second a", second.getFullMessage());
+	}
+
+	@Test
+	public void testReusableMessageIsGarbageFree() throws Exception {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeAllocationCounting(threads);
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+
+		DatagramSocket server = new DatagramSocket(0);
+		GelfUDPSender sender = new GelfUDPSender("127.0.0.1", server.getLocalPort());
+		try {
+			TestProvider provider = new TestProvider(Collections.singletonMap("environment", "DEV"), true);
+			LogEvent event = event("user {} logged in from {}", "bob", "10.0.0.1");
+			long threadId = Thread.currentThread().getId();
+
+			for (int i = 0; i < 20000; i++) {
+				sender.sendMessage(GelfMessageFactory.makeReusableMessage(event, provider));
+			}
+			long before = allocations.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < 10000; i++) {
+				sender.sendMessage(GelfMessageFactory.makeReusableMessage(event, provider));
+			}
+			long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+			// a few bytes of slack for the measurement itself
+			assertTrue("allocated " + allocated + " bytes for 10000 events", allocated < 10000);
+		} finally {
+			sender.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testExceptionFields() {
+		TestProvider provider = new TestProvider(Collections.<String, String>emptyMap(), false);
+		provider.stackTraceRenderer = new GelfStackTraceRenderer(1, 16, true);
+		LogEvent event = Log4jLogEvent.newBuilder()
+				.setLevel(Level.ERROR)
+				.setMessage(new ParameterizedMessage("failed"))
+				.setThrown(new IllegalStateException("broken"))
+				.build();
+
+		GelfMessage message = GelfMessageFactory.makeReusableMessage(event, provider);
+
+		assertEquals("java.lang.IllegalStateException", message.getAdditonalFields().get(GelfMessageFactory.EXCEPTION_CLASS));
+		assertNotNull(message.getAdditonalFields().get(GelfMessageFactory.STACK_HASH));
+		assertTrue(message.getFullMessage().startsWith("failed\n\rjava.lang.IllegalStateException: broken"));
+		assertTrue(message.getFullMessage().contains(" more"));
+	}
+
+	@Test
+	public void testMicrosecondTimestamps() {
+		TestProvider provider = new TestProvider(Collections.<String, String>emptyMap(), false);
+		provider.microsecondTimestamps = true;
+		MutableInstant instant = new MutableInstant();
+		instant.initFromEpochMilli(1500000000123L, 456789);
+		LogEvent event = Log4jLogEvent.newBuilder()
+				.setLevel(Level.INFO)
+				.setMessage(new ParameterizedMessage("timed"))
+				.setInstant(instant)
+				.build();
+
+		GelfMessage message = GelfMessageFactory.makeReusableMessage(event, provider);
+
+		assertEquals("1500000000.123456", message.getTimestamp());
+		assertTrue(message.toJson().contains("\"timestamp\":1500000000.123456,"));
+		assertEquals("1500000000.123456", GelfMessageFactory.makeMessage(event, provider).getTimestamp());
+	}
+
+	private static void assumeAllocationCounting(java.lang.management.ThreadMXBean threads) {
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported());
+		((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+	}
+
+	private static LogEvent event(String pattern, String first, String second) {
+		SortedArrayStringMap contextData = new SortedArrayStringMap();
+		contextData.putValue("foo", "bar");
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName("org.graylog2.Example")
+				.setLoggerFqcn("org.graylog2.Example")
+				.setLevel(Level.INFO)
+				.setMessage(new ParameterizedMessage(pattern, first, second))
+				.setContextData(contextData)
+				.setThreadName("main")
+				.setTimeMillis(1500000000123L)
+				.build();
+	}
+
+	private static Map<String, Object> fieldsAsStrings(GelfMessage message) {
+		Map<String, Object> fields = new HashMap<String, Object>();
+		for (Map.Entry<String, Object> entry : message.getAdditonalFields().entrySet()) {
+			fields.put(entry.getKey(), entry.getValue() == null ? null : entry.getValue().toString());
+		}
+		return fields;
+	}
+
+	private static class TestProvider implements GelfMessageProvider {
+
+		private final Map<String, String> fields;
+		private GelfStaticFields staticFields;
+		private GelfStackTraceRenderer stackTraceRenderer = new GelfStackTraceRenderer();
+		private boolean microsecondTimestamps;
+		private final boolean addExtendedInformation;
+
+		TestProvider(Map<String, String> fields, boolean addExtendedInformation) {
+			this.fields = fields;
+			this.addExtendedInformation = addExtendedInformation;
+		}
+
+		public boolean isExtractStacktrace() {
+			return true;
+		}
+
+		public String getOriginHost() {
+			return "localhost";
+		}
+
+		public String getFacility() {
+			return "test";
+		}
+
+		public Map<String, String> getFields() {
+			return fields;
+		}
+
+		public boolean isAddExtendedInformation() {
+			return addExtendedInformation;
+		}
+
+		public boolean isIncludeLocation() {
+			return false;
+		}
+
+		public boolean isMicrosecondTimestamps() {
+			return microsecondTimestamps;
+		}
+
+		public GelfStackTraceRenderer getStackTraceRenderer() {
+			return stackTraceRenderer;
+		}
+
+		public GelfStaticFields getStaticFields() {
+			if (staticFields == null) {
+				staticFields = GelfMessageFactory.makeStaticFields(this);
+			}
+			return staticFields;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package org.graylog2.log;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.graylog2.log4j2.GelfSampler;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GelfSamplerTest {
+
+	private final GelfSampler sampler = new GelfSampler(
+			"DEBUG=0, INFO=0.5, com.example.noisy=0.0, com.example.api:INFO=1", "traceId");
+
+	@Test
+	public void testRules() {
+		assertNull(sampler.sample(event("com.example.Other", Level.DEBUG, null)));
+		assertNull(sampler.sample(event("com.example.noisy.Worker", Level.INFO, null)));
+		assertEquals(1.0, sampler.sample(event("com.example.noisy.Worker", Level.WARN, null)), 0.0);
+		assertEquals(1.0, sampler.sample(event("com.example.api", Level.INFO, null)), 0.0);
+		assertEquals(1.0, sampler.sample(event("com.example.Other", Level.ERROR, null)), 0.0);
+	}
+
+	@Test
+	public void testRandomRate() {
+		int kept = 0;
+		for (int i = 0; i < 10000; i++) {
+			// "noisyother" is not a descendant of com.example.noisy, so the INFO rate applies
+			Double rate = sampler.sample(event("com.example.noisyother", Level.INFO, null));
+			if (rate != null) {
+				assertEquals(0.5, rate, 0.0);
+				kept++;
+			}
+		}
+		assertTrue("kept " + kept, kept > 4500 && kept < 5500);
+	}
+
+	@Test
+	public void testTraceIdKeepsTracesWhole() {
+		int keptTraces = 0;
+		for (int trace = 0; trace < 1000; trace++) {
+			boolean kept = sampler.sample(event("com.example.Other", Level.INFO, "trace-" + trace)) != null;
+			for (int i = 0; i < 5; i++) {
+				assertEquals(kept, sampler.sample(event("com.example.Other", Level.INFO, "trace-" + trace)) != null);
+			}
+			if (kept) {
+				keptTraces++;
+			}
+		}
+		assertTrue("kept " + keptTraces, keptTraces > 400 && keptTraces < 600);
+	}
+
+	private static LogEvent event(String loggerName, Level level, String traceId) {
+		SortedArrayStringMap contextData = new SortedArrayStringMap();
+		if (traceId != null) {
+			contextData.putValue("traceId", traceId);
+		}
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName(loggerName)
+				.setLevel(level)
+				.setMessage(new SimpleMessage("sampled"))
+				.setContextData(contextData)
+				.build();
+	}
+}